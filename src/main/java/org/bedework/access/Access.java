@@ -22,6 +22,7 @@ import org.bedework.access.Acl.CurrentAccess;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 
 /** Class to handle access control. Because we may be evaluating access
@@ -171,6 +172,27 @@ public class Access implements Serializable {
     public String makeHref(String id, int whoType) throws AccessException;
   }
 
+  /** Provides the owner and acl of an object when evaluating access to
+   * many objects at once.
+   *
+   * @param <T> type of object
+   */
+  public interface AclAccessor<T> {
+    /**
+     * @param val the object
+     * @return owner of the object
+     * @throws AccessException
+     */
+    public AccessPrincipal getOwner(T val) throws AccessException;
+
+    /**
+     * @param val the object
+     * @return encoded acl for the object
+     * @throws AccessException
+     */
+    public char[] getAclChars(T val) throws AccessException;
+  }
+
   /** Get the access statistics
    *
    * @return String value for default access
@@ -273,6 +295,72 @@ public class Access implements Serializable {
                               filter);
   }
 
+  /** convenience method
+   *
+   * @param cb       callback
+   * @param who      Acl.Principal defining who is trying to get access
+   * @param owner    owner of object
+   * @param how      Privilege set defining desired access
+   * @param aclChars char[] defining current acls for object
+   * @param fingerprint from AclFingerprint.compute(aclChars)
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   * @throws AccessException on error
+   */
+  public CurrentAccess evaluateAccess(AccessCb cb,
+                                      AccessPrincipal who,
+                                      AccessPrincipal owner,
+                                      Privilege[] how, char[] aclChars,
+                                      long fingerprint,
+                                      PrivilegeSet filter)
+          throws AccessException {
+    return Acl.evaluateAccess(cb, who, owner, how, aclChars, fingerprint,
+                              filter);
+  }
+
+  /** convenience method
+   *
+   * @param cb       callback
+   * @param who      Acl.Principal defining who is trying to get access
+   * @param owner    owner of object
+   * @param how      Privilege set defining desired access
+   * @param acl      holds the current acls for object and their fingerprint
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   * @throws AccessException on error
+   */
+  public CurrentAccess evaluateAccess(AccessCb cb,
+                                      AccessPrincipal who,
+                                      AccessPrincipal owner,
+                                      Privilege[] how, EncodedAcl acl,
+                                      PrivilegeSet filter)
+          throws AccessException {
+    return Acl.evaluateAccess(cb, who, owner, how, acl, filter);
+  }
+
+  /** Evaluate access for one principal to many objects. Each distinct acl
+   * is evaluated once.
+   *
+   * @param cb       callback
+   * @param who      Acl.Principal defining who is trying to get access
+   * @param how      Privilege set defining desired access
+   * @param vals     the objects
+   * @param accessor provides the owner and acl of each object
+   * @param filter    if not null specifies maximum access
+   * @param <T> type of object
+   * @return BitSet with bit n set if access to the nth object is allowed
+   * @throws AccessException on error
+   */
+  public <T> BitSet evaluateAccess(AccessCb cb,
+                                   AccessPrincipal who,
+                                   Privilege[] how,
+                                   Collection<T> vals,
+                                   AclAccessor<T> accessor,
+                                   PrivilegeSet filter)
+          throws AccessException {
+    return new BatchEvaluator(cb).evaluate(who, how, vals, accessor, filter);
+  }
+
   /** convenience method - check for read access
    *
    * @param cb       callback
@@ -0,0 +1,176 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/** Wraps an iterator over objects, for example the results of a query,
+ * and returns only those the principal has the desired access to.
+ *
+ * <p>Objects are pulled from the source and evaluated a small batch at a
+ * time so the caller may stop at any point and we never hold more than a
+ * batch in memory.
+ *
+ * <p>An AccessException from the evaluation is thrown as a
+ * RuntimeException with the AccessException as the cause.
+ *
+ * @author douglm
+ *
+ * @param <T> type of object
+ */
+public class AccessFilterIterator<T> implements Iterator<T> {
+  private final Iterator<T> source;
+  private final BatchEvaluator evaluator;
+  private final AccessPrincipal who;
+  private final Privilege[] how;
+  private final Access.AclAccessor<T> accessor;
+  private final PrivilegeSet filter;
+  private final int batchSize;
+
+  /** Objects we have evaluated but not yet examined */
+  private final List<T> batch;
+  private BitSet allowed;
+  private int pos;
+
+  private T next;
+  private boolean haveNext;
+
+  /** Default number of objects evaluated together */
+  public static final int defaultBatchSize = 64;
+
+  /**
+   * @param source    the objects
+   * @param cb        callback
+   * @param who       principal trying to get access
+   * @param how       desired access - empty for any
+   * @param accessor  provides the owner and acl of each object
+   * @param filter    if not null specifies maximum access
+   */
+  public AccessFilterIterator(final Iterator<T> source,
+                              final Access.AccessCb cb,
+                              final AccessPrincipal who,
+                              final Privilege[] how,
+                              final Access.AclAccessor<T> accessor,
+                              final PrivilegeSet filter) {
+    this(source, cb, who, how, accessor, filter, defaultBatchSize);
+  }
+
+  /**
+   * @param source    the objects
+   * @param cb        callback
+   * @param who       principal trying to get access
+   * @param how       desired access - empty for any
+   * @param accessor  provides the owner and acl of each object
+   * @param filter    if not null specifies maximum access
+   * @param batchSize number of objects evaluated together
+   */
+  public AccessFilterIterator(final Iterator<T> source,
+                              final Access.AccessCb cb,
+                              final AccessPrincipal who,
+                              final Privilege[] how,
+                              final Access.AclAccessor<T> accessor,
+                              final PrivilegeSet filter,
+                              final int batchSize) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batchSize must be at least 1");
+    }
+
+    this.source = source;
+    this.who = who;
+    this.how = how;
+    this.accessor = accessor;
+    this.filter = filter;
+    this.batchSize = batchSize;
+
+    evaluator = new BatchEvaluator(cb);
+    batch = new ArrayList<>(batchSize);
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (haveNext) {
+      return true;
+    }
+
+    while (true) {
+      if (pos >= batch.size()) {
+        if (!fill()) {
+          return false;
+        }
+      }
+
+      int i = pos;
+      pos++;
+
+      if (allowed.get(i)) {
+        next = batch.get(i);
+        batch.set(i, null);  // Let it go once returned
+        haveNext = true;
+        return true;
+      }
+    }
+  }
+
+  @Override
+  public T next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    T val = next;
+    next = null;
+    haveNext = false;
+
+    return val;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /* Pull the next batch from the source and evaluate it.
+   *
+   * @return false if the source is exhausted
+   */
+  private boolean fill() {
+    batch.clear();
+    pos = 0;
+
+    while ((batch.size() < batchSize) && source.hasNext()) {
+      batch.add(source.next());
+    }
+
+    if (batch.isEmpty()) {
+      return false;
+    }
+
+    try {
+      allowed = evaluator.evaluate(who, how, batch, accessor, filter);
+    } catch (AccessException ae) {
+      throw new RuntimeException(ae);
+    }
+
+    return true;
+  }
+}
@@ -25,8 +25,7 @@ import org.apache.log4j.Logger;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /** Immutable object to represent an ace for a calendar entity or service.
  *
@@ -62,7 +61,9 @@ public final class Ace implements PrivilegeDefs, WhoDefs, Comparable<Ace> {
 
   private static ObjectPool<String> inheritedFroms = new ObjectPool<String>();
 
-  private static Map<String, Ace> aceCache = new HashMap<String, Ace>();
+  /* Shared by all threads evaluating access */
+  private static ConcurrentHashMap<String, Ace> aceCache =
+          new ConcurrentHashMap<>();
 
   private static Access.AccessStatsEntry aceCacheSize =
     new Access.AccessStatsEntry("ACE cache size");
@@ -85,10 +86,9 @@ public final class Ace implements PrivilegeDefs, WhoDefs, Comparable<Ace> {
                             final String inheritedFrom) throws AccessException {
     Ace ace = new Ace(who, privs, inheritedFrom);
 
-    Ace cace = aceCache.get(ace.encoding);
+    Ace cace = aceCache.putIfAbsent(ace.encoding, ace);
 
     if (cace == null) {
-      aceCache.put(ace.encoding, ace);
       aceCacheSize.count = aceCache.size();
       cace = ace;
     }
@@ -324,27 +324,44 @@ public final class Ace implements PrivilegeDefs, WhoDefs, Comparable<Ace> {
    * @throws AccessException
    */
   private void encode() throws AccessException {
-    EncodedAcl eacl = new EncodedAcl();
-    eacl.startEncoding();
+    EncodedAcl eacl = EncodedAcl.getEncoder();
 
-    getWho().encode(eacl);
+    try {
+      eacl.startEncoding();
 
-    for (Privilege p: privs) {
-      p.encode(eacl);
-    }
+      getWho().encode(eacl);
 
-    if (inheritedFrom != null) {
-      eacl.addChar(PrivilegeDefs.inheritedFlag);
-      eacl.encodeString(inheritedFrom);
-    }
+      for (Privilege p: privs) {
+        p.encode(eacl);
+      }
 
-    eacl.addChar(' ');  // terminate privs.
+      if (inheritedFrom != null) {
+        eacl.addChar(PrivilegeDefs.inheritedFlag);
+        eacl.encodeString(inheritedFrom);
+      }
+
+      eacl.addChar(' ');  // terminate privs.
 
-    encodingChars = eacl.getEncoding();
+      encodingChars = eacl.getEncoding();
+    } finally {
+      eacl.releaseEncoder();
+    }
 
     encoding = new String(encodingChars);
   }
 
+  /**
+   * @return the encoding of this ace - must not be modified
+   * @throws AccessException
+   */
+  char[] getEncodingChars() throws AccessException {
+    if (encoding == null) {
+      encode();
+    }
+
+    return encodingChars;
+  }
+
   /** Provide a string representation for user display - this should probably
    * use a localized resource and be part of a display level. It also requires
    * the Privilege objects
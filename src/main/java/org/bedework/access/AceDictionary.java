@@ -0,0 +1,514 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** A dictionary of common aces, e.g. owner all or authenticated read, so
+ * stored acls can refer to them rather than repeat them.
+ *
+ * <p>A compressed acl is the text encoding with a header naming the
+ * dictionary version, in which any ace may be replaced by a reference:
+ * <pre>
+ *   'D' length-encoded version
+ *   then for each ace either the encoded ace or
+ *   'R' length-encoded index into the dictionary
+ * </pre>
+ * An {@link AclSummary} may come before the 'D'.
+ *
+ * <p>Dictionaries are built from a sample of stored acls, written to a file
+ * and registered at startup. A dictionary must not be changed once acls
+ * have been compressed with it - build a new one with a new version and
+ * keep registering the old one while acls refer to it.
+ *
+ * <p>Everything in this package which takes an encoded acl accepts
+ * compressed acls, e.g. {@link Acl#decode}, {@link Acl#evaluateAccess},
+ * {@link BatchEvaluator} and {@link Acl#addAce}. Other users of the encoded
+ * form should call expand first.
+ *
+ * @author douglm
+ */
+public class AceDictionary {
+  /** First char of a compressed acl */
+  public static final char dictionaryFlag = 'D';
+
+  /** First char of a reference to a dictionary ace */
+  public static final char referenceFlag = 'R';
+
+  private static final int fileMagic = 0x42574144;  // "BWAD"
+  private static final int fileVersion = 1;
+
+  private static final Map<Integer, AceDictionary> dictionaries =
+          new ConcurrentHashMap<>();
+
+  private final int version;
+
+  /* Encoded aces by index */
+  private final String[] encodings;
+
+  /* Decoded aces by index */
+  private final Ace[] aces;
+
+  private final Map<String, Integer> indexes = new HashMap<>();
+
+  private static Access.AccessStatsEntry compressions =
+    new Access.AccessStatsEntry("Ace dictionary compressions");
+
+  private static Access.AccessStatsEntry referencesExpanded =
+    new Access.AccessStatsEntry("Ace dictionary references expanded");
+
+  /**
+   * @param version of the dictionary
+   * @param encodings the encoded aces - without inherited from paths
+   * @throws AccessException if an ace is malformed or inherited
+   */
+  public AceDictionary(final int version,
+                       final List<String> encodings) throws AccessException {
+    if (version < 0) {
+      throw new IllegalArgumentException("Negative dictionary version");
+    }
+
+    this.version = version;
+    this.encodings = encodings.toArray(new String[encodings.size()]);
+    aces = new Ace[this.encodings.length];
+
+    EncodedAcl eacl = new EncodedAcl();
+
+    for (int i = 0; i < aces.length; i++) {
+      eacl.setEncoded(this.encodings[i].toCharArray());
+
+      Ace ace = Ace.decode(eacl, null);
+
+      if (eacl.hasMore()) {
+        throw AccessException.badACE("dictionary entry " + i);
+      }
+
+      if (ace.getInheritedFrom() != null) {
+        throw AccessException.badACE("inherited dictionary entry " + i);
+      }
+
+      aces[i] = ace;
+      indexes.put(this.encodings[i], i);
+    }
+  }
+
+  /** Build a dictionary from the most common aces in a sample of acls.
+   *
+   * @param version of the dictionary
+   * @param acls sample of stored acls
+   * @param maxEntries maximum size of the dictionary
+   * @return the dictionary
+   * @throws AccessException for a malformed acl
+   */
+  public static AceDictionary build(final int version,
+                                    final Iterator<char[]> acls,
+                                    final int maxEntries)
+          throws AccessException {
+    final Map<String, Integer> counts = new HashMap<>();
+    AclView view = new AclView();
+
+    while (acls.hasNext()) {
+      char[] acl = expand(acls.next());
+
+      if (acl == null) {
+        continue;
+      }
+
+      view.reset(new String(acl));
+
+      while (view.hasMore()) {
+        AceView av = view.next();
+
+        if (av.isInherited()) {
+          continue;
+        }
+
+        String enc = new String(acl, av.getStart(),
+                                av.getEnd() - av.getStart());
+        Integer ct = counts.get(enc);
+
+        if (ct == null) {
+          counts.put(enc, 1);
+        } else {
+          counts.put(enc, ct + 1);
+        }
+      }
+    }
+
+    /* Keep those which save the most and appear more than once */
+    List<String> encs = new ArrayList<>();
+
+    for (Map.Entry<String, Integer> me: counts.entrySet()) {
+      if ((me.getValue() > 1) && (me.getKey().length() > 4)) {
+        encs.add(me.getKey());
+      }
+    }
+
+    Collections.sort(encs, new Comparator<String>() {
+      @Override
+      public int compare(final String o1, final String o2) {
+        long s1 = (long)counts.get(o1) * o1.length();
+        long s2 = (long)counts.get(o2) * o2.length();
+
+        if (s1 != s2) {
+          return s1 > s2 ? -1 : 1;
+        }
+
+        return o1.compareTo(o2);
+      }
+    });
+
+    if (encs.size() > maxEntries) {
+      encs = encs.subList(0, maxEntries);
+    }
+
+    return new AceDictionary(version, encs);
+  }
+
+  /** Get the statistics
+   *
+   * @return Collection of stats
+   */
+  public static Collection<Access.AccessStatsEntry> getStatistics() {
+    Collection<Access.AccessStatsEntry> stats = new ArrayList<>();
+
+    stats.add(compressions);
+    stats.add(referencesExpanded);
+
+    return stats;
+  }
+
+  /** Make the dictionary available to expand acls compressed with it,
+   * replacing any with the same version.
+   *
+   * @param dict the dictionary
+   */
+  public static void register(final AceDictionary dict) {
+    dictionaries.put(dict.getVersion(), dict);
+  }
+
+  /**
+   * @param version of the dictionary
+   * @return registered dictionary or null
+   */
+  public static AceDictionary getDictionary(final int version) {
+    return dictionaries.get(version);
+  }
+
+  /**
+   * @return version of the dictionary
+   */
+  public int getVersion() {
+    return version;
+  }
+
+  /**
+   * @return number of aces in the dictionary
+   */
+  public int size() {
+    return aces.length;
+  }
+
+  /**
+   * @param index of the ace
+   * @return the ace
+   */
+  public Ace getAce(final int index) {
+    return aces[index];
+  }
+
+  /**
+   * @param acl encoded acl - may be null
+   * @return true if the acl is compressed with a dictionary
+   */
+  public static boolean isCompressed(final char[] acl) {
+    if (acl == null) {
+      return false;
+    }
+
+    int start = AclSummary.getLength(acl);
+
+    return (acl.length > start) && (acl[start] == dictionaryFlag);
+  }
+
+  /** Replace aces in the dictionary by references. The acl is returned
+   * unchanged if it has none of them.
+   *
+   * @param acl encoded acl - may be null
+   * @return compressed acl
+   * @throws AccessException for a malformed acl
+   */
+  public char[] compress(final char[] acl) throws AccessException {
+    if ((acl == null) || isCompressed(acl)) {
+      return acl;
+    }
+
+    compressions.count++;
+
+    StringBuilder sb = new StringBuilder(acl.length);
+    boolean referenced = false;
+
+    // Any summary stays in front
+    sb.append(acl, 0, AclSummary.getLength(acl));
+    sb.append(dictionaryFlag);
+    sb.append(EncodedAcl.encodedLength(version));
+
+    AclView view = new AclView(new String(acl));
+
+    while (view.hasMore()) {
+      AceView av = view.next();
+      int len = av.getEnd() - av.getStart();
+      Integer index = null;
+
+      if (!av.isInherited()) {
+        index = indexes.get(new String(acl, av.getStart(), len));
+      }
+
+      if (index == null) {
+        sb.append(acl, av.getStart(), len);
+      } else {
+        sb.append(referenceFlag);
+        sb.append(EncodedAcl.encodedLength(index));
+        referenced = true;
+      }
+    }
+
+    if (!referenced) {
+      return acl;
+    }
+
+    char[] res = new char[sb.length()];
+    sb.getChars(0, res.length, res, 0);
+
+    return res;
+  }
+
+  /** Replace references by the aces they refer to. Acls which are not
+   * compressed are returned unchanged.
+   *
+   * @param acl encoded acl - may be null
+   * @return expanded acl
+   * @throws AccessException for a malformed acl or unknown dictionary
+   */
+  public static char[] expand(final char[] acl) throws AccessException {
+    if (!isCompressed(acl)) {
+      return acl;
+    }
+
+    EncodedAcl eacl = new EncodedAcl();
+    eacl.setEncoded(acl);
+
+    AclLimits limits = eacl.getLimits();
+    StringBuilder sb = new StringBuilder(acl.length * 2);
+
+    // Any summary stays in front
+    sb.append(acl, 0, eacl.getPos());
+
+    AceDictionary dict = getDictionary(eacl);
+
+    while (eacl.hasMore()) {
+      /* References can make the expanded acl much longer than the stored */
+      limits.checkAclLength(sb.length());
+
+      int pos = eacl.getPos();
+
+      if (eacl.getChar() == referenceFlag) {
+        sb.append(dict.encodings[dict.getIndex(eacl)]);
+        continue;
+      }
+
+      eacl.back();
+      AceWho.skip(eacl);
+      Privileges.skip(eacl);
+      eacl.back();
+
+      if (eacl.getChar() == PrivilegeDefs.inheritedFlag) {
+        eacl.skipString();
+        eacl.getChar();
+      }
+
+      sb.append(acl, pos, eacl.getPos() - pos);
+    }
+
+    limits.checkAclLength(sb.length());
+
+    char[] res = new char[sb.length()];
+    sb.getChars(0, res.length, res, 0);
+
+    return res;
+  }
+
+  /* ====================================================================
+   *                   Persistence
+   * ==================================================================== */
+
+  /** Write the dictionary to a file. The file is written alongside and
+   * moved over the old one in a single step so a crash leaves either the
+   * old or the new file in place.
+   *
+   * @param f file
+   * @throws IOException on error
+   */
+  public void write(final File f) throws IOException {
+    File tmp = new File(f.getPath() + ".tmp");
+
+    try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmp)))) {
+      out.writeInt(fileMagic);
+      out.writeInt(fileVersion);
+      out.writeInt(version);
+      out.writeInt(encodings.length);
+
+      for (String enc: encodings) {
+        out.writeInt(enc.length());
+        out.writeChars(enc);
+      }
+    }
+
+    Files.move(tmp.toPath(), f.toPath(),
+               StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Read a dictionary written by write. It is not registered.
+   *
+   * @param f file
+   * @return the dictionary
+   * @throws IOException on error or if the file is not a dictionary
+   */
+  public static AceDictionary read(final File f) throws IOException {
+    try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(f)))) {
+      if (in.readInt() != fileMagic) {
+        throw new IOException("Not an ace dictionary: " + f);
+      }
+
+      if (in.readInt() != fileVersion) {
+        throw new IOException("Unsupported ace dictionary version: " + f);
+      }
+
+      int version = in.readInt();
+      int num = in.readInt();
+      List<String> encs = new ArrayList<>(num);
+
+      for (int i = 0; i < num; i++) {
+        char[] enc = new char[in.readInt()];
+
+        for (int ci = 0; ci < enc.length; ci++) {
+          enc[ci] = in.readChar();
+        }
+
+        encs.add(new String(enc));
+      }
+
+      return new AceDictionary(version, encs);
+    } catch (AccessException ae) {
+      throw new IOException("Bad ace dictionary: " + f, ae);
+    }
+  }
+
+  /* ====================================================================
+   *                   Package methods
+   * ==================================================================== */
+
+  /* Decode a compressed acl. References are expanded to the dictionary
+   * aces or, if path is non-null, to copies inherited from path.
+   */
+  static List<Ace> decode(final char[] acl,
+                          final String path,
+                          final AclLimits limits) throws AccessException {
+    EncodedAcl eacl = new EncodedAcl();
+    eacl.setEncoded(acl);
+    eacl.setLimits(limits);
+
+    AceDictionary dict = getDictionary(eacl);
+    List<Ace> res = new ArrayList<>();
+
+    while (eacl.hasMore()) {
+      limits.checkAces(res.size() + 1);
+
+      if (eacl.getChar() != referenceFlag) {
+        eacl.back();
+        res.add(Ace.decode(eacl, path));
+        continue;
+      }
+
+      referencesExpanded.count++;
+
+      Ace ace = dict.aces[dict.getIndex(eacl)];
+
+      if (path != null) {
+        ace = Ace.makeAce(ace.getWho(), ace.getPrivs(), path);
+      }
+
+      res.add(ace);
+    }
+
+    return res;
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  /* Read the header of a compressed acl */
+  private static AceDictionary getDictionary(final EncodedAcl eacl)
+          throws AccessException {
+    if (eacl.getChar() != dictionaryFlag) {
+      throw AccessException.badACL("not compressed");
+    }
+
+    int version = eacl.getLength();
+    AceDictionary dict = getDictionary(version);
+
+    if (dict == null) {
+      throw AccessException.badACL("unknown ace dictionary " + version);
+    }
+
+    return dict;
+  }
+
+  private int getIndex(final EncodedAcl eacl) throws AccessException {
+    int index = eacl.getLength();
+
+    if (index >= aces.length) {
+      throw AccessException.badACL("ace dictionary index " + index);
+    }
+
+    return index;
+  }
+}
@@ -0,0 +1,435 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+/** A view of one ace of a text encoded acl, handed out by {@link AclView}.
+ * The name and inherited from path are slices of the acl - they are only
+ * turned into Strings if asked for with getNameString or toAce.
+ *
+ * <p>The privileges are given as masks with a bit for each privilege index
+ * set explicitly by the ace, as for {@link BinaryAclCodec}.
+ *
+ * <p>The view and its slices change when the AclView moves on.
+ *
+ * @author douglm
+ */
+public final class AceView implements PrivilegeDefs, WhoDefs {
+  private CharSequence acl;
+
+  private int start;
+  private int end;
+
+  private boolean notWho;
+  private int whoType;
+
+  private final Slice name = new Slice();
+  private boolean hasName;
+
+  private int allowedMask;
+  private int deniedMask;
+
+  private final Slice inheritedFrom = new Slice();
+  private boolean inherited;
+
+  /* Who type index for each who type flag or -1 */
+  private static final int[] whoTypeIndex = new int[128];
+
+  static {
+    for (int i = 0; i < whoTypeIndex.length; i++) {
+      whoTypeIndex[i] = -1;
+    }
+
+    for (int wt = 0; wt < whoTypeFlags.length; wt++) {
+      whoTypeIndex[whoTypeFlags[wt]] = wt;
+    }
+  }
+
+  AceView() {
+  }
+
+  /**
+   * @return true for a not who ace
+   */
+  public boolean getNotWho() {
+    return notWho;
+  }
+
+  /**
+   * @return who type from WhoDefs
+   */
+  public int getWhoType() {
+    return whoType;
+  }
+
+  /**
+   * @return the name as a slice of the acl or null for none
+   */
+  public CharSequence getName() {
+    if (!hasName) {
+      return null;
+    }
+
+    return name;
+  }
+
+  /**
+   * @return the name as a new String or null for none
+   */
+  public String getNameString() {
+    if (!hasName) {
+      return null;
+    }
+
+    return name.toString();
+  }
+
+  /** Compare the name with a value without creating a String
+   *
+   * @param val to compare - may be null
+   * @return true if the name has the same chars or both are null
+   */
+  public boolean nameEquals(final CharSequence val) {
+    if (!hasName || (val == null)) {
+      return !hasName && (val == null);
+    }
+
+    return name.contentEquals(val);
+  }
+
+  /**
+   * @return bits for privilege indexes allowed by the ace
+   */
+  public int getAllowedMask() {
+    return allowedMask;
+  }
+
+  /**
+   * @return bits for privilege indexes denied by the ace
+   */
+  public int getDeniedMask() {
+    return deniedMask;
+  }
+
+  /**
+   * @param privIndex privilege index
+   * @return allowed, denied or unspecified
+   */
+  public char getPrivilegeState(final int privIndex) {
+    int bit = 1 << privIndex;
+
+    if ((allowedMask & bit) != 0) {
+      return allowed;
+    }
+
+    if ((deniedMask & bit) != 0) {
+      return denied;
+    }
+
+    return unspecified;
+  }
+
+  /**
+   * @return true if the ace has an inherited from path
+   */
+  public boolean isInherited() {
+    return inherited;
+  }
+
+  /**
+   * @return inherited from path as a slice of the acl or null
+   */
+  public CharSequence getInheritedFrom() {
+    if (!inherited) {
+      return null;
+    }
+
+    return inheritedFrom;
+  }
+
+  /**
+   * @return offset of the ace in the acl
+   */
+  public int getStart() {
+    return start;
+  }
+
+  /**
+   * @return offset after the ace terminator in the acl
+   */
+  public int getEnd() {
+    return end;
+  }
+
+  /** Make an Ace object from the view.
+   *
+   * @return the ace
+   * @throws AccessException
+   */
+  public Ace toAce() throws AccessException {
+    String inh = null;
+
+    if (inherited) {
+      inh = inheritedFrom.toString();
+    }
+
+    return Ace.makeAce(AceWho.getAceWho(getNameString(), whoType, notWho),
+                       BinaryAclCodec.getPrivs(allowedMask, deniedMask),
+                       inh);
+  }
+
+  @Override
+  public String toString() {
+    return "AceView{" + acl.subSequence(start, end) + "}";
+  }
+
+  /* ====================================================================
+   *                   Package methods
+   * ==================================================================== */
+
+  /* Parse the ace at pos and return the offset after it */
+  int parse(final CharSequence val,
+            final int pos,
+            final AclLimits limits) throws AccessException {
+    acl = val;
+    start = pos;
+
+    int p = pos;
+    int len = acl.length();
+
+    if (len - p < 3) {
+      throw AccessException.badACLLength();
+    }
+
+    char c = acl.charAt(p);
+    p++;
+
+    if (c == notWhoFlag) {
+      notWho = true;
+    } else if (c == whoFlag) {
+      notWho = false;
+    } else {
+      throw AccessException.badACE("who/notWho flag");
+    }
+
+    c = acl.charAt(p);
+    p++;
+
+    if ((c >= whoTypeIndex.length) || (whoTypeIndex[c] < 0)) {
+      throw AccessException.badACE("who type");
+    }
+
+    whoType = whoTypeIndex[c];
+
+    p = parseString(p, name, limits);
+    hasName = name.start >= 0;
+
+    /* Apply each privilege in turn */
+    allowedMask = 0;
+    deniedMask = 0;
+    inherited = false;
+
+    for (;;) {
+      if (p >= len) {
+        throw AccessException.badACLLength();
+      }
+
+      c = acl.charAt(p);
+      p++;
+
+      if (c == ' ') {
+        break;
+      }
+
+      if (c == inheritedFlag) {
+        p = parseString(p, inheritedFrom, limits);
+        inherited = inheritedFrom.start >= 0;
+
+        if ((p >= len) || (acl.charAt(p) != ' ')) {
+          throw new AccessException("malformedAcl");
+        }
+
+        p++;
+        break;
+      }
+
+      boolean denial;
+
+      if ((c == denied) || (c == oldDenied)) {
+        denial = true;
+      } else if ((c == allowed) || (c == oldAllowed)) {
+        denial = false;
+      } else {
+        throw AccessException.badACE("privilege flag=" + c);
+      }
+
+      if (p >= len) {
+        throw AccessException.badACL("unknown priv");
+      }
+
+      int pi = Privileges.privIndex(acl.charAt(p));
+      p++;
+
+      if (pi < 0) {
+        throw AccessException.badACL("unknown priv");
+      }
+
+      int closure = Privileges.makePriv(pi).getClosureMask();
+
+      if (denial) {
+        deniedMask |= closure;
+        allowedMask &= ~closure;
+      } else {
+        allowedMask |= closure;
+        deniedMask &= ~closure;
+      }
+    }
+
+    end = p;
+
+    return p;
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  /* Point the slice at the encoded string at pos - start is -1 for null.
+   * Returns the offset after the string.
+   */
+  private int parseString(int pos,
+                          final Slice slice,
+                          final AclLimits limits) throws AccessException {
+    int len = acl.length();
+
+    if (pos >= len) {
+      throw AccessException.badACLLength();
+    }
+
+    if (acl.charAt(pos) == 'N') {
+      slice.set(acl, -1, 0);
+      return pos + 1;
+    }
+
+    int strLen = 0;
+
+    for (;;) {
+      if (pos >= len) {
+        throw AccessException.badACLLength();
+      }
+
+      char c = acl.charAt(pos);
+      pos++;
+
+      if (c == ' ') {
+        break;
+      }
+
+      if ((c < '0') || (c > '9')) {
+        throw AccessException.badACL("digit=" + c);
+      }
+
+      strLen = strLen * 10 + (c - '0');
+
+      if (strLen > len) {
+        throw AccessException.badACLLength();
+      }
+    }
+
+    limits.checkNameLength(strLen);
+
+    if (len - pos < strLen) {
+      throw AccessException.badACLLength();
+    }
+
+    slice.set(acl, pos, strLen);
+
+    return pos + strLen;
+  }
+
+  /* A part of the acl */
+  private static class Slice implements CharSequence {
+    private CharSequence chars;
+    int start;
+    private int length;
+
+    Slice() {
+    }
+
+    Slice(final CharSequence chars,
+          final int start,
+          final int length) {
+      set(chars, start, length);
+    }
+
+    void set(final CharSequence chars,
+             final int start,
+             final int length) {
+      this.chars = chars;
+      this.start = start;
+      this.length = length;
+    }
+
+    boolean contentEquals(final CharSequence val) {
+      if (val.length() != length) {
+        return false;
+      }
+
+      for (int i = 0; i < length; i++) {
+        if (chars.charAt(start + i) != val.charAt(i)) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+
+    @Override
+    public int length() {
+      return length;
+    }
+
+    @Override
+    public char charAt(final int index) {
+      if ((index < 0) || (index >= length)) {
+        throw new IndexOutOfBoundsException(String.valueOf(index));
+      }
+
+      return chars.charAt(start + index);
+    }
+
+    @Override
+    public CharSequence subSequence(final int from,
+                                    final int to) {
+      if ((from < 0) || (to > length) || (from > to)) {
+        throw new IndexOutOfBoundsException(from + ", " + to);
+      }
+
+      return new Slice(chars, start + from, to - from);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder(length);
+
+      sb.append(chars, start, start + length);
+
+      return sb.toString();
+    }
+  }
+}
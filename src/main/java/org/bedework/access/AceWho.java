@@ -196,6 +196,195 @@ public final class AceWho implements WhoDefs, Comparable<AceWho> {
     return getAceWho(acl.getString(), whoType, notWho);
   }
 
+  /** Parse the who part of an encoded ace without creating any objects.
+   * Sets parsed[0] to 1 for a not ace, parsed[1] to the who type,
+   * parsed[2] and parsed[3] to the start and length of the name (length -1
+   * for no name) and returns the position after the who.
+   *
+   * @param acl       encoded acl
+   * @param pos       start of the ace
+   * @param parsed    at least 4 ints
+   * @return position after the who
+   * @throws AccessException for a malformed acl
+   */
+  static int parseEncoded(final char[] acl,
+                          int pos,
+                          final int[] parsed) throws AccessException {
+    if (pos + 2 >= acl.length) {
+      throw AccessException.badACLLength();
+    }
+
+    char c = acl[pos];
+
+    if (c == notWhoFlag) {
+      parsed[0] = 1;
+    } else if (c == whoFlag) {
+      parsed[0] = 0;
+    } else {
+      throw AccessException.badACE("who/notWho flag");
+    }
+
+    c = acl[pos + 1];
+    parsed[1] = -1;
+
+    for (int wt = 0; wt < whoTypeFlags.length; wt++) {
+      if (c == whoTypeFlags[wt]) {
+        parsed[1] = wt;
+        break;
+      }
+    }
+
+    if (parsed[1] < 0) {
+      throw AccessException.badACE("who type");
+    }
+
+    pos += 2;
+
+    if (acl[pos] == 'N') {
+      parsed[2] = pos;
+      parsed[3] = -1;
+      return pos + 1;
+    }
+
+    int len = 0;
+
+    for (;;) {
+      if (pos >= acl.length) {
+        throw AccessException.badACLLength();
+      }
+
+      c = acl[pos];
+      pos++;
+
+      if (c == ' ') {
+        break;
+      }
+
+      if ((c < '0') || (c > '9')) {
+        throw AccessException.badACL("digit=" + c);
+      }
+
+      len = len * 10 + (c - '0');
+
+      if (len > acl.length) {
+        throw AccessException.badACLLength();
+      }
+    }
+
+    if ((acl.length - pos) < len) {
+      throw AccessException.badACLLength();
+    }
+
+    parsed[2] = pos;
+    parsed[3] = len;
+
+    return pos + len;
+  }
+
+  /** Compare this with the who of an encoded ace parsed by parseEncoded.
+   * The result is the same as compareTo with the decoded who.
+   *
+   * @param acl       encoded acl
+   * @param parsed    from parseEncoded
+   * @return int
+   */
+  int compareTo(final char[] acl, final int[] parsed) {
+    boolean thatNotWho = parsed[0] != 0;
+
+    if (notWho != thatNotWho) {
+      if (notWho) {
+        return -1;
+      }
+      return 1;
+    }
+
+    if (whoType != parsed[1]) {
+      return (whoType < parsed[1]) ? -1 : 1;
+    }
+
+    if (!whoTypeNamed[whoType]) {
+      return 0;
+    }
+
+    int thatLen = parsed[3];
+
+    if ((who == null) && (thatLen < 0)) {
+      return 0;
+    }
+
+    if (who == null) {
+      return -1;
+    }
+
+    if (thatLen < 0) {
+      return 1;
+    }
+
+    // As String.compareTo
+    int n = Math.min(who.length(), thatLen);
+    int start = parsed[2];
+
+    for (int i = 0; i < n; i++) {
+      char c1 = who.charAt(i);
+      char c2 = acl[start + i];
+
+      if (c1 != c2) {
+        return c1 - c2;
+      }
+    }
+
+    return who.length() - thatLen;
+  }
+
+  /** Compare the whos of two encoded aces parsed by parseEncoded.
+   *
+   * @param acl       encoded acl
+   * @param parsed1   from parseEncoded
+   * @param parsed2   from parseEncoded
+   * @return int
+   */
+  static int compareEncoded(final char[] acl,
+                            final int[] parsed1,
+                            final int[] parsed2) {
+    if (parsed1[0] != parsed2[0]) {
+      return (parsed1[0] != 0) ? -1 : 1;
+    }
+
+    int wt = parsed1[1];
+
+    if (wt != parsed2[1]) {
+      return (wt < parsed2[1]) ? -1 : 1;
+    }
+
+    if (!whoTypeNamed[wt]) {
+      return 0;
+    }
+
+    int len1 = parsed1[3];
+    int len2 = parsed2[3];
+
+    if ((len1 < 0) || (len2 < 0)) {
+      if (len1 == len2) {
+        return 0;
+      }
+
+      return (len1 < 0) ? -1 : 1;
+    }
+
+    int n = Math.min(len1, len2);
+
+    for (int i = 0; i < n; i++) {
+      char c1 = acl[parsed1[2] + i];
+      char c2 = acl[parsed2[2] + i];
+
+      if (c1 != c2) {
+        return c1 - c2;
+      }
+    }
+
+    return len1 - len2;
+  }
+
   /** Provide a string representation for user display - this should probably
    * use a localized resource and be part of a display level. It also requires
    * the Privilege objects
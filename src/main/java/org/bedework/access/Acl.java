@@ -18,15 +18,18 @@
 */
 package org.bedework.access;
 
-import org.bedework.util.caching.ObjectPool;
 import org.bedework.util.misc.Util;
 
 import org.apache.log4j.Logger;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.TreeMap;
 
 /** Immutable object to represent an acl for a calendar entity or service.
@@ -53,11 +56,8 @@ import java.util.TreeMap;
 public class Acl extends EncodedAcl implements PrivilegeDefs {
   static boolean debug;
 
-  private TreeMap<AceWho, Ace> aces;
-
-  private static ObjectPool<PrivilegeSet> privSets = new ObjectPool<PrivilegeSet>();
-
-  private static boolean usePool = false;
+  /* Sorted by AceWho with no duplicates */
+  private Ace[] aces;
 
   private static Access.AccessStatsEntry evaluations =
     new Access.AccessStatsEntry("evaluations");
@@ -69,11 +69,20 @@ public class Acl extends EncodedAcl implements PrivilegeDefs {
   public Acl(final Collection<Ace> aces) {
     debug = getLog().isDebugEnabled();
 
-    this.aces = new TreeMap<AceWho, Ace>();
+    TreeMap<AceWho, Ace> sorted = new TreeMap<AceWho, Ace>();
 
     for (Ace ace: aces) {
-      this.aces.put(ace.getWho(), ace);
+      sorted.put(ace.getWho(), ace);
     }
+
+    this.aces = sorted.values().toArray(new Ace[sorted.size()]);
+  }
+
+  /* aces must be sorted by AceWho with no duplicates */
+  private Acl(final Ace[] aces) {
+    debug = getLog().isDebugEnabled();
+
+    this.aces = aces;
   }
 
   /** Get the access statistics
@@ -84,7 +93,19 @@ public class Acl extends EncodedAcl implements PrivilegeDefs {
     Collection<Access.AccessStatsEntry> stats = new ArrayList<Access.AccessStatsEntry>();
 
     stats.add(evaluations);
+    stats.addAll(EncodedAcl.getStatistics());
     stats.addAll(Ace.getStatistics());
+    stats.addAll(PrivilegeSet.getStatistics());
+    stats.addAll(EncodedAclEvaluator.getStatistics());
+    stats.addAll(BatchEvaluator.getStatistics());
+    stats.addAll(CompiledAcl.getStatistics());
+    stats.addAll(AclResolver.getStatistics());
+    stats.addAll(AclRewriter.getStatistics());
+    stats.addAll(AclStore.getStatistics());
+    stats.addAll(AceDictionary.getStatistics());
+    stats.addAll(AclValidator.getStatistics());
+    stats.addAll(AclSummary.getStatistics());
+    stats.addAll(AclProjection.getStatistics());
     stats.addAll(EvaluatedAccessCache.getStatistics());
 
     return stats;
@@ -127,12 +148,35 @@ public class Acl extends EncodedAcl implements PrivilegeDefs {
       this.accessAllowed = accessAllowed;
     }
 
+    /* Result of evaluating the encoded form - the acl is decoded on demand
+     */
+    CurrentAccess(final char[] aclChars,
+                  final PrivilegeSet privileges,
+                  final boolean accessAllowed) {
+      this.aclChars = aclChars;
+      this.privileges = privileges;
+      this.accessAllowed = accessAllowed;
+    }
+
+    /* The encoded acl used to evaluate the access */
+    char[] getAclChars() {
+      return aclChars;
+    }
+
     /** The Acl used to evaluate the access. We should not necessarily
      * make this available to the client.
      *
      * @return acl
      */
     public Acl getAcl() {
+      if ((acl == null) && (aclChars != null)) {
+        try {
+          acl = decode(aclChars);
+        } catch (Throwable t) {
+          getLog().error("Unable to decode acl", t);
+        }
+      }
+
       return acl;
     }
 
@@ -257,6 +301,11 @@ public class Acl extends EncodedAcl implements PrivilegeDefs {
    * <li>Otherwise apply defaults - for the owner full acccess, for any others no
    * access</li>
    *
+   * <p>The fingerprint of the acl is computed on every call as the
+   * caller may have changed the chars since the last one. Callers which
+   * evaluate the same acl repeatedly should hold it in an EncodedAcl, or
+   * keep the fingerprint, and use one of the methods below.
+   *
    * @param cb
    * @param who
    * @param owner
@@ -273,49 +322,143 @@ public class Acl extends EncodedAcl implements PrivilegeDefs {
                                              final char[] aclChars,
                                              final PrivilegeSet filter)
           throws AccessException {
-    String aclString = new String(aclChars);
+    return evaluateAccess(cb, who, owner, how, aclChars,
+                          AclFingerprint.compute(aclChars), filter);
+  }
+
+  /** Evaluate access as for evaluateAccess above with the fingerprint
+   * held by the EncodedAcl, so it is only computed the first time.
+   *
+   * @param cb
+   * @param who
+   * @param owner
+   * @param how
+   * @param acl       holds the encoded acl
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   * @throws AccessException
+   */
+  public static CurrentAccess evaluateAccess(final Access.AccessCb cb,
+                                             final AccessPrincipal who,
+                                             final AccessPrincipal owner,
+                                             final Privilege[] how,
+                                             final EncodedAcl acl,
+                                             final PrivilegeSet filter)
+          throws AccessException {
+    return evaluateAccess(cb, who, owner, how, acl.getEncoded(),
+                          acl.getFingerprint(), filter);
+  }
+
+  /** Evaluate access as for evaluateAccess above with the fingerprint of
+   * the acl already computed.
+   *
+   * @param cb
+   * @param who
+   * @param owner
+   * @param how
+   * @param aclChars
+   * @param fingerprint from AclFingerprint.compute(aclChars)
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   * @throws AccessException
+   */
+  public static CurrentAccess evaluateAccess(final Access.AccessCb cb,
+                                             final AccessPrincipal who,
+                                             final AccessPrincipal owner,
+                                             final Privilege[] how,
+                                             final char[] aclChars,
+                                             final long fingerprint,
+                                             final PrivilegeSet filter)
+          throws AccessException {
     PrivilegeSet howPriv = PrivilegeSet.makePrivilegeSet(how);
 
     CurrentAccess ca = EvaluatedAccessCache.get(owner.getPrincipalRef(),
                                                 who.getPrincipalRef(),
                                                 howPriv, filter,
-                                                aclString);
+                                                aclChars, fingerprint);
 
     if (ca != null) {
       return ca;
     }
 
-    ca = evaluateAccessInt(cb, who, owner, how, aclChars, filter);
+    evaluations.count++;
+
+    if (debug) {
+      // Full decode gives us the diagnostics
+      ca = decodedAccess(cb, who, owner, how, aclChars, filter);
+    } else {
+      ca = EncodedAclEvaluator.evaluate(cb, who, owner, how,
+                                        AceDictionary.expand(aclChars),
+                                        filter);
+    }
 
     if (ca == null) {
       return null;
     }
 
+    /* The cache compares the acl as given. Keep our own copy as callers
+     * may reuse their buffer.
+     */
+    if (aclChars != null) {
+      ca.aclChars = aclChars.clone();
+    }
+
     EvaluatedAccessCache.put(owner.getPrincipalRef(),
                              who.getPrincipalRef(),
                              howPriv, filter,
-                             aclString,
+                             fingerprint,
                              ca);
 
     return ca;
   }
 
-  private static CurrentAccess evaluateAccessInt(final Access.AccessCb cb,
-                                                 final AccessPrincipal who,
-                                                 final AccessPrincipal owner,
-                                                 final Privilege[] how,
-                                                 final char[] aclChars,
-                                                 final PrivilegeSet filter)
+  /** Evaluate access as described for evaluateAccess by fully decoding the
+   * acl into Ace objects. The result is not cached.
+   *
+   * <p>{@link EncodedAclEvaluator} gives the same result without decoding
+   * and is used by evaluateAccess unless debugging is enabled.
+   *
+   * @param cb
+   * @param who
+   * @param owner
+   * @param how
+   * @param aclChars
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   * @throws AccessException
+   */
+  public static CurrentAccess evaluateDecodedAccess(final Access.AccessCb cb,
+                                                    final AccessPrincipal who,
+                                                    final AccessPrincipal owner,
+                                                    final Privilege[] how,
+                                                    final char[] aclChars,
+                                                    final PrivilegeSet filter)
             throws AccessException {
     evaluations.count++;
 
+    return decodedAccess(cb, who, owner, how, aclChars, filter);
+  }
+
+  /* As evaluateDecodedAccess but not counted - for callers which have
+   * already counted the evaluation.
+   */
+  static CurrentAccess decodedAccess(final Access.AccessCb cb,
+                                     final AccessPrincipal who,
+                                     final AccessPrincipal owner,
+                                     final Privilege[] how,
+                                     final char[] aclChars,
+                                     final PrivilegeSet filter)
+            throws AccessException {
     boolean authenticated = !who.getUnauthenticated();
     boolean isOwner = false;
     CurrentAccess ca = new CurrentAccess();
 
     Acl acl = decode(aclChars);
     ca.acl = acl;
-    ca.aclChars = aclChars;
+
+    if (aclChars != null) {
+      ca.aclChars = aclChars.clone();
+    }
 
     if (authenticated) {
       isOwner = who.equals(owner);
@@ -504,10 +647,6 @@ public class Acl extends EncodedAcl implements PrivilegeDefs {
       ca.privileges = PrivilegeSet.filterPrivileges(ca.privileges, filter);
     }
 
-    if (usePool) {
-      ca.privileges = privSets.get(ca.privileges);
-    }
-
     if (how.length == 0) {
       // Means any access will do
 
@@ -562,7 +701,7 @@ public class Acl extends EncodedAcl implements PrivilegeDefs {
       return null;
     }
 
-    return Collections.unmodifiableCollection(aces.values());
+    return Collections.unmodifiableList(Arrays.asList(aces));
   }
 
   /** Remove access for a given 'who' entry
@@ -577,28 +716,201 @@ public class Acl extends EncodedAcl implements PrivilegeDefs {
     }
 
     /* Prescan looking for who */
-    boolean contains = false;
+    int pos = -1;
 
-    for (Ace a: getAces()) {
-      if (who.equals(a.getWho())) {
-        contains = true;
+    for (int i = 0; i < aces.length; i++) {
+      if (who.equals(aces[i].getWho())) {
+        pos = i;
         break;
       }
     }
 
-    if (!contains) {
+    if (pos < 0) {
     	return null;
     }
 
+    Ace[] newAces = new Ace[aces.length - 1];
+
+    System.arraycopy(aces, 0, newAces, 0, pos);
+    System.arraycopy(aces, pos + 1, newAces, pos, aces.length - pos - 1);
+
+    return new Acl(newAces);
+  }
+
+  /** Add an ace to an encoded acl, replacing any ace for the same who.
+   * The result is the same as decoding, adding the ace and encoding but
+   * normally the new ace is just spliced into the existing encoding.
+   *
+   * <p>A compressed acl is accepted but the result is not compressed.
+   *
+   * @param aclChars  encoded acl - may be null
+   * @param ace       to add - must not be inherited
+   * @return new encoded acl
+   * @throws AccessException
+   */
+  public static char[] addAce(final char[] aclChars,
+                              final Ace ace) throws AccessException {
+    if (ace.getInheritedFrom() != null) {
+      throw AccessException.badACE("inherited");
+    }
+
+    return splice(aclChars, ace.getWho(), ace);
+  }
+
+  /** Remove the ace for a given who from an encoded acl. The result is the
+   * same as decoding, removing the ace and encoding.
+   *
+   * <p>A compressed acl is accepted but the result is not compressed.
+   *
+   * @param aclChars  encoded acl - may be null
+   * @param who       to remove
+   * @return new encoded acl - null if no aces remain
+   * @throws AccessException
+   */
+  public static char[] removeWho(final char[] aclChars,
+                                 final AceWho who) throws AccessException {
+    return splice(aclChars, who, null);
+  }
+
+  /* Replace the ace for who with the new ace, which may be null to just
+   * remove it.
+   *
+   * We can only splice into acls in the form we encode them: sorted, no
+   * inherited aces and the current privilege flags. Otherwise we do it the
+   * slow way. So do anything decoding would reject, e.g. an unknown
+   * privilege, so the error is the same.
+   *
+   * Any summary is dropped as it no longer describes the aces. A compressed
+   * acl is expanded first so the result is not compressed.
+   */
+  private static char[] splice(final char[] stored,
+                               final AceWho who,
+                               final Ace ace) throws AccessException {
+    char[] aclChars = AceDictionary.expand(stored);
+
+    char[] replacement = null;
+    if (ace != null) {
+      replacement = ace.getEncodingChars();
+    }
+
+    if (aclChars == null) {
+      if (replacement == null) {
+        return null;
+      }
+
+      return replacement.clone();
+    }
+
+    int[] parsed = new int[4];
+    int[] lastParsed = new int[4];
+    boolean first = true;
+
+    int begin = AclSummary.getLength(aclChars);
+    int pos = begin;
+    int replaceStart = aclChars.length;
+    int replaceEnd = aclChars.length;
+    boolean placed = false;
+
+    while (pos < aclChars.length) {
+      int aceStart = pos;
+
+      pos = AceWho.parseEncoded(aclChars, pos, parsed);
+
+      if (!first && (AceWho.compareEncoded(aclChars,
+                                           lastParsed, parsed) >= 0)) {
+        return spliceSlowly(aclChars, who, ace);
+      }
+
+      first = false;
+      System.arraycopy(parsed, 0, lastParsed, 0, parsed.length);
+
+      /* ------------------- privileges ------------------- */
+      for (;;) {
+        if (pos >= aclChars.length) {
+          throw AccessException.badACLLength();
+        }
+
+        char c = aclChars[pos];
+        pos++;
+
+        if (c == ' ') {
+          break;
+        }
+
+        if ((c != allowed) && (c != denied)) {
+          // Inherited or old style flags
+          return spliceSlowly(aclChars, who, ace);
+        }
+
+        if ((pos >= aclChars.length) ||
+            (Privileges.privIndex(aclChars[pos]) < 0)) {
+          // Not a privilege - decoding reports the error
+          return spliceSlowly(aclChars, who, ace);
+        }
+
+        pos++;  // The privilege
+      }
+
+      if (placed) {
+        continue;
+      }
+
+      int cmp = who.compareTo(aclChars, parsed);
+
+      if (cmp == 0) {
+        replaceStart = aceStart;
+        replaceEnd = pos;
+        placed = true;
+      } else if (cmp < 0) {
+        replaceStart = aceStart;
+        replaceEnd = aceStart;
+        placed = true;
+      }
+    }
+
+    int replLen = 0;
+    if (replacement != null) {
+      replLen = replacement.length;
+    }
+
+    int headLen = replaceStart - begin;
+    int len = headLen + replLen + (aclChars.length - replaceEnd);
+
+    if (len == 0) {
+      return null;
+    }
+
+    char[] res = new char[len];
+
+    System.arraycopy(aclChars, begin, res, 0, headLen);
+
+    if (replacement != null) {
+      System.arraycopy(replacement, 0, res, headLen, replLen);
+    }
+
+    System.arraycopy(aclChars, replaceEnd, res, headLen + replLen,
+                     aclChars.length - replaceEnd);
+
+    return res;
+  }
+
+  private static char[] spliceSlowly(final char[] aclChars,
+                                     final AceWho who,
+                                     final Ace ace)
+          throws AccessException {
     Collection<Ace> aces = new ArrayList<Ace>();
 
-    for (Ace a: getAces()) {
+    for (Ace a: decode(aclChars).getAces()) {
       if (!who.equals(a.getWho())) {
         aces.add(a);
       }
     }
 
-    return new Acl(aces);
+    if (ace != null) {
+      aces.add(ace);
+    }
+
+    return new Acl(aces).encode();
   }
 
   /* ====================================================================
@@ -638,18 +950,48 @@ public class Acl extends EncodedAcl implements PrivilegeDefs {
    * @throws AccessException
    */
   public static Acl decode(final char[] val, final String path) throws AccessException {
-    EncodedAcl eacl = new EncodedAcl();
-    eacl.setEncoded(val);
-
-    Collection<Ace> aces = new ArrayList<Ace>();
+    return new Acl(decodeSorted(val, path, AclLimits.getDefault()));
+  }
 
-    while (eacl.hasMore()) {
-      Ace ace = Ace.decode(eacl, path);
+  /** Given an encoded acl convert to an ordered sequence of fully expanded
+   * ace objects, failing if the acl exceeds the given limits.
+   *
+   * @param val char[] val to decode
+   * @param path
+   * @param limits on the size of the acl
+   * @return decoded Acl
+   * @throws AccessException
+   */
+  public static Acl decode(final char[] val, final String path,
+                           final AclLimits limits) throws AccessException {
+    return new Acl(decodeSorted(val, path, limits));
+  }
 
-      aces.add(ace);
+  /** Given an acl encoded as bytes convert to an ordered sequence of fully
+   * expanded ace objects. The bytes may be the binary encoding produced by
+   * encodeBinary or the UTF-8 bytes of the text encoding.
+   *
+   * @param val byte[] val to decode
+   * @return decoded Acl
+   * @throws AccessException
+   */
+  public static Acl decode(final byte[] val) throws AccessException {
+    if (BinaryAclCodec.isBinary(val)) {
+      return decode(ByteBuffer.wrap(val));
     }
 
-    return new Acl(aces);
+    return decode(new String(val, Charset.forName("UTF-8")).toCharArray());
+  }
+
+  /** Given a binary encoded acl convert to an ordered sequence of fully
+   * expanded ace objects. The buffer is left positioned after the acl.
+   *
+   * @param val buffer positioned at the binary encoding
+   * @return decoded Acl
+   * @throws AccessException
+   */
+  public static Acl decode(final ByteBuffer val) throws AccessException {
+    return new Acl(BinaryAclCodec.decode(val));
   }
 
   /** Given an encoded acl create a new merged version. This process
@@ -685,26 +1027,125 @@ public class Acl extends EncodedAcl implements PrivilegeDefs {
    * @throws AccessException
    */
   public Acl merge(final char[] val, final String path) throws AccessException {
-    Collection<Ace> newAces = new ArrayList<Ace>();
+    return mergeAncestors(new char[][]{val}, new String[]{path});
+  }
+
+  /** Merge the acls of a chain of ancestors in one pass. The result is the
+   * same as calling merge for each ancestor in turn, starting with the
+   * parent.
+   *
+   * <p>As the aces of each acl are sorted this is a merge of sorted lists.
+   * When more than one acl has an ace for the same who the one nearest the
+   * entity is taken.
+   *
+   * @param vals   encoded acls of the ancestors - parent first
+   * @param paths  paths of the ancestors to flag the inheritance
+   * @return merged Acl
+   * @throws AccessException
+   */
+  public Acl mergeAncestors(final char[][] vals,
+                            final String[] paths) throws AccessException {
+    int num = vals.length + 1;
+    Ace[][] lists = new Ace[num][];
+    int[] pos = new int[num];
+    int total = 0;
+
+    lists[0] = aces;
+    if (lists[0] == null) {
+      lists[0] = new Ace[0];
+    }
+    total += lists[0].length;
+
+    for (int i = 1; i < num; i++) {
+      lists[i] = decodeSorted(vals[i - 1], paths[i - 1],
+                              AclLimits.getDefault());
+      total += lists[i].length;
+    }
+
+    Ace[] merged = new Ace[total];
+    int mergedLen = 0;
 
-    newAces.addAll(getAces());
+    for (;;) {
+      /* Find the lowest who at the head of the lists - the first list
+       * holding it takes precedence */
+      int lowest = -1;
+      AceWho lowestWho = null;
 
-    Acl encAcl = decode(val, path);
+      for (int i = 0; i < num; i++) {
+        if (pos[i] == lists[i].length) {
+          continue;
+        }
+
+        AceWho w = lists[i][pos[i]].getWho();
 
-    domerge:
-    for (Ace a: encAcl.getAces()) {
-      for (Ace ace: newAces) {
-        if (a.getWho().equals(ace.getWho())) {
-          // Take the child entry
-          continue domerge;
+        if ((lowest < 0) || (w.compareTo(lowestWho) < 0)) {
+          lowest = i;
+          lowestWho = w;
         }
       }
 
-      // Not in child - add from the parent
-      newAces.add(a);
+      if (lowest < 0) {
+        break;
+      }
+
+      merged[mergedLen] = lists[lowest][pos[lowest]];
+      mergedLen++;
+
+      // Skip the same who in the more distant acls
+      for (int i = lowest; i < num; i++) {
+        if ((pos[i] < lists[i].length) &&
+            lists[i][pos[i]].getWho().equals(lowestWho)) {
+          pos[i]++;
+        }
+      }
     }
 
-    return new Acl(newAces);
+    if (mergedLen < total) {
+      merged = Arrays.copyOf(merged, mergedLen);
+    }
+
+    return new Acl(merged);
+  }
+
+  /* Decode into aces sorted by who. Encoded acls are normally already
+   * sorted so we only sort if we find they are not.
+   */
+  private static Ace[] decodeSorted(final char[] val,
+                                    final String path,
+                                    final AclLimits limits) throws AccessException {
+    if (val != null) {
+      limits.checkAclLength(val.length);
+    }
+
+    if (AceDictionary.isCompressed(val)) {
+      return sorted(AceDictionary.decode(val, path, limits));
+    }
+
+    EncodedAcl eacl = new EncodedAcl();
+    eacl.setEncoded(val);
+    eacl.setLimits(limits);
+
+    ArrayList<Ace> decoded = new ArrayList<Ace>();
+
+    while (eacl.hasMore()) {
+      limits.checkAces(decoded.size() + 1);
+      decoded.add(Ace.decode(eacl, path));
+    }
+
+    return sorted(decoded);
+  }
+
+  /* The aces as a sorted array - only sorted if they're out of order */
+  private static Ace[] sorted(final List<Ace> decoded) {
+    for (int i = 1; i < decoded.size(); i++) {
+      AceWho last = decoded.get(i - 1).getWho();
+
+      if (last.compareTo(decoded.get(i).getWho()) >= 0) {
+        return new Acl(decoded).aces;
+      }
+    }
+
+    return decoded.toArray(new Ace[decoded.size()]);
   }
 
   /* * Given a decoded acl merge it into this objects ace list. This process
@@ -749,19 +1190,25 @@ public class Acl extends EncodedAcl implements PrivilegeDefs {
    * @throws AccessException
    */
   public char[] encode() throws AccessException {
-    startEncoding();
-
     if (aces == null) {
       return null;
     }
 
-    for (Ace ace: aces.values()) {
-      if (ace.getInheritedFrom() == null) {
-        ace.encode(this);
+    EncodedAcl eacl = getEncoder();
+
+    try {
+      eacl.startEncoding();
+
+      for (Ace ace: aces) {
+        if (ace.getInheritedFrom() == null) {
+          ace.encode(eacl);
+        }
       }
-    }
 
-    return getEncoding();
+      return eacl.getEncoding();
+    } finally {
+      eacl.releaseEncoder();
+    }
   }
 
   /** Encode this object after manipulation or creation. Inherited entries
@@ -786,17 +1233,51 @@ public class Acl extends EncodedAcl implements PrivilegeDefs {
    * @throws AccessException
    */
   public char[] encodeAll() throws AccessException {
-    startEncoding();
-
     if (aces == null) {
       return null;
     }
 
-    for (Ace ace: aces.values()) {
-      ace.encode(this);
+    EncodedAcl eacl = getEncoder();
+
+    try {
+      eacl.startEncoding();
+
+      for (Ace ace: aces) {
+        ace.encode(eacl);
+      }
+
+      return eacl.getEncoding();
+    } finally {
+      eacl.releaseEncoder();
+    }
+  }
+
+  /** Encode this object in the binary form. Inherited entries will be
+   * skipped.
+   *
+   * @return byte[] binary encoding
+   * @see BinaryAclCodec
+   */
+  public byte[] encodeBinary() {
+    return BinaryAclCodec.encode(binaryAces(), false);
+  }
+
+  /** Encode this object in the binary form. Inherited entries will NOT be
+   * skipped.
+   *
+   * @return byte[] binary encoding
+   * @see BinaryAclCodec
+   */
+  public byte[] encodeBinaryAll() {
+    return BinaryAclCodec.encode(binaryAces(), true);
+  }
+
+  private Collection<Ace> binaryAces() {
+    if (aces == null) {
+      return Collections.emptyList();
     }
 
-    return getEncoding();
+    return Arrays.asList(aces);
   }
 
   /* ====================================================================
@@ -814,7 +1295,7 @@ public class Acl extends EncodedAcl implements PrivilegeDefs {
     try {
       decode(getEncoded());
 
-      for (Ace ace: aces.values()) {
+      for (Ace ace: aces) {
         sb.append(ace.toString());
         sb.append(" ");
       }
@@ -847,7 +1328,7 @@ public class Acl extends EncodedAcl implements PrivilegeDefs {
           decode(getEncoded());
         }
 
-        for (Ace ace: aces.values()) {
+        for (Ace ace: aces) {
           sb.append("\n");
           sb.append(ace.toString());
         }
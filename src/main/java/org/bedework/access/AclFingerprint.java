@@ -0,0 +1,142 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+/** A 64 bit fingerprint of an encoded acl. Caches can key on the
+ * fingerprint rather than the text of the acl, comparing the text only to
+ * confirm a hit.
+ *
+ * <p>Callers which store the encoded acl may store the fingerprint with it
+ * and pass it to the evaluateAccess methods which take one, or hold the acl
+ * in an {@link EncodedAcl}, which computes it once.
+ *
+ * <p>The chars are mixed four at a time in the style of MurmurHash3. This
+ * is not a cryptographic hash - use {@link AclStore} for that.
+ *
+ * @author douglm
+ */
+public final class AclFingerprint {
+  private static final long c1 = 0x87c37b91114253d5L;
+  private static final long c2 = 0x4cf5ad432745937fL;
+  private static final long seed = 0x62772d616363L;  // "bw-acc"
+
+  private AclFingerprint() {
+  }
+
+  /**
+   * @param acl encoded acl - may be null
+   * @return fingerprint
+   */
+  public static long compute(final char[] acl) {
+    if (acl == null) {
+      return 0;
+    }
+
+    return compute(seed, acl, 0, acl.length);
+  }
+
+  /**
+   * @param acl encoded acl - may be null
+   * @return fingerprint - the same as for the chars of the String
+   */
+  public static long compute(final String acl) {
+    if (acl == null) {
+      return 0;
+    }
+
+    long h = seed;
+    int len = acl.length();
+    int i = 0;
+
+    while (i + 4 <= len) {
+      long k = acl.charAt(i) |
+               ((long)acl.charAt(i + 1) << 16) |
+               ((long)acl.charAt(i + 2) << 32) |
+               ((long)acl.charAt(i + 3) << 48);
+
+      h = mixBlock(h, k);
+      i += 4;
+    }
+
+    long k = 0;
+    for (int shift = 0; i < len; i++, shift += 16) {
+      k |= (long)acl.charAt(i) << shift;
+    }
+
+    return finish(h, k, len);
+  }
+
+  /* Fingerprint of the chars in [from, to) starting from the given seed */
+  static long compute(final long start,
+                      final char[] acl,
+                      final int from,
+                      final int to) {
+    long h = start;
+    int len = to - from;
+    int i = from;
+
+    while (i + 4 <= to) {
+      long k = acl[i] |
+               ((long)acl[i + 1] << 16) |
+               ((long)acl[i + 2] << 32) |
+               ((long)acl[i + 3] << 48);
+
+      h = mixBlock(h, k);
+      i += 4;
+    }
+
+    long k = 0;
+    for (int shift = 0; i < to; i++, shift += 16) {
+      k |= (long)acl[i] << shift;
+    }
+
+    return finish(h, k, len);
+  }
+
+  private static long mixBlock(long h, long k) {
+    k *= c1;
+    k = Long.rotateLeft(k, 31);
+    k *= c2;
+
+    h ^= k;
+    h = Long.rotateLeft(h, 27);
+
+    return h * 5 + 0x52dce729;
+  }
+
+  private static long finish(long h, long k, final int len) {
+    if (k != 0) {
+      k *= c1;
+      k = Long.rotateLeft(k, 31);
+      k *= c2;
+      h ^= k;
+    }
+
+    h ^= len;
+
+    // fmix64
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+
+    return h;
+  }
+}
@@ -0,0 +1,390 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/** An in memory index from principals to the resources whose acls grant
+ * them a privilege, e.g. to list the calendars shared with a user without
+ * evaluating every acl.
+ *
+ * <p>Resources are identified by small non-negative integers which the
+ * caller maps to its own ids. The index is fed with the acl of a resource
+ * whenever it is written and keeps, for each href named in a granting
+ * entry and for each who type, the set of resources as a BitSet.
+ *
+ * <p>The sets give candidates. A resource may grant a privilege to one of
+ * the groups of a principal and deny it to the principal, so the access of
+ * each candidate should still be evaluated.
+ *
+ * <p>The index may be written to a file and read back on restart.
+ *
+ * @author douglm
+ */
+public class AclIndex implements WhoDefs {
+  private static final int fileMagic = 0x42574149;  // "BWAI"
+  private static final int fileVersion = 1;
+
+  private final Access.AccessCb cb;
+  private final Privilege priv;
+
+  /* Resources granting the privilege to an href */
+  private final Map<String, BitSet> byHref = new HashMap<>();
+
+  /* Resources granting the privilege to each who type */
+  private final BitSet[] byWhoType = new BitSet[whoTypeFlags.length];
+
+  /* Resources granting the privilege to all but an href */
+  private final BitSet notWhos = new BitSet();
+
+  /* What we indexed for each resource so we can remove it */
+  private final Map<Integer, Entry> entries = new HashMap<>();
+
+  private static class Entry {
+    final String[] hrefs;
+    final int whoTypes;
+    final boolean notWho;
+
+    Entry(final String[] hrefs,
+          final int whoTypes,
+          final boolean notWho) {
+      this.hrefs = hrefs;
+      this.whoTypes = whoTypes;
+      this.notWho = notWho;
+    }
+  }
+
+  /** Index resources granting read access.
+   *
+   * @param cb callback used to turn names into hrefs
+   */
+  public AclIndex(final Access.AccessCb cb) {
+    this(cb, Privileges.makePriv(PrivilegeDefs.privRead));
+  }
+
+  /**
+   * @param cb callback used to turn names into hrefs
+   * @param priv the privilege we index
+   */
+  public AclIndex(final Access.AccessCb cb,
+                  final Privilege priv) {
+    this.cb = cb;
+    this.priv = priv;
+
+    for (int wt = 0; wt < byWhoType.length; wt++) {
+      byWhoType[wt] = new BitSet();
+    }
+  }
+
+  /** Index the acl of a resource, replacing anything indexed for it.
+   *
+   * @param id       resource id
+   * @param aclChars encoded acl - null to remove the resource
+   * @throws AccessException for a malformed acl
+   */
+  public void update(final int id,
+                     final char[] aclChars) throws AccessException {
+    if (id < 0) {
+      throw new IllegalArgumentException("Negative resource id");
+    }
+
+    Entry ent = null;
+
+    if (aclChars != null) {
+      // Do the work outside the lock
+      ent = makeEntry(new CompiledAcl(cb, aclChars));
+    }
+
+    synchronized (this) {
+      remove(id);
+
+      if (ent != null) {
+        add(id, ent);
+      }
+    }
+  }
+
+  /** Remove a resource from the index.
+   *
+   * @param id       resource id
+   */
+  public synchronized void remove(final int id) {
+    Entry ent = entries.remove(id);
+
+    if (ent == null) {
+      return;
+    }
+
+    for (String href: ent.hrefs) {
+      BitSet bs = byHref.get(href);
+
+      if (bs != null) {
+        bs.clear(id);
+
+        if (bs.isEmpty()) {
+          byHref.remove(href);
+        }
+      }
+    }
+
+    for (int wt = 0; wt < byWhoType.length; wt++) {
+      if ((ent.whoTypes & (1 << wt)) != 0) {
+        byWhoType[wt].clear(id);
+      }
+    }
+
+    if (ent.notWho) {
+      notWhos.clear(id);
+    }
+  }
+
+  /**
+   * @return number of resources indexed
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * @param href of principal or group
+   * @return resources with an entry granting the privilege to the href
+   */
+  public synchronized BitSet getResources(final String href) {
+    BitSet bs = byHref.get(href);
+
+    if (bs == null) {
+      return new BitSet();
+    }
+
+    return (BitSet)bs.clone();
+  }
+
+  /**
+   * @param whoType from WhoDefs
+   * @return resources with an entry of that type granting the privilege
+   */
+  public synchronized BitSet getResources(final int whoType) {
+    return (BitSet)byWhoType[whoType].clone();
+  }
+
+  /** Get the resources which may grant the privilege to the principal -
+   * those naming the principal or one of its groups and those granting it to
+   * a class of principals the principal belongs to. Resources are only
+   * included for the principal as owner if the acl grants it to others.
+   *
+   * @param who the principal
+   * @return candidate resources
+   */
+  public synchronized BitSet getCandidates(final AccessPrincipal who) {
+    BitSet res = new BitSet();
+
+    res.or(byWhoType[whoTypeAll]);
+    res.or(byWhoType[whoTypeOther]);
+    res.or(notWhos);
+
+    if (who.getUnauthenticated()) {
+      res.or(byWhoType[whoTypeUnauthenticated]);
+      return res;
+    }
+
+    res.or(byWhoType[whoTypeAuthenticated]);
+
+    orHref(res, who.getPrincipalRef());
+
+    Collection<String> groupNames = who.getGroupNames();
+    if (groupNames != null) {
+      for (String group: groupNames) {
+        orHref(res, group);
+      }
+    }
+
+    return res;
+  }
+
+  /* ====================================================================
+   *                   Persistence
+   * ==================================================================== */
+
+  /** Write the index to a file. The file is written alongside and moved
+   * over the old one in a single step so a crash leaves either the old or
+   * the new file in place.
+   *
+   * @param f file
+   * @throws IOException on error
+   */
+  public void write(final File f) throws IOException {
+    File tmp = new File(f.getPath() + ".tmp");
+
+    try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmp)))) {
+      out.writeInt(fileMagic);
+      out.writeInt(fileVersion);
+
+      synchronized (this) {
+        out.writeInt(entries.size());
+
+        for (Map.Entry<Integer, Entry> me: entries.entrySet()) {
+          Entry ent = me.getValue();
+
+          out.writeInt(me.getKey());
+          out.writeInt(ent.whoTypes);
+          out.writeBoolean(ent.notWho);
+          out.writeInt(ent.hrefs.length);
+
+          for (String href: ent.hrefs) {
+            out.writeUTF(href);
+          }
+        }
+      }
+    }
+
+    Files.move(tmp.toPath(), f.toPath(),
+               StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Replace the contents of the index with those of a file written by
+   * write.
+   *
+   * @param f file
+   * @throws IOException on error or if the file is not an index
+   */
+  public void read(final File f) throws IOException {
+    Map<Integer, Entry> ents = new HashMap<>();
+
+    try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(f)))) {
+      if (in.readInt() != fileMagic) {
+        throw new IOException("Not an acl index: " + f);
+      }
+
+      if (in.readInt() != fileVersion) {
+        throw new IOException("Unsupported acl index version: " + f);
+      }
+
+      int num = in.readInt();
+
+      for (int i = 0; i < num; i++) {
+        int id = in.readInt();
+        int whoTypes = in.readInt();
+        boolean notWho = in.readBoolean();
+        String[] hrefs = new String[in.readInt()];
+
+        for (int hi = 0; hi < hrefs.length; hi++) {
+          hrefs[hi] = in.readUTF();
+        }
+
+        ents.put(id, new Entry(hrefs, whoTypes, notWho));
+      }
+    }
+
+    synchronized (this) {
+      entries.clear();
+      byHref.clear();
+      notWhos.clear();
+
+      for (BitSet bs: byWhoType) {
+        bs.clear();
+      }
+
+      for (Map.Entry<Integer, Entry> me: ents.entrySet()) {
+        add(me.getKey(), me.getValue());
+      }
+    }
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private Entry makeEntry(final CompiledAcl cacl) {
+    Collection<String> hrefs = new ArrayList<>();
+    int whoTypes = 0;
+    boolean notWho = false;
+
+    for (CompiledAcl.Grant g: cacl.getGrants(priv)) {
+      if (g.getWhoType() == whoTypeOwner) {
+        // The owner is not a principal we can index here
+        continue;
+      }
+
+      whoTypes |= 1 << g.getWhoType();
+
+      if (g.getNotWho()) {
+        notWho = true;
+      } else if (g.getHref() != null) {
+        hrefs.add(g.getHref());
+      }
+    }
+
+    return new Entry(hrefs.toArray(new String[hrefs.size()]),
+                     whoTypes, notWho);
+  }
+
+  private void add(final int id, final Entry ent) {
+    entries.put(id, ent);
+
+    for (String href: ent.hrefs) {
+      BitSet bs = byHref.get(href);
+
+      if (bs == null) {
+        bs = new BitSet();
+        byHref.put(href, bs);
+      }
+
+      bs.set(id);
+    }
+
+    for (int wt = 0; wt < byWhoType.length; wt++) {
+      if ((ent.whoTypes & (1 << wt)) != 0) {
+        byWhoType[wt].set(id);
+      }
+    }
+
+    if (ent.notWho) {
+      notWhos.set(id);
+    }
+  }
+
+  private void orHref(final BitSet res, final String href) {
+    if (href == null) {
+      return;
+    }
+
+    BitSet bs = byHref.get(href);
+
+    if (bs != null) {
+      res.or(bs);
+    }
+  }
+}
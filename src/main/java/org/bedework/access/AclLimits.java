@@ -0,0 +1,135 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import java.io.Serializable;
+
+/** Limits on the size of an acl we will decode, so that a corrupt or
+ * hostile acl fails quickly rather than tying up the decoder or allocating
+ * large strings.
+ *
+ * <p>The defaults are well above anything a real acl needs. They may be
+ * changed for the whole system with setDefault.
+ *
+ * @author douglm
+ */
+public final class AclLimits implements Serializable {
+  private final int maxAclLength;
+  private final int maxAces;
+  private final int maxNameLength;
+
+  private static volatile AclLimits defaultLimits =
+          new AclLimits(1000000, 10000, 4096);
+
+  /**
+   * @param maxAclLength maximum length of an encoded acl
+   * @param maxAces maximum number of aces in an acl
+   * @param maxNameLength maximum length of a name or inherited from path
+   */
+  public AclLimits(final int maxAclLength,
+                   final int maxAces,
+                   final int maxNameLength) {
+    if ((maxAclLength < 1) || (maxAces < 1) || (maxNameLength < 1)) {
+      throw new IllegalArgumentException("Limits must be at least 1");
+    }
+
+    this.maxAclLength = maxAclLength;
+    this.maxAces = maxAces;
+    this.maxNameLength = maxNameLength;
+  }
+
+  /**
+   * @return the limits used when none are given
+   */
+  public static AclLimits getDefault() {
+    return defaultLimits;
+  }
+
+  /**
+   * @param val the limits to use when none are given
+   */
+  public static void setDefault(final AclLimits val) {
+    if (val == null) {
+      throw new IllegalArgumentException("Null limits");
+    }
+
+    defaultLimits = val;
+  }
+
+  /**
+   * @return maximum length of an encoded acl
+   */
+  public int getMaxAclLength() {
+    return maxAclLength;
+  }
+
+  /**
+   * @return maximum number of aces in an acl
+   */
+  public int getMaxAces() {
+    return maxAces;
+  }
+
+  /**
+   * @return maximum length of a name or inherited from path
+   */
+  public int getMaxNameLength() {
+    return maxNameLength;
+  }
+
+  /** Check the length of an acl
+   *
+   * @param len of the encoded acl
+   * @throws AccessException if it's too long
+   */
+  public void checkAclLength(final int len) throws AccessException {
+    if (len > maxAclLength) {
+      throw AccessException.badACL("acl length " + len + " exceeds limit");
+    }
+  }
+
+  /** Check the number of aces
+   *
+   * @param num aces so far
+   * @throws AccessException if there are too many
+   */
+  public void checkAces(final int num) throws AccessException {
+    if (num > maxAces) {
+      throw AccessException.badACL("ace count exceeds limit");
+    }
+  }
+
+  /** Check the length of a name
+   *
+   * @param len of the name
+   * @throws AccessException if it's too long
+   */
+  public void checkNameLength(final int len) throws AccessException {
+    if (len > maxNameLength) {
+      throw AccessException.badACL("name length " + len + " exceeds limit");
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "AclLimits{maxAclLength=" + maxAclLength +
+           ", maxAces=" + maxAces +
+           ", maxNameLength=" + maxNameLength + "}";
+  }
+}
@@ -0,0 +1,572 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/** Rewrite a stream of stored acls in the current canonical form - sorted,
+ * and with the current allowed and denied flags rather than the old '3'
+ * and '2' flags.
+ *
+ * <p>The acls are read from a Reader either one per line or, if they may
+ * contain line ends, as a decimal length, a ':' and the acl followed by a
+ * line end. They are written in the same form and order. An empty acl is
+ * an empty line. A row longer than the maximum acl length of the default
+ * {@link AclLimits} stops the migration with an IOException.
+ *
+ * <p>Each acl is first checked with {@link AclValidator}. Malformed acls are
+ * reported to the listener and copied unchanged, as are acls compressed
+ * with an {@link AceDictionary}. The work is done a chunk at a time by an
+ * {@link AclRewriter} so memory use is bounded and the chunks may be
+ * spread across threads.
+ *
+ * <p>An {@link AclSummary} is kept in front of a rewritten acl as sorting
+ * and changing the flags don't change what it describes, and its check is
+ * remade for the new aces. That needs the key the server uses, set with
+ * {@link AclSummary#setKey}. If its check doesn't match, or decoding drops
+ * an ace because its who is repeated, the summary is dropped and counted -
+ * add it again with the callback used for evaluation.
+ *
+ * @author douglm
+ */
+public class AclMigrator {
+  private final AclRewriter rewriter;
+
+  private boolean lengthPrefixed;
+
+  private long progressInterval = 100000;
+
+  private Listener listener;
+
+  /** Told how the migration is going
+   */
+  public interface Listener {
+    /**
+     * @param rows number written so far
+     * @param changed number rewritten so far
+     * @param errors number of malformed acls so far
+     */
+    void progress(long rows, long changed, long errors);
+
+    /**
+     * @param row number from 0
+     * @param aclChars the malformed acl
+     * @param code from AclValidator
+     * @param offset of the error
+     */
+    void error(long row, char[] aclChars, int code, int offset);
+  }
+
+  /** The result of a migration
+   */
+  public static class Counts {
+    private long rows;
+    private long changed;
+    private long errors;
+    private long summariesDropped;
+
+    /**
+     * @return number of acls read
+     */
+    public long getRows() {
+      return rows;
+    }
+
+    /**
+     * @return number of acls rewritten
+     */
+    public long getChanged() {
+      return changed;
+    }
+
+    /**
+     * @return number of malformed acls
+     */
+    public long getErrors() {
+      return errors;
+    }
+
+    /**
+     * @return number of rewritten acls whose summary was dropped
+     */
+    public long getSummariesDropped() {
+      return summariesDropped;
+    }
+
+    @Override
+    public String toString() {
+      return "rows=" + rows + ", changed=" + changed + ", errors=" + errors +
+             ", summariesDropped=" + summariesDropped;
+    }
+  }
+
+  /* Put a stored acl in canonical form. Only given the acls the RowReader
+   * found need it - the others are null.
+   */
+  private static final AclRewriter.AclEdit canonical =
+    new AclRewriter.AclEdit() {
+      @Override
+      public char[] apply(final char[] aclChars) throws AccessException {
+        if (aclChars == null) {
+          return null;
+        }
+
+        return Acl.decode(aclChars).encodeAll();
+      }
+    };
+
+  /**
+   */
+  public AclMigrator() {
+    rewriter = new AclRewriter(canonical);
+  }
+
+  /**
+   * @param val number of threads - default 1
+   */
+  public void setParallelism(final int val) {
+    rewriter.setParallelism(val);
+  }
+
+  /**
+   * @param val number of acls read and rewritten together - default 1024
+   */
+  public void setChunkSize(final int val) {
+    rewriter.setChunkSize(val);
+  }
+
+  /**
+   * @param val true if each acl is preceded by its length
+   */
+  public void setLengthPrefixed(final boolean val) {
+    lengthPrefixed = val;
+  }
+
+  /**
+   * @param val number of rows between calls to the listener
+   */
+  public void setProgressInterval(final long val) {
+    if (val < 1) {
+      throw new IllegalArgumentException("interval must be at least 1");
+    }
+
+    progressInterval = val;
+  }
+
+  /**
+   * @param val listener - may be null
+   */
+  public void setListener(final Listener val) {
+    listener = val;
+  }
+
+  /** Migrate the acls.
+   *
+   * @param in acls to migrate
+   * @param out migrated acls
+   * @return the counts
+   * @throws IOException on error reading or writing, or a row which is
+   *         too long
+   */
+  public Counts migrate(final Reader in,
+                        final Writer out) throws IOException {
+    Counts counts = new Counts();
+    RowReader rows = new RowReader(new BufferedReader(in), counts);
+    AclValidator validator = new AclValidator();
+    long written = 0;
+
+    /* The id of each entry is the row as read */
+    AclRewriter.EntryIterator<Row> res = rewriter.rewrite(rows);
+
+    try {
+      while (res.hasNext()) {
+        AclRewriter.Entry<Row> ent = res.next();
+        Row row = ent.getId();
+        char[] aclChars = row.aclChars;
+
+        if (row.rewrite) {
+          aclChars = addSummary(row, ent.getAclChars(), validator, counts);
+
+          if (!Arrays.equals(row.aclChars, aclChars)) {
+            counts.changed++;
+          }
+        }
+
+        write(out, aclChars);
+        written++;
+
+        if ((listener != null) && (written % progressInterval == 0)) {
+          listener.progress(written, counts.changed, counts.errors);
+        }
+      }
+    } catch (WrappedIOException wioe) {
+      throw wioe.ioe;
+    } finally {
+      res.close();
+    }
+
+    out.flush();
+
+    if (listener != null) {
+      listener.progress(written, counts.changed, counts.errors);
+    }
+
+    return counts;
+  }
+
+  /** Migrate a file.
+   *
+   * <pre>
+   *   AclMigrator [-lengths] [-threads n] infile outfile
+   * </pre>
+   *
+   * @param args
+   */
+  public static void main(final String[] args) {
+    AclMigrator migrator = new AclMigrator();
+    int argi = 0;
+
+    try {
+      while ((argi < args.length) && args[argi].startsWith("-")) {
+        if (args[argi].equals("-lengths")) {
+          migrator.setLengthPrefixed(true);
+        } else if (args[argi].equals("-threads")) {
+          argi++;
+          migrator.setParallelism(Integer.parseInt(args[argi]));
+        } else {
+          throw new IllegalArgumentException("Unknown option " + args[argi]);
+        }
+
+        argi++;
+      }
+
+      if (args.length - argi != 2) {
+        throw new IllegalArgumentException("Expected infile and outfile");
+      }
+
+      migrator.setListener(new Listener() {
+        @Override
+        public void progress(final long rows, final long changed,
+                             final long errors) {
+          System.out.println("rows=" + rows + ", changed=" + changed +
+                             ", errors=" + errors);
+        }
+
+        @Override
+        public void error(final long row, final char[] aclChars,
+                          final int code, final int offset) {
+          System.out.println("Row " + row + ": " +
+                             AclValidator.getMessage(code) +
+                             " at " + offset);
+        }
+      });
+
+      try (Reader in = new InputStreamReader(
+              new FileInputStream(args[argi]), "UTF-8");
+           Writer out = new BufferedWriter(new OutputStreamWriter(
+              new FileOutputStream(args[argi + 1]), "UTF-8"))) {
+        System.out.println(migrator.migrate(in, out));
+      }
+    } catch (IllegalArgumentException iae) {
+      System.out.println(iae.getMessage());
+      System.out.println(
+              "Usage: AclMigrator [-lengths] [-threads n] infile outfile");
+    } catch (Throwable t) {
+      t.printStackTrace();
+    }
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  /* Put any summary of the row in front of the rewritten acl - unless it
+   * wasn't checked or an ace was dropped, when it may no longer be right.
+   */
+  private char[] addSummary(final Row row,
+                            final char[] rewritten,
+                            final AclValidator validator,
+                            final Counts counts) {
+    int summaryLen = AclSummary.getLength(row.aclChars);
+
+    if ((summaryLen == 0) || (rewritten == null)) {
+      return rewritten;
+    }
+
+    if ((validator.validate(rewritten) != AclValidator.valid) ||
+        (validator.getAceCount() != row.aceCount)) {
+      counts.summariesDropped++;
+      return rewritten;
+    }
+
+    char[] res = null;
+
+    try {
+      res = AclSummary.copySummary(row.aclChars, rewritten);
+    } catch (AccessException ae) {
+      // Not compressed so can't happen
+    }
+
+    if (res == null) {
+      counts.summariesDropped++;
+      return rewritten;
+    }
+
+    return res;
+  }
+
+  private void write(final Writer out,
+                     final char[] aclChars) throws IOException {
+    int len = 0;
+
+    if (aclChars != null) {
+      len = aclChars.length;
+    }
+
+    if (lengthPrefixed) {
+      out.write(String.valueOf(len));
+      out.write(':');
+    }
+
+    if (len > 0) {
+      out.write(aclChars);
+    }
+
+    out.write('\n');
+  }
+
+  /* Carries an IOException out of the iterator */
+  private static class WrappedIOException extends RuntimeException {
+    final IOException ioe;
+
+    WrappedIOException(final IOException ioe) {
+      super(ioe);
+      this.ioe = ioe;
+    }
+  }
+
+  /* An acl as read and what validating it told us */
+  private static class Row {
+    final char[] aclChars;
+
+    /* Well formed but not in canonical form */
+    final boolean rewrite;
+
+    final int aceCount;
+
+    Row(final char[] aclChars,
+        final boolean rewrite,
+        final int aceCount) {
+      this.aclChars = aclChars;
+      this.rewrite = rewrite;
+      this.aceCount = aceCount;
+    }
+  }
+
+  /* Reads and validates the acls. Only those which need rewriting are
+   * given to the rewriter - the others are passed as null.
+   */
+  private class RowReader implements Iterator<AclRewriter.Entry<Row>> {
+    private final BufferedReader in;
+    private final Counts counts;
+    private final AclValidator validator = new AclValidator();
+
+    private Row next;
+    private boolean eof;
+
+    RowReader(final BufferedReader in,
+              final Counts counts) {
+      this.in = in;
+      this.counts = counts;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next != null) {
+        return true;
+      }
+
+      if (eof) {
+        return false;
+      }
+
+      char[] acl;
+
+      try {
+        acl = read();
+      } catch (IOException ioe) {
+        throw new WrappedIOException(ioe);
+      }
+
+      if (acl == null) {
+        eof = true;
+        return false;
+      }
+
+      long row = counts.rows;
+      counts.rows++;
+
+      int res = validator.validate(acl);
+
+      if (res != AclValidator.valid) {
+        counts.errors++;
+
+        if (listener != null) {
+          listener.error(row, acl, res, validator.getErrorOffset());
+        }
+
+        next = new Row(acl, false, 0);
+        return true;
+      }
+
+      boolean rewrite = !AceDictionary.isCompressed(acl) &&
+              (!validator.isSorted() || (validator.getOldFlagCount() != 0));
+
+      next = new Row(acl, rewrite, validator.getAceCount());
+
+      return true;
+    }
+
+    @Override
+    public AclRewriter.Entry<Row> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      Row row = next;
+      next = null;
+
+      if (!row.rewrite) {
+        return new AclRewriter.Entry<>(row, null);
+      }
+
+      return new AclRewriter.Entry<>(row, row.aclChars);
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    /* Returns null at the end */
+    /* Rows are no longer than the limit on acls so memory use is
+     * bounded - a longer row fails the migration.
+     */
+    private char[] read() throws IOException {
+      int maxLen = AclLimits.getDefault().getMaxAclLength();
+
+      if (!lengthPrefixed) {
+        return readLine(maxLen);
+      }
+
+      int len = 0;
+      int c = in.read();
+
+      if (c < 0) {
+        return null;
+      }
+
+      while (c != ':') {
+        if ((c < '0') || (c > '9')) {
+          throw new IOException("Bad length in row " + counts.rows);
+        }
+
+        len = len * 10 + (c - '0');
+
+        if (len > maxLen) {
+          throw new IOException("Row " + counts.rows +
+                                " is longer than the limit of " + maxLen);
+        }
+
+        c = in.read();
+      }
+
+      char[] acl = new char[len];
+      int pos = 0;
+
+      while (pos < len) {
+        int n = in.read(acl, pos, len - pos);
+
+        if (n < 0) {
+          throw new IOException("Truncated row " + counts.rows);
+        }
+
+        pos += n;
+      }
+
+      c = in.read();
+
+      if (c == '\r') {
+        c = in.read();
+      }
+
+      if ((c != '\n') && (c >= 0)) {
+        throw new IOException("Expected line end after row " + counts.rows);
+      }
+
+      return acl;
+    }
+
+    /* As BufferedReader.readLine but failing for a line longer than
+     * maxLen rather than reading it all.
+     */
+    private char[] readLine(final int maxLen) throws IOException {
+      StringBuilder sb = new StringBuilder();
+      int c = in.read();
+
+      if (c < 0) {
+        return null;
+      }
+
+      while ((c >= 0) && (c != '\n') && (c != '\r')) {
+        if (sb.length() == maxLen) {
+          throw new IOException("Row " + counts.rows +
+                                " is longer than the limit of " + maxLen);
+        }
+
+        sb.append((char)c);
+        c = in.read();
+      }
+
+      if (c == '\r') {
+        in.mark(1);
+
+        if (in.read() != '\n') {
+          in.reset();
+        }
+      }
+
+      char[] acl = new char[sb.length()];
+      sb.getChars(0, acl.length, acl, 0);
+
+      return acl;
+    }
+  }
+}
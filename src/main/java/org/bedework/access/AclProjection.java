@@ -0,0 +1,225 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/** Fields derived from an acl which say who might read the object. They
+ * can be stored and indexed alongside the acl so that a query can rule out
+ * most rows before access is evaluated, e.g.
+ * <pre>
+ *   (owner = :who and ownerRead)
+ *   or (owner &lt;&gt; :who
+ *       and (unfiltered
+ *            or publicRead            -- unauthenticated principals
+ *            or authenticatedRead     -- authenticated principals
+ *            or exists (select * from readhrefs
+ *                       where href in (:who, :whoGroups))))
+ * </pre>
+ * which is what {@link #mightRead} does. Rows which pass must still be
+ * checked with {@link Acl#evaluateAccess} - a principal named in the hrefs
+ * may be denied by another ace.
+ *
+ * <p>The projection is made with the same callback as is used to evaluate
+ * access so the hrefs match those of the principals. It must be remade
+ * when the acl changes.
+ *
+ * @author douglm
+ */
+public final class AclProjection implements PrivilegeDefs, WhoDefs {
+  private final boolean ownerRead;
+  private final boolean publicRead;
+  private final boolean authenticatedRead;
+  private final boolean unfiltered;
+  private final Set<String> readHrefs;
+
+  private static Access.AccessStatsEntry projections =
+    new Access.AccessStatsEntry("Acl projections");
+
+  /** Project an encoded acl.
+   *
+   * @param cb        callback used to turn names into hrefs
+   * @param aclChars  the encoded acl - may be null
+   * @return the projection
+   * @throws AccessException for a malformed acl
+   */
+  public static AclProjection project(final Access.AccessCb cb,
+                                      final char[] aclChars)
+          throws AccessException {
+    return new AclProjection(new CompiledAcl(cb, aclChars));
+  }
+
+  /** Project a compiled acl.
+   *
+   * @param acl the compiled acl
+   * @throws AccessException on error
+   */
+  public AclProjection(final CompiledAcl acl) throws AccessException {
+    projections.count++;
+
+    boolean owner = false;
+    boolean notNamed = false;
+    Set<String> hrefs = new LinkedHashSet<>();
+
+    for (CompiledAcl.Grant grant: acl.getGrants(privRead)) {
+      int whoType = grant.getWhoType();
+
+      if (whoType == whoTypeOwner) {
+        owner = true;
+        continue;
+      }
+
+      if (!whoTypeNamed[whoType]) {
+        // Covered by the public and authenticated flags
+        continue;
+      }
+
+      if (grant.getNotWho() || (grant.getHref() == null)) {
+        notNamed = true;
+        continue;
+      }
+
+      hrefs.add(grant.getHref());
+    }
+
+    /* A principal left out by a not who ace may be allowed by another, even
+       if the not who ace denies read */
+    hrefs.addAll(acl.getNotWhoHrefs());
+
+    ownerRead = owner;
+    unfiltered = notNamed;
+    readHrefs = Collections.unmodifiableSet(hrefs);
+    publicRead = acl.unnamedAllowed(false, privRead);
+    authenticatedRead = acl.unnamedAllowed(true, privRead);
+  }
+
+  /** Get the statistics
+   *
+   * @return Collection of stats
+   */
+  public static Collection<Access.AccessStatsEntry> getStatistics() {
+    Collection<Access.AccessStatsEntry> stats = new ArrayList<>();
+
+    stats.add(projections);
+
+    return stats;
+  }
+
+  /**
+   * @return true if the owner may read
+   */
+  public boolean isOwnerRead() {
+    return ownerRead;
+  }
+
+  /**
+   * @return true if unauthenticated principals may read
+   */
+  public boolean isPublicRead() {
+    return publicRead;
+  }
+
+  /**
+   * @return true if an authenticated principal which isn't the owner and
+   *         isn't named in the acl, either directly or by a group, may read
+   */
+  public boolean isAuthenticatedRead() {
+    return authenticatedRead;
+  }
+
+  /**
+   * @return true if read is granted by a not who ace or by a user or group
+   *         ace with no name. The hrefs can't rule out any principal.
+   */
+  public boolean isUnfiltered() {
+    return unfiltered;
+  }
+
+  /**
+   * @return hrefs of the principals and groups granted read by name, and
+   *         of those left out by not who aces, who may be allowed by other
+   *         aces
+   */
+  public Set<String> getReadHrefs() {
+    return readHrefs;
+  }
+
+  /** False if the principal can't read. True means it might - evaluate
+   * access to be sure.
+   *
+   * @param who       principal trying to get access
+   * @param owner     owner of the object
+   * @return false if the principal can't read
+   */
+  public boolean mightRead(final AccessPrincipal who,
+                           final AccessPrincipal owner) {
+    boolean authenticated = !who.getUnauthenticated();
+
+    if (authenticated && who.equals(owner)) {
+      return ownerRead;
+    }
+
+    if (unfiltered) {
+      return true;
+    }
+
+    if (authenticated) {
+      if (authenticatedRead) {
+        return true;
+      }
+    } else if (publicRead) {
+      return true;
+    }
+
+    if (readHrefs.isEmpty()) {
+      return false;
+    }
+
+    if (readHrefs.contains(who.getPrincipalRef())) {
+      return true;
+    }
+
+    Collection<String> groupNames = who.getGroupNames();
+
+    if (groupNames == null) {
+      return false;
+    }
+
+    for (String group: groupNames) {
+      if (readHrefs.contains(group)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return "AclProjection{ownerRead=" + ownerRead +
+           ", publicRead=" + publicRead +
+           ", authenticatedRead=" + authenticatedRead +
+           ", unfiltered=" + unfiltered +
+           ", readHrefs=" + readHrefs + "}";
+  }
+}
@@ -0,0 +1,323 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Resolve the effective acl of an entity in a hierarchy, merging in the
+ * acls of its ancestors as described for {@link Acl#merge}.
+ *
+ * <p>The effective acl of each path is remembered so resolving the acl of a
+ * sibling or child only has to look up and merge the acl of the new
+ * entity. When the acl of an entity changes call invalidate for its path,
+ * which forgets the results for it and everything below it.
+ *
+ * <p>Each path is resolved once by the first thread to ask for it, outside
+ * any lock, and other threads asking for it meanwhile wait for that
+ * result. Threads resolving other paths carry on. At most maxPaths results
+ * are remembered - when there are that many they are all forgotten.
+ *
+ * <p>Paths are of the form "/user/jeb/calendar". The acl of the root, "/",
+ * is looked up too.
+ *
+ * @author douglm
+ */
+public class AclResolver {
+  private final AclLookup lookup;
+
+  private int maxPaths = 10000;
+
+  /* Effective acl by path - null results are held too */
+  private final ConcurrentHashMap<String, FutureTask<char[]>> resolved =
+          new ConcurrentHashMap<>();
+
+  /* Changed by every invalidation so a resolution which overlaps one isn't
+   * remembered.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  private static Access.AccessStatsEntry resolverHits =
+    new Access.AccessStatsEntry("Acl resolver hits");
+
+  private static Access.AccessStatsEntry resolverMisses =
+    new Access.AccessStatsEntry("Acl resolver misses");
+
+  private static Access.AccessStatsEntry resolverInvalidations =
+    new Access.AccessStatsEntry("Acl resolver invalidations");
+
+  /** Supplies the acl stored for an entity
+   */
+  public interface AclLookup {
+    /**
+     * @param path of the entity
+     * @return the encoded acl for the entity alone or null for none
+     * @throws AccessException
+     */
+    char[] getAcl(String path) throws AccessException;
+  }
+
+  /**
+   * @param lookup supplies the acls
+   */
+  public AclResolver(final AclLookup lookup) {
+    this.lookup = lookup;
+  }
+
+  /**
+   * @param val maximum number of paths whose effective acl we remember -
+   *            default 10000
+   */
+  public void setMaxPaths(final int val) {
+    if (val < 1) {
+      throw new IllegalArgumentException("max paths must be at least 1");
+    }
+
+    maxPaths = val;
+  }
+
+  /** Get the statistics
+   *
+   * @return Collection of stats
+   */
+  public static Collection<Access.AccessStatsEntry> getStatistics() {
+    Collection<Access.AccessStatsEntry> stats = new ArrayList<>();
+
+    stats.add(resolverHits);
+    stats.add(resolverMisses);
+    stats.add(resolverInvalidations);
+
+    return stats;
+  }
+
+  /** Get the effective acl for the path. Inherited entries are flagged
+   * with the path they came from. The result must not be modified.
+   *
+   * @param path of the entity
+   * @return encoded acl including inherited entries or null for none
+   * @throws AccessException
+   */
+  public char[] getEffectiveAclChars(final String path)
+          throws AccessException {
+    long gen = generation.get();
+    String[] elements = split(path);
+    char[] parentAcl = resolve("/", null, null, gen);
+    String parentPath = "/";
+
+    StringBuilder sb = new StringBuilder();
+
+    for (String el: elements) {
+      sb.append('/');
+      sb.append(el);
+
+      String elPath = sb.toString();
+
+      parentAcl = resolve(elPath, parentAcl, parentPath, gen);
+      parentPath = elPath;
+    }
+
+    return parentAcl;
+  }
+
+  /** Get the effective acl for the path as an Acl object.
+   *
+   * @param path of the entity
+   * @return Acl including inherited entries or null for none
+   * @throws AccessException
+   */
+  public Acl getEffectiveAcl(final String path) throws AccessException {
+    char[] chars = getEffectiveAclChars(path);
+
+    if (chars == null) {
+      return null;
+    }
+
+    return Acl.decode(chars);
+  }
+
+  /** Forget the effective acls for the path and everything below it. Call
+   * this when the acl for the path changes or the entity is moved or
+   * deleted.
+   *
+   * @param path of the entity
+   */
+  public void invalidate(final String path) {
+    resolverInvalidations.count++;
+
+    String[] elements = split(path);
+
+    if (elements.length == 0) {
+      clear();
+      return;
+    }
+
+    generation.incrementAndGet();
+
+    StringBuilder sb = new StringBuilder();
+
+    for (String el: elements) {
+      sb.append('/');
+      sb.append(el);
+    }
+
+    String p = sb.toString();
+    String below = p + "/";
+
+    Iterator<String> it = resolved.keySet().iterator();
+
+    while (it.hasNext()) {
+      String key = it.next();
+
+      if (key.equals(p) || key.startsWith(below)) {
+        it.remove();
+      }
+    }
+  }
+
+  /** Forget everything.
+   */
+  public void clear() {
+    generation.incrementAndGet();
+    resolved.clear();
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private char[] resolve(final String path,
+                         final char[] parentAcl,
+                         final String parentPath,
+                         final long gen) throws AccessException {
+    FutureTask<char[]> task = resolved.get(path);
+
+    if (task != null) {
+      resolverHits.count++;
+      return get(task);
+    }
+
+    FutureTask<char[]> newTask = new FutureTask<>(new Callable<char[]>() {
+      @Override
+      public char[] call() throws AccessException {
+        return effective(path, parentAcl, parentPath);
+      }
+    });
+
+    if (resolved.size() >= maxPaths) {
+      resolved.clear();
+    }
+
+    task = resolved.putIfAbsent(path, newTask);
+
+    if (task != null) {
+      resolverHits.count++;
+      return get(task);
+    }
+
+    resolverMisses.count++;
+
+    newTask.run();
+
+    try {
+      char[] res = get(newTask);
+
+      if (generation.get() != gen) {
+        // Invalidated while we were at it - may be out of date
+        resolved.remove(path, newTask);
+      }
+
+      return res;
+    } catch (AccessException ae) {
+      resolved.remove(path, newTask);
+      throw ae;
+    }
+  }
+
+  private char[] effective(final String path,
+                           final char[] parentAcl,
+                           final String parentPath) throws AccessException {
+    char[] own = lookup.getAcl(path);
+    char[] effective;
+
+    if (parentAcl == null) {
+      // Our own copy - the caller may reuse theirs
+      effective = own;
+
+      if (own != null) {
+        effective = own.clone();
+      }
+    } else {
+      Acl acl;
+
+      if (own == null) {
+        acl = new Acl(new ArrayList<Ace>());
+      } else {
+        acl = Acl.decode(own);
+      }
+
+      effective = acl.merge(parentAcl, parentPath).encodeAll();
+    }
+
+    if ((effective != null) && (effective.length == 0)) {
+      return null;
+    }
+
+    return effective;
+  }
+
+  private static char[] get(final FutureTask<char[]> task)
+          throws AccessException {
+    try {
+      return task.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new AccessException(ie);
+    } catch (ExecutionException ee) {
+      Throwable t = ee.getCause();
+
+      if (t instanceof AccessException) {
+        throw (AccessException)t;
+      }
+
+      if (t instanceof RuntimeException) {
+        throw (RuntimeException)t;
+      }
+
+      throw new AccessException(t);
+    }
+  }
+
+  private static String[] split(final String path) {
+    Collection<String> elements = new ArrayList<>();
+
+    for (String el: path.split("/")) {
+      if (el.length() > 0) {
+        elements.add(el);
+      }
+    }
+
+    return elements.toArray(new String[elements.size()]);
+  }
+}
@@ -0,0 +1,434 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Apply the same change to the acls of many entities, e.g. when a
+ * calendar tree is shared or a group renamed.
+ *
+ * <p>The acls are read from an iterator and the rewritten acls returned by
+ * another in the same order. Many entities usually have the same acl so
+ * each distinct acl is only rewritten once. The work is done a chunk at a
+ * time so only a chunk of acls is held in memory, and each chunk may be
+ * split across a number of threads.
+ *
+ * <p>An AccessException from the edit is thrown from the output iterator
+ * as a RuntimeException with the AccessException as the cause. The output
+ * iterator holds threads until it reaches the end or fails - close it when
+ * stopping early.
+ *
+ * @author douglm
+ */
+public class AclRewriter {
+  private final AclEdit edit;
+
+  private int parallelism = 1;
+
+  private int chunkSize = 1024;
+
+  private int maxDistinct = 8192;
+
+  /* Rewritten acls keyed by the original */
+  private final ConcurrentHashMap<String, char[]> rewritten =
+          new ConcurrentHashMap<>();
+
+  /* Stands in for a null result in rewritten */
+  private static final char[] noAcl = new char[0];
+
+  private static Access.AccessStatsEntry rewrites =
+    new Access.AccessStatsEntry("Acl rewrites");
+
+  private static Access.AccessStatsEntry distinctRewrites =
+    new Access.AccessStatsEntry("Acl rewrites of distinct acls");
+
+  /** A change to an encoded acl
+   */
+  public interface AclEdit {
+    /**
+     * @param aclChars encoded acl - may be null
+     * @return changed acl - null for no aces
+     * @throws AccessException
+     */
+    char[] apply(char[] aclChars) throws AccessException;
+  }
+
+  /** An entity and its acl
+   *
+   * @param <K> type of id
+   */
+  public static class Entry<K> {
+    private final K id;
+    private final char[] aclChars;
+
+    /**
+     * @param id of the entity
+     * @param aclChars encoded acl - may be null
+     */
+    public Entry(final K id,
+                 final char[] aclChars) {
+      this.id = id;
+      this.aclChars = aclChars;
+    }
+
+    /**
+     * @return id of the entity
+     */
+    public K getId() {
+      return id;
+    }
+
+    /**
+     * @return encoded acl - may be null
+     */
+    public char[] getAclChars() {
+      return aclChars;
+    }
+  }
+
+  /**
+   * @param edit the change to make to each acl
+   */
+  public AclRewriter(final AclEdit edit) {
+    this.edit = edit;
+  }
+
+  /** Edit adding an ace, replacing any for the same who
+   *
+   * @param ace to add
+   * @return edit
+   */
+  public static AclEdit addAce(final Ace ace) {
+    return new AclEdit() {
+      @Override
+      public char[] apply(final char[] aclChars) throws AccessException {
+        return Acl.addAce(aclChars, ace);
+      }
+    };
+  }
+
+  /** Edit removing the ace for a who
+   *
+   * @param who to remove
+   * @return edit
+   */
+  public static AclEdit removeWho(final AceWho who) {
+    return new AclEdit() {
+      @Override
+      public char[] apply(final char[] aclChars) throws AccessException {
+        return Acl.removeWho(aclChars, who);
+      }
+    };
+  }
+
+  /** Edit giving the access of one who to another, e.g. when a group is
+   * renamed. Acls without an ace for from are unchanged.
+   *
+   * @param from the old who
+   * @param to the new who
+   * @return edit
+   */
+  public static AclEdit renameWho(final AceWho from,
+                                  final AceWho to) {
+    return new AclEdit() {
+      @Override
+      public char[] apply(final char[] aclChars) throws AccessException {
+        if (aclChars == null) {
+          return null;
+        }
+
+        Ace old = null;
+
+        for (Ace ace: Acl.decode(aclChars).getAces()) {
+          if (ace.getWho().equals(from) && (ace.getInheritedFrom() == null)) {
+            old = ace;
+            break;
+          }
+        }
+
+        if (old == null) {
+          return aclChars;
+        }
+
+        char[] res = Acl.removeWho(aclChars, from);
+
+        return Acl.addAce(res, Ace.makeAce(to, old.getPrivs(), null));
+      }
+    };
+  }
+
+  /** Get the statistics
+   *
+   * @return Collection of stats
+   */
+  public static Collection<Access.AccessStatsEntry> getStatistics() {
+    Collection<Access.AccessStatsEntry> stats = new ArrayList<>();
+
+    stats.add(rewrites);
+    stats.add(distinctRewrites);
+
+    return stats;
+  }
+
+  /**
+   * @param val number of threads used to rewrite a chunk - default 1
+   */
+  public void setParallelism(final int val) {
+    if (val < 1) {
+      throw new IllegalArgumentException("parallelism must be at least 1");
+    }
+
+    parallelism = val;
+  }
+
+  /** The rewritten acls. Close it to release the threads when not read to
+   * the end.
+   *
+   * @param <K> type of id
+   */
+  public interface EntryIterator<K> extends Iterator<Entry<K>>, Closeable {
+    @Override
+    void close();
+  }
+
+  /**
+   * @param val number of acls read and rewritten together - default 1024
+   */
+  public void setChunkSize(final int val) {
+    if (val < 1) {
+      throw new IllegalArgumentException("chunk size must be at least 1");
+    }
+
+    chunkSize = val;
+  }
+
+  /**
+   * @param val maximum number of distinct acls we remember - default 8192
+   */
+  public void setMaxDistinct(final int val) {
+    if (val < 1) {
+      throw new IllegalArgumentException(
+              "max distinct must be at least 1");
+    }
+
+    maxDistinct = val;
+  }
+
+  /** Rewrite the acls. Each entry returned has its own copy of the
+   * rewritten acl, even if other entries have the same acl.
+   *
+   * @param in  entities and their acls
+   * @param <K> type of id
+   * @return entities and their rewritten acls in the same order
+   */
+  public <K> EntryIterator<K> rewrite(final Iterator<Entry<K>> in) {
+    return new RewriteIterator<>(in);
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private char[] rewrite(final char[] aclChars) throws AccessException {
+    rewrites.count++;
+
+    if (aclChars == null) {
+      return edit.apply(null);
+    }
+
+    String key = new String(aclChars);
+    char[] res = rewritten.get(key);
+
+    if (res == null) {
+      distinctRewrites.count++;
+
+      res = edit.apply(aclChars);
+      if (res == null) {
+        res = noAcl;
+      }
+
+      if (rewritten.size() >= maxDistinct) {
+        rewritten.clear();
+      }
+
+      rewritten.put(key, res);
+    }
+
+    if (res == noAcl) {
+      return null;
+    }
+
+    // Entities with the same acl each get their own copy
+    return res.clone();
+  }
+
+  /* Carries an AccessException out of a fork-join task */
+  private static class WrappedException extends RuntimeException {
+    final AccessException ae;
+
+    WrappedException(final AccessException ae) {
+      super(ae);
+      this.ae = ae;
+    }
+  }
+
+  private class RewriteIterator<K> implements EntryIterator<K> {
+    private final Iterator<Entry<K>> in;
+
+    private final List<Entry<K>> chunk = new ArrayList<>();
+    private int pos;
+
+    private ForkJoinPool pool;
+
+    private boolean closed;
+
+    RewriteIterator(final Iterator<Entry<K>> in) {
+      this.in = in;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (pos < chunk.size()) {
+        return true;
+      }
+
+      return fill();
+    }
+
+    @Override
+    public Entry<K> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      Entry<K> ent = chunk.get(pos);
+      chunk.set(pos, null);
+      pos++;
+
+      return ent;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+      chunk.clear();
+      pos = 0;
+
+      if (pool != null) {
+        pool.shutdown();
+        pool = null;
+      }
+    }
+
+    private boolean fill() {
+      if (closed) {
+        return false;
+      }
+
+      chunk.clear();
+      pos = 0;
+
+      boolean ok = false;
+
+      try {
+        while ((chunk.size() < chunkSize) && in.hasNext()) {
+          chunk.add(in.next());
+        }
+
+        if (chunk.isEmpty()) {
+          return false;
+        }
+
+        if ((parallelism == 1) || (chunk.size() < 2)) {
+          rewriteRange(0, chunk.size());
+        } else {
+          if (pool == null) {
+            pool = new ForkJoinPool(parallelism);
+          }
+
+          pool.invoke(new RangeTask(0, chunk.size()));
+        }
+
+        ok = true;
+        return true;
+      } catch (AccessException ae) {
+        throw new RuntimeException(ae);
+      } catch (WrappedException we) {
+        throw new RuntimeException(we.ae);
+      } finally {
+        // At the end or failed
+        if (!ok) {
+          close();
+        }
+      }
+    }
+
+    private void rewriteRange(final int from,
+                              final int to) throws AccessException {
+      for (int i = from; i < to; i++) {
+        Entry<K> ent = chunk.get(i);
+
+        chunk.set(i, new Entry<>(ent.getId(), rewrite(ent.getAclChars())));
+      }
+    }
+
+    /* Rewrites the chunk entries in [from, to) */
+    private class RangeTask extends RecursiveAction {
+      private final int from;
+      private final int to;
+
+      RangeTask(final int from,
+                final int to) {
+        this.from = from;
+        this.to = to;
+      }
+
+      @Override
+      protected void compute() {
+        int size = Math.max(1, chunk.size() / (parallelism * 4));
+
+        if ((to - from) > size) {
+          int mid = (from + to) >>> 1;
+
+          invokeAll(new RangeTask(from, mid), new RangeTask(mid, to));
+          return;
+        }
+
+        try {
+          rewriteRange(from, to);
+        } catch (AccessException ae) {
+          throw new WrappedException(ae);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,369 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import org.bedework.access.Acl.CurrentAccess;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Holds each distinct acl once and gives it a small int id, so entities
+ * with the same acl may refer to it by id and caches may key on the id.
+ *
+ * <p>Acls are put in canonical form, that is decoded and encoded again,
+ * and identified by the SHA-256 hash of the canonical form. Acls with the
+ * same aces get the same id whether they use the old or the new flags or
+ * are compressed. Aces are not otherwise normalized, so acls which grant
+ * the same access but list their aces or privileges in another order get
+ * different ids.
+ *
+ * <p>The store may be written to a file and read back. Ids are assigned in
+ * order from 0 and do not change once assigned.
+ *
+ * @author douglm
+ */
+public class AclStore {
+  private static final int fileMagic = 0x42574153;  // "BWAS"
+  private static final int fileVersion = 1;
+
+  /* Id keyed by the hex hash of the canonical acl */
+  private final ConcurrentHashMap<String, Integer> byHash =
+          new ConcurrentHashMap<>();
+
+  /* Canonical acls indexed by id - changed under the lock and always
+   * republished so readers without the lock see the new entries */
+  private volatile char[][] byId = new char[64][];
+
+  private int numIds;
+
+  /* Compiled form of acls by id */
+  private final ConcurrentHashMap<Integer, CompiledAcl> compiled =
+          new ConcurrentHashMap<>();
+
+  private static Access.AccessStatsEntry storeInterns =
+    new Access.AccessStatsEntry("Acl store interns");
+
+  private static Access.AccessStatsEntry storeAdded =
+    new Access.AccessStatsEntry("Acl store distinct acls added");
+
+  /** Get the statistics
+   *
+   * @return Collection of stats
+   */
+  public static Collection<Access.AccessStatsEntry> getStatistics() {
+    Collection<Access.AccessStatsEntry> stats = new ArrayList<>();
+
+    stats.add(storeInterns);
+    stats.add(storeAdded);
+
+    return stats;
+  }
+
+  /** Return the id for the acl, adding it if we haven't seen it before.
+   *
+   * @param aclChars encoded acl
+   * @return id of the acl
+   * @throws AccessException for a malformed acl
+   */
+  public int intern(final char[] aclChars) throws AccessException {
+    storeInterns.count++;
+
+    char[] canonical = canonical(aclChars);
+    String hash = hash(canonical);
+
+    Integer id = byHash.get(hash);
+
+    if (id != null) {
+      return id;
+    }
+
+    synchronized (this) {
+      id = byHash.get(hash);
+
+      if (id != null) {
+        return id;
+      }
+
+      storeAdded.count++;
+
+      return add(hash, canonical);
+    }
+  }
+
+  /** Return the id for the acl if we have it.
+   *
+   * @param aclChars encoded acl
+   * @return id of the acl or -1
+   * @throws AccessException for a malformed acl
+   */
+  public int find(final char[] aclChars) throws AccessException {
+    Integer id = byHash.get(hash(canonical(aclChars)));
+
+    if (id == null) {
+      return -1;
+    }
+
+    return id;
+  }
+
+  /** Get the canonical acl for an id.
+   *
+   * @param id of the acl
+   * @return a copy of the encoded acl - null for the empty acl
+   */
+  public char[] get(final int id) {
+    char[] acl = stored(id);
+
+    if (acl == null) {
+      return null;
+    }
+
+    return acl.clone();
+  }
+
+  /**
+   * @return number of distinct acls held
+   */
+  public synchronized int size() {
+    return numIds;
+  }
+
+  /** Get the compiled form of an acl, compiling it the first time. The same
+   * callback should be used for every call.
+   *
+   * @param id of the acl
+   * @param cb callback
+   * @return compiled acl
+   * @throws AccessException
+   */
+  public CompiledAcl getCompiled(final int id,
+                                 final Access.AccessCb cb)
+          throws AccessException {
+    CompiledAcl cacl = compiled.get(id);
+
+    if (cacl == null) {
+      cacl = new CompiledAcl(cb, stored(id));
+      compiled.putIfAbsent(id, cacl);
+    }
+
+    return cacl;
+  }
+
+  /** Evaluate access to an entity with the acl as described for
+   * {@link Acl#evaluateAccess}.
+   *
+   * @param id of the acl
+   * @param cb callback
+   * @param who       principal trying to get access
+   * @param owner     owner of the entity
+   * @param how       desired access - empty for any
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   * @throws AccessException
+   */
+  public CurrentAccess evaluateAccess(final int id,
+                                      final Access.AccessCb cb,
+                                      final AccessPrincipal who,
+                                      final AccessPrincipal owner,
+                                      final Privilege[] how,
+                                      final PrivilegeSet filter)
+          throws AccessException {
+    return getCompiled(id, cb).evaluate(who, owner, how, filter);
+  }
+
+  /* ====================================================================
+   *                   Persistence
+   * ==================================================================== */
+
+  /** Write the store to a file. The file is written alongside and moved
+   * over the old one in a single step so a crash leaves either the old or
+   * the new file in place.
+   *
+   * @param f file
+   * @throws IOException on error
+   */
+  public void write(final File f) throws IOException {
+    File tmp = new File(f.getPath() + ".tmp");
+
+    char[][] ids;
+    int num;
+
+    synchronized (this) {
+      ids = byId;
+      num = numIds;
+    }
+
+    try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmp)))) {
+      out.writeInt(fileMagic);
+      out.writeInt(fileVersion);
+      out.writeInt(num);
+
+      for (int i = 0; i < num; i++) {
+        char[] acl = ids[i];
+
+        out.writeInt(acl.length);
+
+        for (char c: acl) {
+          out.writeChar(c);
+        }
+      }
+    }
+
+    Files.move(tmp.toPath(), f.toPath(),
+               StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Read a store written by write.
+   *
+   * @param f file
+   * @return the store
+   * @throws IOException on error or if the file is not a store
+   */
+  public static AclStore read(final File f) throws IOException {
+    AclStore store = new AclStore();
+
+    try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(f)))) {
+      if (in.readInt() != fileMagic) {
+        throw new IOException("Not an acl store: " + f);
+      }
+
+      if (in.readInt() != fileVersion) {
+        throw new IOException("Unsupported acl store version: " + f);
+      }
+
+      int num = in.readInt();
+
+      for (int i = 0; i < num; i++) {
+        char[] acl = new char[in.readInt()];
+
+        for (int ci = 0; ci < acl.length; ci++) {
+          acl[ci] = in.readChar();
+        }
+
+        // Ids are the position in the file
+        synchronized (store) {
+          store.add(hash(acl), acl);
+        }
+      }
+    }
+
+    return store;
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  /* The stored acl - null for the empty acl */
+  private char[] stored(final int id) {
+    char[][] ids = byId;
+
+    if ((id < 0) || (id >= ids.length) || (ids[id] == null)) {
+      throw new IllegalArgumentException("Unknown acl id " + id);
+    }
+
+    if (ids[id].length == 0) {
+      return null;
+    }
+
+    return ids[id];
+  }
+
+  /* Called holding the lock */
+  private int add(final String hash,
+                  final char[] canonical) {
+    int id = numIds;
+    char[][] ids = byId;
+
+    if (id == ids.length) {
+      ids = Arrays.copyOf(ids, id * 2);
+    }
+
+    ids[id] = canonical;
+
+    // The volatile write publishes the entry
+    byId = ids;
+    numIds++;
+
+    byHash.put(hash, id);
+
+    return id;
+  }
+
+  /* Decode and encode - the empty acl is a zero length array */
+  private static char[] canonical(final char[] aclChars)
+          throws AccessException {
+    if ((aclChars == null) || (aclChars.length == 0)) {
+      return new char[0];
+    }
+
+    char[] res = Acl.decode(aclChars).encodeAll();
+
+    if (res == null) {
+      return new char[0];
+    }
+
+    return res;
+  }
+
+  private static String hash(final char[] acl) {
+    MessageDigest md;
+
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException nsae) {
+      // Every Java platform has SHA-256
+      throw new RuntimeException(nsae);
+    }
+
+    byte[] bytes = new byte[acl.length * 2];
+
+    for (int i = 0; i < acl.length; i++) {
+      bytes[i * 2] = (byte)(acl[i] >> 8);
+      bytes[i * 2 + 1] = (byte)acl[i];
+    }
+
+    byte[] digest = md.digest(bytes);
+    StringBuilder sb = new StringBuilder(digest.length * 2);
+
+    for (byte b: digest) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+      sb.append(Character.forDigit(b & 0xf, 16));
+    }
+
+    return sb.toString();
+  }
+}
@@ -0,0 +1,491 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/** An optional summary header at the front of a text encoded acl which
+ * lets the evaluator skip work without scanning the aces:
+ * <pre>
+ *   'H'
+ *   3 hex digits  - bit (1 &lt;&lt; whoType) set for each who type present
+ *   16 hex digits - 64 bit bloom filter of the hrefs of named aces
+ *   1 hex digit   - flags
+ *   8 hex digits  - check of the fields above and the aces
+ *   ' '
+ * </pre>
+ *
+ * <p>The hrefs are those the callback makes from the names, as compared by
+ * the evaluator, so the summary must be added with the same callback as is
+ * used for evaluation. Acls without a summary are unchanged, and everything
+ * which reads the encoded form skips it.
+ *
+ * <p>The summary describes the aces as they were when it was added. Adding
+ * or removing an ace with {@link Acl#addAce} or {@link Acl#removeWho}, or
+ * decoding and encoding, drops it - add it again if it's wanted.
+ *
+ * <p>The check is keyed by a secret held by the server. A summary whose
+ * check doesn't match - one from a client, one left in front of changed
+ * aces or one made with another key - is ignored, so it can never change
+ * the result of evaluating access. Servers sharing stored acls should
+ * set the same key with {@link #setKey}. The key is random by default so
+ * stored summaries are only used by the process which added them.
+ *
+ * @author douglm
+ */
+public final class AclSummary implements PrivilegeDefs, WhoDefs {
+  /** First char of an acl with a summary */
+  public static final char summaryFlag = 'H';
+
+  /** Length of the summary */
+  public static final int summaryLength = 30;
+
+  /* Position and length of the check */
+  private static final int checkPos = 21;
+  private static final int checkLength = 8;
+
+  /** Read is allowed to unauthenticated users */
+  public static final int flagPublicRead = 1;
+
+  /** There are not who aces or named aces with no name. The bloom filter
+   * can't rule these out so the evaluator must look at the names.
+   */
+  public static final int flagUnfiltered = 2;
+
+  private static final char[] hexDigits = "0123456789abcdef".toCharArray();
+
+  /* The order in which the evaluator looks for aces applying to an
+   * unauthenticated user - the first type found decides.
+   */
+  private static final int[] unauthenticatedOrder = {
+    whoTypeUnauthenticated,
+    whoTypeAll,
+    whoTypeUser,
+    whoTypeResource,
+    whoTypeTicket,
+    whoTypeVenue,
+    whoTypeHost,
+    whoTypeOther,
+  };
+
+  private static volatile long key = new SecureRandom().nextLong();
+
+  private final int whoTypes;
+  private final long filter;
+  private final int flags;
+
+  private static Access.AccessStatsEntry summariesAdded =
+    new Access.AccessStatsEntry("Acl summaries added");
+
+  private static Access.AccessStatsEntry scansSkipped =
+    new Access.AccessStatsEntry("Acl scans skipped by summary");
+
+  private static Access.AccessStatsEntry summariesIgnored =
+    new Access.AccessStatsEntry("Acl summaries ignored as unchecked");
+
+  private AclSummary(final int whoTypes,
+                     final long filter,
+                     final int flags) {
+    this.whoTypes = whoTypes;
+    this.filter = filter;
+    this.flags = flags;
+  }
+
+  /** Get the statistics
+   *
+   * @return Collection of stats
+   */
+  public static Collection<Access.AccessStatsEntry> getStatistics() {
+    Collection<Access.AccessStatsEntry> stats = new ArrayList<>();
+
+    stats.add(summariesAdded);
+    stats.add(scansSkipped);
+    stats.add(summariesIgnored);
+
+    return stats;
+  }
+
+  /** Set the key for the check of summaries. Summaries added with another
+   * key are ignored from then on.
+   *
+   * @param val the key
+   */
+  public static void setKey(final long val) {
+    key = val;
+  }
+
+  /** Add a summary to the acl, replacing any it already has.
+   *
+   * @param acl encoded acl - may be null
+   * @param cb to make hrefs from the names in the aces
+   * @return acl with a summary - null for a null acl
+   * @throws AccessException for a malformed acl
+   */
+  public static char[] addSummary(final char[] acl,
+                                  final Access.AccessCb cb)
+          throws AccessException {
+    if (acl == null) {
+      return null;
+    }
+
+    char[] expanded = AceDictionary.expand(acl);
+    AclSummary summary = make(expanded, cb);
+    int start = getLength(acl);
+
+    char[] res = new char[summaryLength + acl.length - start];
+
+    summary.encode(res);
+    System.arraycopy(acl, start, res, summaryLength, acl.length - start);
+    setCheck(res, expanded, getLength(expanded));
+
+    summariesAdded.count++;
+
+    return res;
+  }
+
+  /** Remove any summary from the acl.
+   *
+   * @param acl encoded acl - may be null
+   * @return acl without a summary
+   */
+  public static char[] removeSummary(final char[] acl) {
+    int start = getLength(acl);
+
+    if (start == 0) {
+      return acl;
+    }
+
+    char[] res = new char[acl.length - start];
+    System.arraycopy(acl, start, res, 0, res.length);
+
+    return res;
+  }
+
+  /**
+   * @param acl encoded acl - may be null
+   * @return the summary or null for none or one whose check doesn't match
+   * @throws AccessException for a malformed compressed acl
+   */
+  public static AclSummary getSummary(final char[] acl)
+          throws AccessException {
+    if ((getLength(acl) == 0) || !isChecked(AceDictionary.expand(acl))) {
+      return null;
+    }
+
+    return new AclSummary(getWhoTypes(acl), getFilter(acl), getFlags(acl));
+  }
+
+  /**
+   * @param acl encoded acl - may be null
+   * @return length of the summary at the front of the acl - 0 for none
+   */
+  public static int getLength(final char[] acl) {
+    if ((acl == null) || (acl.length < summaryLength) ||
+        (acl[0] != summaryFlag) || (acl[summaryLength - 1] != ' ')) {
+      return 0;
+    }
+
+    for (int i = 1; i < summaryLength - 1; i++) {
+      if (!isHex(acl[i])) {
+        return 0;
+      }
+    }
+
+    return summaryLength;
+  }
+
+  /**
+   * @param acl encoded acl - may be null
+   * @return length of the summary at the front of the acl - 0 for none
+   */
+  public static int getLength(final CharSequence acl) {
+    if ((acl == null) || (acl.length() < summaryLength) ||
+        (acl.charAt(0) != summaryFlag) ||
+        (acl.charAt(summaryLength - 1) != ' ')) {
+      return 0;
+    }
+
+    for (int i = 1; i < summaryLength - 1; i++) {
+      if (!isHex(acl.charAt(i))) {
+        return 0;
+      }
+    }
+
+    return summaryLength;
+  }
+
+  /**
+   * @return bit (1 &lt;&lt; whoType) set for each who type present
+   */
+  public int getWhoTypes() {
+    return whoTypes;
+  }
+
+  /**
+   * @param whoType from WhoDefs
+   * @return true if there are aces of the type
+   */
+  public boolean hasWhoType(final int whoType) {
+    return (whoTypes & (1 << whoType)) != 0;
+  }
+
+  /**
+   * @return flags
+   */
+  public int getFlags() {
+    return flags;
+  }
+
+  /**
+   * @return true if unauthenticated users may read
+   */
+  public boolean isPublicRead() {
+    return (flags & flagPublicRead) != 0;
+  }
+
+  /** False if no named ace can apply to the href. True means one might.
+   *
+   * @param href of a principal or group
+   * @return true if an ace might name the href
+   */
+  public boolean mightName(final String href) {
+    return ((flags & flagUnfiltered) != 0) || mightContain(filter, href);
+  }
+
+  @Override
+  public String toString() {
+    char[] c = new char[summaryLength];
+    encode(c);
+
+    return "AclSummary{" + new String(c, 1, checkPos - 1) + "}";
+  }
+
+  /* ====================================================================
+   *                   Package methods
+   * ==================================================================== */
+
+  /* These read the summary of an acl without creating objects. The acl must
+   * have one.
+   */
+
+  static int getWhoTypes(final char[] acl) {
+    return (int)hex(acl, 1, 3);
+  }
+
+  static long getFilter(final char[] acl) {
+    return hex(acl, 4, 16);
+  }
+
+  static int getFlags(final char[] acl) {
+    return (int)hex(acl, 20, 1);
+  }
+
+  static boolean mightContain(final long filter,
+                              final String href) {
+    if (href == null) {
+      return false;
+    }
+
+    long bits = bits(href);
+
+    return (filter & bits) == bits;
+  }
+
+  static void skipped() {
+    scansSkipped.count++;
+  }
+
+  /* True if the summary of the acl matches its check. The acl must have a
+   * summary and not be compressed.
+   */
+  static boolean isChecked(final char[] acl) {
+    if (check(acl, acl, summaryLength) == (int)hex(acl, checkPos,
+                                                   checkLength)) {
+      return true;
+    }
+
+    summariesIgnored.count++;
+    return false;
+  }
+
+  /* The summary of from in front of the aces of to, which must not be
+   * compressed. Only for an edit which doesn't change what the summary
+   * describes. Null if from has no summary or its check doesn't match.
+   */
+  static char[] copySummary(final char[] from,
+                            final char[] to) throws AccessException {
+    if ((getLength(from) == 0) || !isChecked(AceDictionary.expand(from))) {
+      return null;
+    }
+
+    int start = getLength(to);
+    char[] res = new char[summaryLength + to.length - start];
+
+    System.arraycopy(from, 0, res, 0, summaryLength);
+    System.arraycopy(to, start, res, summaryLength, to.length - start);
+    setCheck(res, res, summaryLength);
+
+    return res;
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private static AclSummary make(final char[] acl,
+                                 final Access.AccessCb cb)
+          throws AccessException {
+    int whoTypes = 0;
+    long filter = 0;
+    int flags = 0;
+
+    /* Read state by who type for aces which apply to unauthenticated
+       users - explicit then inherited: 0 not seen, 1 denied, 2 allowed */
+    int[] explicit = new int[whoTypeFlags.length];
+    int[] inherited = new int[whoTypeFlags.length];
+
+    AclView view = new AclView(new String(acl));
+
+    while (view.hasMore()) {
+      AceView ace = view.next();
+      int whoType = ace.getWhoType();
+      boolean unnamed = ace.getName() == null;
+
+      whoTypes |= 1 << whoType;
+
+      if (whoTypeNamed[whoType]) {
+        if (ace.getNotWho() || unnamed) {
+          flags |= flagUnfiltered;
+        } else {
+          filter |= bits(cb.makeHref(ace.getNameString(), whoType));
+        }
+      }
+
+      /* As the evaluator matches a principal with no href. Not who doesn't
+         change an ace with a type that has no name. */
+      boolean applies;
+
+      if ((whoType == whoTypeOther) || whoTypeNamed[whoType]) {
+        applies = (whoType != whoTypeGroup) && (unnamed != ace.getNotWho());
+      } else {
+        applies = true;
+      }
+
+      if (!applies) {
+        continue;
+      }
+
+      int[] states = explicit;
+      if (ace.isInherited()) {
+        states = inherited;
+      }
+
+      /* As when merged - allowed wins */
+      if ((ace.getAllowedMask() & (1 << privRead)) != 0) {
+        states[whoType] = 2;
+      } else if (states[whoType] == 0) {
+        states[whoType] = 1;
+      }
+    }
+
+    for (int wt: unauthenticatedOrder) {
+      int read = explicit[wt];
+
+      if (read == 0) {
+        read = inherited[wt];
+      }
+
+      if (read == 2) {
+        flags |= flagPublicRead;
+      }
+
+      if (read != 0) {
+        break;
+      }
+    }
+
+    return new AclSummary(whoTypes, filter, flags);
+  }
+
+  /* Set the check in the summary at the front of res from the fields and
+   * the aces of the expanded acl starting at start.
+   */
+  private static void setCheck(final char[] res,
+                               final char[] expanded,
+                               final int start) {
+    hex(res, checkPos, checkLength, check(res, expanded, start) & 0xffffffffL);
+  }
+
+  /* Check of the fields of the summary in front of acl and the aces of the
+   * expanded acl from start.
+   */
+  private static int check(final char[] acl,
+                           final char[] expanded,
+                           final int start) {
+    long h = AclFingerprint.compute(key, acl, 1, checkPos);
+
+    return (int)AclFingerprint.compute(h, expanded, start, expanded.length);
+  }
+
+  /* Three bits of the filter for an href */
+  private static long bits(final String href) {
+    long h = AclFingerprint.compute(href);
+
+    return (1L << (h & 63)) |
+           (1L << ((h >>> 6) & 63)) |
+           (1L << ((h >>> 12) & 63));
+  }
+
+  private void encode(final char[] c) {
+    c[0] = summaryFlag;
+    hex(c, 1, 3, whoTypes);
+    hex(c, 4, 16, filter);
+    hex(c, 20, 1, flags);
+    hex(c, checkPos, checkLength, 0);
+    c[summaryLength - 1] = ' ';
+  }
+
+  private static void hex(final char[] c,
+                          final int pos,
+                          final int len,
+                          long val) {
+    for (int i = pos + len - 1; i >= pos; i--) {
+      c[i] = hexDigits[(int)(val & 15)];
+      val >>>= 4;
+    }
+  }
+
+  private static boolean isHex(final char c) {
+    return ((c >= '0') && (c <= '9')) || ((c >= 'a') && (c <= 'f'));
+  }
+
+  private static long hex(final char[] c,
+                          final int pos,
+                          final int len) {
+    long res = 0;
+
+    for (int i = pos; i < pos + len; i++) {
+      res = (res << 4) | Character.digit(c[i], 16);
+    }
+
+    return res;
+  }
+}
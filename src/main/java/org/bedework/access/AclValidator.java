@@ -0,0 +1,551 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/** Check an encoded acl is well formed before it is stored, without
+ * decoding it. The acl is scanned once and no objects are created - the
+ * result is a code with the offset of the error, and a few counts
+ * describing the acl are gathered on the way.
+ *
+ * <p>Acls compressed with a registered {@link AceDictionary} are accepted, as
+ * is an {@link AclSummary} at the front if its who types are those of the
+ * aces. The rest of a summary can't be checked without the callback - the
+ * evaluator ignores any summary the server didn't add.
+ *
+ * <p>A validator may be reused but is not thread safe.
+ *
+ * @author douglm
+ */
+public final class AclValidator implements PrivilegeDefs, WhoDefs {
+  /** The acl is well formed */
+  public static final int valid = 0;
+
+  /** The acl ends part way through an ace */
+  public static final int errTruncated = 1;
+
+  /** Expected a who or not who flag */
+  public static final int errWhoFlag = 2;
+
+  /** Unknown who type */
+  public static final int errWhoType = 3;
+
+  /** Bad char in a length */
+  public static final int errLength = 4;
+
+  /** Expected a privilege flag */
+  public static final int errPrivFlag = 5;
+
+  /** Unknown privilege */
+  public static final int errPriv = 6;
+
+  /** Inherited from path not followed by the terminator */
+  public static final int errInherited = 7;
+
+  /** Unknown dictionary or bad dictionary reference */
+  public static final int errDictionary = 8;
+
+  /** The acl exceeds the {@link AclLimits} */
+  public static final int errLimit = 9;
+
+  /** The summary at the front doesn't match the aces */
+  public static final int errSummary = 10;
+
+  private static final String[] messages = {
+    "valid",
+    "truncated",
+    "who/notWho flag",
+    "who type",
+    "length",
+    "privilege flag",
+    "unknown privilege",
+    "inherited from",
+    "dictionary reference",
+    "exceeds limits",
+    "summary",
+  };
+
+  /* Who type index for each who type flag or -1 */
+  private static final int[] whoTypeIndex = new int[128];
+
+  static {
+    for (int i = 0; i < whoTypeIndex.length; i++) {
+      whoTypeIndex[i] = -1;
+    }
+
+    for (int wt = 0; wt < whoTypeFlags.length; wt++) {
+      whoTypeIndex[whoTypeFlags[wt]] = wt;
+    }
+  }
+
+  private char[] acl;
+
+  private AclLimits limits;
+
+  private int errorOffset;
+
+  private int aceCount;
+  private int whoTypes;
+  private int namedCount;
+  private int inheritedCount;
+  private int oldFlagCount;
+  private boolean sorted;
+
+  /* Length of the last value parsed by parseLength or -1 for null, or the
+   * last number parsed by parseNumber */
+  private int length;
+
+  /* From the limits for this validation */
+  private int maxAces;
+  private int maxNameLength;
+
+  /* The whos of the previous and current aces for AceWho.compareEncoded */
+  private int[] lastWho = new int[4];
+  private int[] thisWho = new int[4];
+
+  private static Access.AccessStatsEntry validations =
+    new Access.AccessStatsEntry("Acl validations");
+
+  private static Access.AccessStatsEntry invalidAcls =
+    new Access.AccessStatsEntry("Acl validations failed");
+
+  /** Get the statistics
+   *
+   * @return Collection of stats
+   */
+  public static Collection<Access.AccessStatsEntry> getStatistics() {
+    Collection<Access.AccessStatsEntry> stats = new ArrayList<>();
+
+    stats.add(validations);
+    stats.add(invalidAcls);
+
+    return stats;
+  }
+
+  /**
+   * @param code from validate
+   * @return short description of the code
+   */
+  public static String getMessage(final int code) {
+    if ((code < 0) || (code >= messages.length)) {
+      return "unknown";
+    }
+
+    return messages[code];
+  }
+
+  /** Set the limits checked by validate. By default they are
+   * AclLimits.getDefault()
+   *
+   * @param val limits
+   */
+  public void setLimits(final AclLimits val) {
+    limits = val;
+  }
+
+  /** Check the acl. The counts describe the aces up to the error.
+   *
+   * @param val encoded acl - null or empty for no aces
+   * @return valid or an error code
+   */
+  public int validate(final char[] val) {
+    validations.count++;
+
+    acl = val;
+    errorOffset = -1;
+    aceCount = 0;
+    whoTypes = 0;
+    namedCount = 0;
+    inheritedCount = 0;
+    oldFlagCount = 0;
+    sorted = true;
+
+    AclLimits lim = limits;
+    if (lim == null) {
+      lim = AclLimits.getDefault();
+    }
+
+    maxAces = lim.getMaxAces();
+    maxNameLength = lim.getMaxNameLength();
+
+    int res;
+    int summaryLen = AclSummary.getLength(val);
+
+    if ((val != null) && (val.length > lim.getMaxAclLength())) {
+      res = -error(errLimit, lim.getMaxAclLength());
+    } else if (AceDictionary.isCompressed(val)) {
+      res = scanCompressed(summaryLen);
+    } else {
+      res = scan(summaryLen);
+    }
+
+    if ((res == valid) && (summaryLen != 0) &&
+        (AclSummary.getWhoTypes(val) != whoTypes)) {
+      res = -error(errSummary, 0);
+    }
+
+    acl = null;
+
+    if (res != valid) {
+      invalidAcls.count++;
+    }
+
+    return res;
+  }
+
+  /**
+   * @return offset of the error or -1
+   */
+  public int getErrorOffset() {
+    return errorOffset;
+  }
+
+  /**
+   * @return number of aces
+   */
+  public int getAceCount() {
+    return aceCount;
+  }
+
+  /**
+   * @return bit (1 &lt;&lt; whoType) set for each who type present
+   */
+  public int getWhoTypes() {
+    return whoTypes;
+  }
+
+  /**
+   * @return number of aces with a name
+   */
+  public int getNamedCount() {
+    return namedCount;
+  }
+
+  /**
+   * @return number of aces inherited from another entity
+   */
+  public int getInheritedCount() {
+    return inheritedCount;
+  }
+
+  /**
+   * @return number of privileges with the old allowed or denied flags
+   */
+  public int getOldFlagCount() {
+    return oldFlagCount;
+  }
+
+  /**
+   * @return true if the aces are in order with no duplicate who - always
+   *         false for a compressed acl
+   */
+  public boolean isSorted() {
+    return sorted;
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private int scan(int pos) {
+    if (acl == null) {
+      return valid;
+    }
+
+    while (pos < acl.length) {
+      pos = scanAce(pos);
+
+      if (pos < 0) {
+        return -pos;
+      }
+    }
+
+    return valid;
+  }
+
+  private int scanCompressed(final int begin) {
+    sorted = false;
+
+    int pos = parseNumber(begin + 1);
+    if (pos < 0) {
+      return -pos;
+    }
+
+    AceDictionary dict = AceDictionary.getDictionary(length);
+
+    if (dict == null) {
+      return -error(errDictionary, begin + 1);
+    }
+
+    while (pos < acl.length) {
+      if (acl[pos] != AceDictionary.referenceFlag) {
+        pos = scanAce(pos);
+
+        if (pos < 0) {
+          return -pos;
+        }
+
+        continue;
+      }
+
+      int start = pos;
+
+      if (aceCount >= maxAces) {
+        return -error(errLimit, start);
+      }
+
+      pos = parseNumber(pos + 1);
+      if (pos < 0) {
+        return -pos;
+      }
+
+      if (length >= dict.size()) {
+        return -error(errDictionary, start);
+      }
+
+      AceWho who = dict.getAce(length).getWho();
+
+      count(who.getWhoType(), who.getWho() != null);
+    }
+
+    return valid;
+  }
+
+  /* Scan the ace at pos. Returns the position after it or minus the error
+   * code.
+   */
+  private int scanAce(int pos) {
+    if (aceCount >= maxAces) {
+      return error(errLimit, pos);
+    }
+
+    if (pos + 2 >= acl.length) {
+      return error(errTruncated, pos);
+    }
+
+    char c = acl[pos];
+
+    if (c == notWhoFlag) {
+      thisWho[0] = 1;
+    } else if (c == whoFlag) {
+      thisWho[0] = 0;
+    } else {
+      return error(errWhoFlag, pos);
+    }
+
+    c = acl[pos + 1];
+
+    if ((c >= whoTypeIndex.length) || (whoTypeIndex[c] < 0)) {
+      return error(errWhoType, pos + 1);
+    }
+
+    int whoType = whoTypeIndex[c];
+    thisWho[1] = whoType;
+
+    int nameStart = pos + 2;
+
+    pos = parseLength(nameStart);
+    if (pos < 0) {
+      return pos;
+    }
+
+    if (length > maxNameLength) {
+      return error(errLimit, nameStart);
+    }
+
+    if (length >= 0) {
+      thisWho[2] = pos - length;
+    }
+    thisWho[3] = length;
+
+    count(whoType, length >= 0);
+
+    if (sorted && (aceCount > 1) &&
+        (AceWho.compareEncoded(acl, lastWho, thisWho) >= 0)) {
+      sorted = false;
+    }
+
+    int[] t = lastWho;
+    lastWho = thisWho;
+    thisWho = t;
+
+    /* ------------------- privileges ------------------- */
+
+    for (;;) {
+      if (pos >= acl.length) {
+        return error(errTruncated, pos);
+      }
+
+      c = acl[pos];
+
+      if (c == ' ') {
+        return pos + 1;
+      }
+
+      if (c == inheritedFlag) {
+        int pathStart = pos + 1;
+
+        pos = parseLength(pathStart);
+        if (pos < 0) {
+          return pos;
+        }
+
+        if (length > maxNameLength) {
+          return error(errLimit, pathStart);
+        }
+
+        if ((pos >= acl.length) || (acl[pos] != ' ')) {
+          return error(errInherited, pos);
+        }
+
+        if (length >= 0) {
+          inheritedCount++;
+        }
+
+        return pos + 1;
+      }
+
+      if ((c != denied) && (c != oldDenied) &&
+          (c != allowed) && (c != oldAllowed)) {
+        return error(errPrivFlag, pos);
+      }
+
+      if ((c == oldDenied) || (c == oldAllowed)) {
+        oldFlagCount++;
+      }
+
+      pos++;
+
+      if (pos >= acl.length) {
+        return error(errTruncated, pos);
+      }
+
+      if (Privileges.privIndex(acl[pos]) < 0) {
+        return error(errPriv, pos);
+      }
+
+      pos++;
+    }
+  }
+
+  /* Skip the length prefixed value or null at pos, setting length to its
+   * length or -1 for null. Returns the position after it or minus the error
+   * code.
+   */
+  private int parseLength(int pos) {
+    if (pos >= acl.length) {
+      return error(errTruncated, pos);
+    }
+
+    if (acl[pos] == 'N') {
+      length = -1;
+      return pos + 1;
+    }
+
+    int len = 0;
+
+    for (;;) {
+      if (pos >= acl.length) {
+        return error(errTruncated, pos);
+      }
+
+      char c = acl[pos];
+
+      if (c == ' ') {
+        break;
+      }
+
+      if ((c < '0') || (c > '9')) {
+        return error(errLength, pos);
+      }
+
+      len = len * 10 + (c - '0');
+
+      if (len > acl.length) {
+        return error(errTruncated, acl.length);
+      }
+
+      pos++;
+    }
+
+    pos++;
+
+    if (acl.length - pos < len) {
+      return error(errTruncated, acl.length);
+    }
+
+    length = len;
+
+    return pos + len;
+  }
+
+  /* Parse the number terminated by a blank at pos, e.g. a dictionary
+   * version or index, as EncodedAcl.getLength does. Sets length to the
+   * number and returns the position after the blank or minus the error
+   * code.
+   */
+  private int parseNumber(int pos) {
+    int num = 0;
+
+    for (;;) {
+      if (pos >= acl.length) {
+        return error(errTruncated, pos);
+      }
+
+      char c = acl[pos];
+      pos++;
+
+      if (c == ' ') {
+        break;
+      }
+
+      if ((c < '0') || (c > '9')) {
+        return error(errLength, pos - 1);
+      }
+
+      if (num > (Integer.MAX_VALUE - 9) / 10) {
+        return error(errLength, pos - 1);
+      }
+
+      num = num * 10 + (c - '0');
+    }
+
+    length = num;
+
+    return pos;
+  }
+
+  private void count(final int whoType,
+                     final boolean named) {
+    aceCount++;
+    whoTypes |= 1 << whoType;
+
+    if (named) {
+      namedCount++;
+    }
+  }
+
+  private int error(final int code, final int offset) {
+    errorOffset = offset;
+
+    return -code;
+  }
+}
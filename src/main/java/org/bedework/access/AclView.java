@@ -0,0 +1,127 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+/** A view of the aces of a text encoded acl held in any CharSequence - a
+ * String, a CharBuffer, or the CharBuffer view of a memory mapped file -
+ * without copying or decoding it. Any {@link AclSummary} is skipped.
+ *
+ * <p>The view hands out the same {@link AceView} for every ace, so the aces
+ * may be scanned without creating any objects:
+ * <pre>
+ *   AclView view = new AclView(chars);
+ *
+ *   while (view.hasMore()) {
+ *     AceView ace = view.next();
+ *     ...
+ *   }
+ * </pre>
+ *
+ * <p>The acl is held to the default {@link AclLimits} unless others are
+ * set, as when it is decoded.
+ *
+ * <p>A view may be reset to look at another acl. Views are not thread safe.
+ *
+ * @author douglm
+ */
+public final class AclView {
+  private CharSequence acl;
+
+  private int pos;
+
+  private AclLimits limits;
+
+  /* Aces seen since the start */
+  private int aceCount;
+
+  private final AceView ace = new AceView();
+
+  /** Create a view - reset must be called before it is used.
+   */
+  public AclView() {
+  }
+
+  /**
+   * @param acl text encoded acl
+   */
+  public AclView(final CharSequence acl) {
+    reset(acl);
+  }
+
+  /**
+   * @param val limits for the acls looked at - null for the default
+   */
+  public void setLimits(final AclLimits val) {
+    limits = val;
+  }
+
+  /** Look at another acl
+   *
+   * @param val text encoded acl - null for no aces
+   * @return this view
+   */
+  public AclView reset(final CharSequence val) {
+    acl = val;
+    rewind();
+
+    return this;
+  }
+
+  /** Go back to the first ace
+   */
+  public void rewind() {
+    pos = AclSummary.getLength(acl);
+    aceCount = 0;
+  }
+
+  /**
+   * @return true if there are more aces
+   */
+  public boolean hasMore() {
+    return (acl != null) && (pos < acl.length());
+  }
+
+  /** Move to the next ace. The result is valid until the next call.
+   *
+   * @return the view of the ace
+   * @throws AccessException for a malformed acl
+   */
+  public AceView next() throws AccessException {
+    if (!hasMore()) {
+      throw AccessException.badACLLength();
+    }
+
+    AclLimits lim = limits;
+    if (lim == null) {
+      lim = AclLimits.getDefault();
+    }
+
+    aceCount++;
+
+    if (aceCount == 1) {
+      lim.checkAclLength(acl.length());
+    }
+
+    lim.checkAces(aceCount);
+
+    pos = ace.parse(acl, pos, lim);
+
+    return ace;
+  }
+}
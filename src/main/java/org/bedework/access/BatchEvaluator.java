@@ -0,0 +1,376 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Evaluate access for one principal to many objects, for example the
+ * members of a collection being listed by a PROPFIND.
+ *
+ * <p>Rather than evaluate each object separately we set up once for the
+ * principal and desired access, and evaluate each distinct acl in the batch
+ * only once. The per object results do not go through the
+ * {@link EvaluatedAccessCache}.
+ *
+ * <p>The result depends on the acl and on whether the principal owns the
+ * object, so objects with the same acl and the same answer to that
+ * question share a result.
+ *
+ * <p>Large batches, for example admin-side scans over a whole system, may
+ * be split across a number of threads by setting the parallelism. Results
+ * are still indexed by position in the input.
+ *
+ * @author douglm
+ */
+public class BatchEvaluator {
+  private final Access.AccessCb cb;
+
+  private int parallelism = 1;
+
+  private ProgressListener progressListener;
+
+  /** Number of objects handled as a unit in parallel mode */
+  static final int chunkSize = 256;
+
+  private static Access.AccessStatsEntry batches =
+    new Access.AccessStatsEntry("Batch evaluations");
+
+  private static Access.AccessStatsEntry batchEntries =
+    new Access.AccessStatsEntry("Batch entries");
+
+  private static Access.AccessStatsEntry batchAcls =
+    new Access.AccessStatsEntry("Batch distinct acls evaluated");
+
+  /**
+   * @param cb callback
+   */
+  public BatchEvaluator(final Access.AccessCb cb) {
+    this.cb = cb;
+  }
+
+  /** Told how far we've got with a batch. In parallel mode this is called
+   * from the worker threads.
+   */
+  public interface ProgressListener {
+    /**
+     * @param done   number of objects evaluated so far
+     * @param total  number of objects in the batch
+     */
+    void progress(int done, int total);
+  }
+
+  /** Set the number of threads used to evaluate a batch. 1 (the default)
+   * means evaluate in the calling thread.
+   *
+   * <p>The callback must be safe to call from many threads if this is
+   * greater than 1.
+   *
+   * @param val number of threads
+   */
+  public void setParallelism(final int val) {
+    if (val < 1) {
+      throw new IllegalArgumentException("parallelism must be at least 1");
+    }
+
+    parallelism = val;
+  }
+
+  /**
+   * @return number of threads used to evaluate a batch
+   */
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * @param val listener or null for none
+   */
+  public void setProgressListener(final ProgressListener val) {
+    progressListener = val;
+  }
+
+  /** Get the statistics
+   *
+   * @return Collection of stats
+   */
+  public static Collection<Access.AccessStatsEntry> getStatistics() {
+    Collection<Access.AccessStatsEntry> stats = new ArrayList<>();
+
+    stats.add(batches);
+    stats.add(batchEntries);
+    stats.add(batchAcls);
+
+    return stats;
+  }
+
+  /** Evaluate access for the principal to each of the objects.
+   *
+   * @param who       principal trying to get access
+   * @param how       desired access - empty for any
+   * @param vals      the objects
+   * @param accessor  provides the owner and acl of each object
+   * @param filter    if not null specifies maximum access
+   * @param <T> type of object
+   * @return BitSet with bit n set if access to the nth object is allowed
+   * @throws AccessException on error
+   */
+  public <T> BitSet evaluate(final AccessPrincipal who,
+                             final Privilege[] how,
+                             final Collection<T> vals,
+                             final Access.AclAccessor<T> accessor,
+                             final PrivilegeSet filter)
+          throws AccessException {
+    batches.count++;
+
+    if ((parallelism > 1) && (vals.size() > chunkSize)) {
+      return evaluateParallel(who, how, vals, accessor, filter);
+    }
+
+    Batch<T> batch = new Batch<>(who, how, accessor, filter,
+                                 new HashMap<Long, AclResult>(),
+                                 new HashMap<Long, AclResult>());
+    BitSet res = new BitSet(vals.size());
+    int total = vals.size();
+
+    int i = 0;
+    for (T val: vals) {
+      if (batch.evaluate(val)) {
+        res.set(i);
+      }
+
+      i++;
+
+      if ((progressListener != null) && ((i % chunkSize) == 0)) {
+        progressListener.progress(i, total);
+      }
+    }
+
+    batchEntries.count += total;
+
+    if (progressListener != null) {
+      progressListener.progress(total, total);
+    }
+
+    return res;
+  }
+
+  private <T> BitSet evaluateParallel(final AccessPrincipal who,
+                                      final Privilege[] how,
+                                      final Collection<T> vals,
+                                      final Access.AclAccessor<T> accessor,
+                                      final PrivilegeSet filter)
+          throws AccessException {
+    List<T> l;
+
+    if ((vals instanceof List) && (vals instanceof RandomAccess)) {
+      l = (List<T>)vals;
+    } else {
+      l = new ArrayList<>(vals);
+    }
+
+    Batch<T> batch = new Batch<>(who, how, accessor, filter,
+                                 new ConcurrentHashMap<Long, AclResult>(),
+                                 new ConcurrentHashMap<Long, AclResult>());
+    boolean[] allowed = new boolean[l.size()];
+
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+    try {
+      pool.invoke(new RangeTask<>(batch, l, allowed, 0, l.size(),
+                                  new AtomicInteger(),
+                                  progressListener));
+    } catch (WrappedException we) {
+      throw we.ae;
+    } finally {
+      pool.shutdown();
+    }
+
+    batchEntries.count += l.size();
+
+    BitSet res = new BitSet(allowed.length);
+    for (int i = 0; i < allowed.length; i++) {
+      if (allowed[i]) {
+        res.set(i);
+      }
+    }
+
+    return res;
+  }
+
+  /* Everything needed to evaluate one object of a batch, with the results
+   * for the distinct acls seen so far.
+   */
+  private class Batch<T> {
+    private final AccessPrincipal who;
+    private final Privilege[] how;
+    private final Access.AclAccessor<T> accessor;
+    private final PrivilegeSet filter;
+    private final boolean authenticated;
+
+    /* Results keyed by the fingerprint of the acl - one map for objects
+     * the principal owns and one for the rest.
+     */
+    private final Map<Long, AclResult> ownedResults;
+    private final Map<Long, AclResult> otherResults;
+
+    Batch(final AccessPrincipal who,
+          final Privilege[] how,
+          final Access.AclAccessor<T> accessor,
+          final PrivilegeSet filter,
+          final Map<Long, AclResult> ownedResults,
+          final Map<Long, AclResult> otherResults) {
+      this.who = who;
+      this.how = how;
+      this.accessor = accessor;
+      this.filter = filter;
+      this.ownedResults = ownedResults;
+      this.otherResults = otherResults;
+
+      authenticated = !who.getUnauthenticated();
+    }
+
+    boolean evaluate(final T val) throws AccessException {
+      AccessPrincipal owner = accessor.getOwner(val);
+      char[] aclChars = accessor.getAclChars(val);
+
+      if (aclChars == null) {
+        // Denied - see Acl.evaluateAccess
+        return false;
+      }
+
+      Map<Long, AclResult> results;
+      if (authenticated && who.equals(owner)) {
+        results = ownedResults;
+      } else {
+        results = otherResults;
+      }
+
+      Long key = AclFingerprint.compute(aclChars);
+      AclResult res = results.get(key);
+
+      if ((res != null) && Arrays.equals(res.aclChars, aclChars)) {
+        return res.allowed;
+      }
+
+      batchAcls.count++;
+      boolean allowed =
+              EncodedAclEvaluator.evaluate(cb, who, owner, how,
+                                           AceDictionary.expand(aclChars),
+                                           filter).getAccessAllowed();
+
+      /* A different acl with the same fingerprint keeps the entry and is
+       * evaluated every time. Keep our own copy of the acl as the accessor
+       * may reuse its buffer.
+       */
+      if (res == null) {
+        results.put(key, new AclResult(aclChars.clone(), allowed));
+      }
+
+      return allowed;
+    }
+  }
+
+  /* The result for one distinct acl of a batch */
+  private static class AclResult {
+    final char[] aclChars;
+    final boolean allowed;
+
+    AclResult(final char[] aclChars, final boolean allowed) {
+      this.aclChars = aclChars;
+      this.allowed = allowed;
+    }
+  }
+
+  /* Carries an AccessException out of a fork-join task */
+  private static class WrappedException extends RuntimeException {
+    final AccessException ae;
+
+    WrappedException(final AccessException ae) {
+      super(ae);
+      this.ae = ae;
+    }
+  }
+
+  /* Evaluates the objects in [from, to), splitting in half until the range
+   * is no bigger than a chunk.
+   */
+  private static class RangeTask<T> extends RecursiveAction {
+    private final Batch<T> batch;
+    private final List<T> vals;
+    private final boolean[] allowed;
+    private final int from;
+    private final int to;
+    private final AtomicInteger done;
+    private final ProgressListener progressListener;
+
+    RangeTask(final Batch<T> batch,
+              final List<T> vals,
+              final boolean[] allowed,
+              final int from,
+              final int to,
+              final AtomicInteger done,
+              final ProgressListener progressListener) {
+      this.batch = batch;
+      this.vals = vals;
+      this.allowed = allowed;
+      this.from = from;
+      this.to = to;
+      this.done = done;
+      this.progressListener = progressListener;
+    }
+
+    @Override
+    protected void compute() {
+      if ((to - from) > chunkSize) {
+        int mid = (from + to) >>> 1;
+
+        invokeAll(new RangeTask<>(batch, vals, allowed, from, mid,
+                                  done, progressListener),
+                  new RangeTask<>(batch, vals, allowed, mid, to,
+                                  done, progressListener));
+        return;
+      }
+
+      try {
+        for (int i = from; i < to; i++) {
+          allowed[i] = batch.evaluate(vals.get(i));
+        }
+      } catch (AccessException ae) {
+        throw new WrappedException(ae);
+      }
+
+      int n = done.addAndGet(to - from);
+
+      if (progressListener != null) {
+        progressListener.progress(n, vals.size());
+      }
+    }
+  }
+}
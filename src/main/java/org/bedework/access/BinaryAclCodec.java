@@ -0,0 +1,339 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/** A compact binary encoding of an acl, an alternative to the text encoding
+ * of {@link EncodedAcl}. The layout is
+ * <pre>
+ *   magic byte 0xBA, version byte
+ *   varint number of aces
+ *   for each ace
+ *     flags byte: 1 - not who, 2 - has name, 4 - inherited
+ *     who type byte
+ *     [varint length, UTF-8 name]
+ *     varint allowed mask, varint denied mask
+ *     [varint length, UTF-8 inherited from path]
+ * </pre>
+ *
+ * <p>Varints are unsigned, 7 bits to a byte, low bits first. The masks
+ * have a bit for each privilege index set explicitly by the ace - that is
+ * by one of its privileges or a privilege containing it. As privileges are
+ * numbered with containing privileges first the privileges of the ace are
+ * rebuilt from the masks by taking each index in turn which is not already
+ * in the right state.
+ *
+ * <p>The magic byte can never start a UTF-8 string so a byte array holding
+ * a text encoded acl is told apart by its first byte.
+ *
+ * @author douglm
+ */
+public final class BinaryAclCodec implements PrivilegeDefs, WhoDefs {
+  /** First byte of the binary encoding */
+  public static final byte magic = (byte)0xBA;
+
+  /** Current version of the binary encoding */
+  public static final byte version = 1;
+
+  private static final int flagNotWho = 1;
+  private static final int flagName = 2;
+  private static final int flagInherited = 4;
+
+  private static final Charset utf8 = Charset.forName("UTF-8");
+
+  private BinaryAclCodec() {
+  }
+
+  /**
+   * @param val bytes - may be null
+   * @return true if val starts with the binary magic byte
+   */
+  public static boolean isBinary(final byte[] val) {
+    return (val != null) && (val.length > 0) && (val[0] == magic);
+  }
+
+  /** Encode the aces.
+   *
+   * @param aces to encode
+   * @param all  false to skip inherited entries
+   * @return binary encoding
+   */
+  public static byte[] encode(final Collection<Ace> aces,
+                              final boolean all) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    out.write(magic);
+    out.write(version);
+
+    int num = 0;
+    for (Ace ace: aces) {
+      if (all || (ace.getInheritedFrom() == null)) {
+        num++;
+      }
+    }
+
+    writeVarint(out, num);
+
+    for (Ace ace: aces) {
+      if (!all && (ace.getInheritedFrom() != null)) {
+        continue;
+      }
+
+      AceWho who = ace.getWho();
+      int flags = 0;
+
+      if (who.getNotWho()) {
+        flags |= flagNotWho;
+      }
+
+      if (who.getWho() != null) {
+        flags |= flagName;
+      }
+
+      if (ace.getInheritedFrom() != null) {
+        flags |= flagInherited;
+      }
+
+      out.write(flags);
+      out.write(who.getWhoType());
+
+      if (who.getWho() != null) {
+        writeString(out, who.getWho());
+      }
+
+      /* Apply the privileges in order to get the explicit states */
+      int allowedMask = 0;
+      int deniedMask = 0;
+
+      for (Privilege p: ace.getPrivs()) {
+        if (p.getDenial()) {
+          deniedMask |= p.getClosureMask();
+          allowedMask &= ~p.getClosureMask();
+        } else {
+          allowedMask |= p.getClosureMask();
+          deniedMask &= ~p.getClosureMask();
+        }
+      }
+
+      writeVarint(out, allowedMask);
+      writeVarint(out, deniedMask);
+
+      if (ace.getInheritedFrom() != null) {
+        writeString(out, ace.getInheritedFrom());
+      }
+    }
+
+    return out.toByteArray();
+  }
+
+  /** Decode aces from the buffer which must be positioned at the magic byte.
+   * On return the buffer is positioned after the acl.
+   *
+   * @param buf holding the binary encoding
+   * @return the aces in the order encoded
+   * @throws AccessException for a malformed acl or unknown version
+   */
+  public static List<Ace> decode(final ByteBuffer buf) throws AccessException {
+    return decode(buf, AclLimits.getDefault());
+  }
+
+  /** Decode aces from the buffer which must be positioned at the magic byte,
+   * failing if the acl exceeds the given limits.
+   *
+   * @param buf holding the binary encoding
+   * @param limits on the size of the acl
+   * @return the aces in the order encoded
+   * @throws AccessException for a malformed acl or unknown version
+   */
+  public static List<Ace> decode(final ByteBuffer buf,
+                                 final AclLimits limits) throws AccessException {
+    try {
+      limits.checkAclLength(buf.remaining());
+
+      if (buf.get() != magic) {
+        throw AccessException.badACL("not binary");
+      }
+
+      if (buf.get() != version) {
+        throw AccessException.badACL("unsupported binary version");
+      }
+
+      int num = readVarint(buf);
+
+      limits.checkAces(num);
+
+      /* Each ace takes at least 4 bytes */
+      if (num > buf.remaining() / 4) {
+        throw AccessException.badACLLength();
+      }
+
+      List<Ace> aces = new ArrayList<>(Math.min(num, 64));
+
+      for (int i = 0; i < num; i++) {
+        int flags = buf.get();
+        int whoType = buf.get();
+
+        if ((flags & ~(flagNotWho | flagName | flagInherited)) != 0) {
+          throw AccessException.badACE("flags");
+        }
+
+        if ((whoType < 0) || (whoType >= whoTypeFlags.length)) {
+          throw AccessException.badACE("who type");
+        }
+
+        String name = null;
+        if ((flags & flagName) != 0) {
+          name = readString(buf, limits);
+        }
+
+        AceWho who = AceWho.getAceWho(name, whoType,
+                                      (flags & flagNotWho) != 0);
+
+        Collection<Privilege> privs = getPrivs(readVarint(buf),
+                                               readVarint(buf));
+
+        String inheritedFrom = null;
+        if ((flags & flagInherited) != 0) {
+          inheritedFrom = readString(buf, limits);
+        }
+
+        aces.add(Ace.makeAce(who, privs, inheritedFrom));
+      }
+
+      return aces;
+    } catch (BufferUnderflowException bue) {
+      throw AccessException.badACLLength();
+    }
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  /* Rebuild a list of privileges giving the explicit states. Also used by
+   * AceView.
+   */
+  static Collection<Privilege> getPrivs(final int allowedMask,
+                                                final int deniedMask)
+          throws AccessException {
+    int allMask = (1 << (privMaxType + 1)) - 1;
+
+    if (((allowedMask | deniedMask) & ~allMask) != 0) {
+      throw AccessException.badACE("privileges");
+    }
+
+    if ((allowedMask & deniedMask) != 0) {
+      throw AccessException.badACE("privileges");
+    }
+
+    Collection<Privilege> privs = new ArrayList<>();
+    int allowed = 0;
+    int denied = 0;
+
+    for (int pi = 0; pi <= privMaxType; pi++) {
+      int bit = 1 << pi;
+
+      if (((allowedMask & bit) != 0) && ((allowed & bit) == 0)) {
+        Privilege p = Privileges.makePriv(pi);
+
+        privs.add(p);
+        allowed |= p.getClosureMask();
+        denied &= ~p.getClosureMask();
+      } else if (((deniedMask & bit) != 0) && ((denied & bit) == 0)) {
+        Privilege p = Privileges.makePriv(pi, true);
+
+        privs.add(p);
+        denied |= p.getClosureMask();
+        allowed &= ~p.getClosureMask();
+      }
+    }
+
+    if ((allowed != allowedMask) || (denied != deniedMask)) {
+      // Not states a list of privileges can give
+      throw AccessException.badACE("privileges");
+    }
+
+    return privs;
+  }
+
+  private static void writeVarint(final ByteArrayOutputStream out,
+                                  final int val) {
+    int v = val;
+
+    while ((v & ~0x7f) != 0) {
+      out.write((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+
+    out.write(v);
+  }
+
+  private static int readVarint(final ByteBuffer buf) throws AccessException {
+    int res = 0;
+
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = buf.get();
+
+      res |= (b & 0x7f) << shift;
+
+      if ((b & 0x80) == 0) {
+        if (res < 0) {
+          throw AccessException.badACLLength();
+        }
+
+        return res;
+      }
+    }
+
+    throw AccessException.badACLLength();
+  }
+
+  private static void writeString(final ByteArrayOutputStream out,
+                                  final String val) {
+    byte[] bytes = val.getBytes(utf8);
+
+    writeVarint(out, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static String readString(final ByteBuffer buf,
+                                   final AclLimits limits)
+          throws AccessException {
+    int len = readVarint(buf);
+
+    if (len > buf.remaining()) {
+      throw AccessException.badACLLength();
+    }
+
+    /* Checked on bytes which are at least as many as the chars */
+    limits.checkNameLength(len);
+
+    byte[] bytes = new byte[len];
+    buf.get(bytes);
+
+    return new String(bytes, utf8);
+  }
+}
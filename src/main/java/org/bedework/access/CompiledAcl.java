@@ -0,0 +1,568 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import org.bedework.access.Acl.CurrentAccess;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** An acl prepared for evaluating access for many principals, e.g. when
+ * delivering a scheduling message or listing who can see an event.
+ *
+ * <p>The acl is decoded once and the names in user and group aces turned
+ * into hrefs with the callback. The privileges of the aces which apply to a
+ * principal by name are merged ahead of time and indexed by href, so
+ * evaluating access for a principal is a lookup of its href and group
+ * hrefs.
+ *
+ * <p>The result is the same as that of {@link Acl#evaluateAccess}. Once
+ * compiled the object is immutable and may be shared between threads.
+ *
+ * @author douglm
+ */
+public class CompiledAcl implements PrivilegeDefs, WhoDefs {
+  private final char[] aclChars;
+
+  /* States for the aces which don't depend on the name of the principal */
+  private final EncodedAclEvaluator.States fixed =
+          new EncodedAclEvaluator.States();
+
+  /* States for user and group aces which match a single href - in acl
+   * order */
+  private final Map<String, EncodedAclEvaluator.States> byHref =
+          new LinkedHashMap<>();
+
+  /* Not aces and aces with no name - matched against each principal */
+  private final List<NamedAce> matched = new ArrayList<>();
+
+  private static Access.AccessStatsEntry compiles =
+    new Access.AccessStatsEntry("Compiled acls");
+
+  private static Access.AccessStatsEntry compiledEvaluations =
+    new Access.AccessStatsEntry("Compiled acl evaluations");
+
+  /* A named ace we have to match at evaluation time */
+  static class NamedAce {
+    final int whoType;
+    final String href;
+    final boolean notWho;
+    final int allowedMask;
+    final boolean inherited;
+
+    NamedAce(final int whoType,
+             final String href,
+             final boolean notWho,
+             final int allowedMask,
+             final boolean inherited) {
+      this.whoType = whoType;
+      this.href = href;
+      this.notWho = notWho;
+      this.allowedMask = allowedMask;
+      this.inherited = inherited;
+    }
+
+    /* As AceWho.whoMatch */
+    boolean matches(final String pref) {
+      if ((pref == null) && (href == null)) {
+        return !notWho;
+      }
+
+      if ((pref == null) || (href == null)) {
+        return notWho;
+      }
+
+      return pref.equals(href) != notWho;
+    }
+  }
+
+  /** An entry in the acl which grants a privilege.
+   */
+  public static class Grant {
+    private final int whoType;
+    private final String href;
+    private final boolean notWho;
+    private final char state;
+
+    Grant(final int whoType,
+          final String href,
+          final boolean notWho,
+          final char state) {
+      this.whoType = whoType;
+      this.href = href;
+      this.notWho = notWho;
+      this.state = state;
+    }
+
+    /**
+     * @return who type from WhoDefs
+     */
+    public int getWhoType() {
+      return whoType;
+    }
+
+    /**
+     * @return href of the principal or group - null for unnamed who types
+     */
+    public String getHref() {
+      return href;
+    }
+
+    /**
+     * @return true if the grant is to everyone except the href
+     */
+    public boolean getNotWho() {
+      return notWho;
+    }
+
+    /**
+     * @return PrivilegeDefs.allowed or PrivilegeDefs.allowedInherited
+     */
+    public char getState() {
+      return state;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder("Grant{");
+
+      if (notWho) {
+        sb.append("not ");
+      }
+
+      sb.append(whoTypeNames[whoType]);
+
+      if (href != null) {
+        sb.append(" ");
+        sb.append(href);
+      }
+
+      sb.append(", state=");
+      sb.append(state);
+      sb.append("}");
+
+      return sb.toString();
+    }
+  }
+
+  /** Compile the encoded acl.
+   *
+   * @param cb        callback used to turn names into hrefs
+   * @param aclChars  the encoded acl
+   * @throws AccessException for a malformed acl
+   */
+  public CompiledAcl(final Access.AccessCb cb,
+                     final char[] aclChars) throws AccessException {
+    compiles.count++;
+
+    this.aclChars = aclChars;
+
+    if (aclChars == null) {
+      return;
+    }
+
+    Collection<Ace> aces = Acl.decode(aclChars).getAces();
+
+    if (aces == null) {
+      return;
+    }
+
+    for (Ace ace: aces) {
+      AceWho awho = ace.getWho();
+      int whoType = awho.getWhoType();
+      int allowedMask = allowedMask(ace.getHow());
+      boolean inherited = ace.getInheritedFrom() != null;
+
+      if (whoType == whoTypeOther) {
+        /* As for Ace.findMergedPrivilege other is matched against a null
+         * name - so a not other ace never applies.
+         */
+        if (awho.whoMatch(cb, null)) {
+          fixed.merge(whoType, allowedMask, inherited);
+        }
+        continue;
+      }
+
+      if (!whoTypeNamed[whoType]) {
+        fixed.merge(whoType, allowedMask, inherited);
+        continue;
+      }
+
+      String href = null;
+      if (awho.getWho() != null) {
+        href = cb.makeHref(awho.getWho(), whoType);
+      }
+
+      if (awho.getNotWho() || (href == null)) {
+        matched.add(new NamedAce(whoType, href, awho.getNotWho(),
+                                 allowedMask, inherited));
+        continue;
+      }
+
+      EncodedAclEvaluator.States st = byHref.get(href);
+      if (st == null) {
+        st = new EncodedAclEvaluator.States();
+        byHref.put(href, st);
+      }
+
+      st.merge(whoType, allowedMask, inherited);
+    }
+  }
+
+  /** Get the statistics
+   *
+   * @return Collection of stats
+   */
+  public static Collection<Access.AccessStatsEntry> getStatistics() {
+    Collection<Access.AccessStatsEntry> stats = new ArrayList<>();
+
+    stats.add(compiles);
+    stats.add(compiledEvaluations);
+
+    return stats;
+  }
+
+  /**
+   * @return the encoded acl we compiled
+   */
+  public char[] getAclChars() {
+    return aclChars;
+  }
+
+  /** Evaluate access for a principal as described for
+   * {@link Acl#evaluateAccess}.
+   *
+   * @param who       principal trying to get access
+   * @param owner     owner of the object
+   * @param how       desired access - empty for any
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   * @throws AccessException on error
+   */
+  public CurrentAccess evaluate(final AccessPrincipal who,
+                                final AccessPrincipal owner,
+                                final Privilege[] how,
+                                final PrivilegeSet filter)
+          throws AccessException {
+    return evaluate(who, owner, how, filter,
+                    new EncodedAclEvaluator.States());
+  }
+
+  /** Evaluate access for each of the principals.
+   *
+   * @param whos      principals trying to get access
+   * @param owner     owner of the object
+   * @param how       desired access - empty for any
+   * @param filter    if not null specifies maximum access
+   * @return access for each principal in the same order
+   * @throws AccessException on error
+   */
+  public List<CurrentAccess> evaluate(final Collection<? extends AccessPrincipal> whos,
+                                      final AccessPrincipal owner,
+                                      final Privilege[] how,
+                                      final PrivilegeSet filter)
+          throws AccessException {
+    List<CurrentAccess> res = new ArrayList<>(whos.size());
+    EncodedAclEvaluator.States states = new EncodedAclEvaluator.States();
+
+    for (AccessPrincipal who: whos) {
+      res.add(evaluate(who, owner, how, filter, states));
+    }
+
+    return res;
+  }
+
+  /** Find the entries in the acl which grant the privilege once denials
+   * in the same entry and inheritance have been taken into account.
+   *
+   * <p>The owner is included if the owner has the privilege, either
+   * explicitly or because there is no owner entry. A principal may be
+   * matched by more than one entry - for example a user may be denied a
+   * privilege granted to one of their groups - so use evaluate to get the
+   * access of a particular principal.
+   *
+   * @param priv      the privilege
+   * @return grants in acl order
+   */
+  public List<Grant> getGrants(final Privilege priv) {
+    return getGrants(priv.getIndex());
+  }
+
+  /**
+   * @param privIndex index of the privilege
+   * @return grants in acl order
+   * @see #getGrants(Privilege)
+   */
+  public List<Grant> getGrants(final int privIndex) {
+    List<Grant> grants = new ArrayList<>();
+
+    if (aclChars == null) {
+      return grants;
+    }
+
+    int bit = 1 << privIndex;
+
+    /* The owner gets unspecified privileges and always has the acl
+     * privileges - see EncodedAclEvaluator.States.result
+     */
+    char ownerState = allowed;
+
+    if (fixed.found[whoTypeOwner]) {
+      int al = fixed.allowedMasks[whoTypeOwner];
+      int alInh = fixed.allowedInhMasks[whoTypeOwner];
+      int specified = al | alInh |
+                      fixed.deniedMasks[whoTypeOwner] |
+                      fixed.deniedInhMasks[whoTypeOwner];
+      int aclPrivs = (1 << privReadAcl) | (1 << privWriteAcl);
+
+      if (((al | alInh) & aclPrivs) != aclPrivs) {
+        // Everything else is denied
+        specified = EncodedAclEvaluator.allPrivsMask;
+        al |= aclPrivs;
+        alInh = 0;
+      }
+
+      ownerState = state(al | (EncodedAclEvaluator.allPrivsMask & ~specified),
+                         alInh, bit);
+    }
+
+    if (ownerState != 0) {
+      grants.add(new Grant(whoTypeOwner, null, false, ownerState));
+    }
+
+    for (int wt = 0; wt < whoTypeFlags.length; wt++) {
+      if (wt == whoTypeOwner) {
+        continue;
+      }
+
+      if (!whoTypeNamed[wt]) {
+        addGrant(grants, wt, null, false, fixed, bit);
+        continue;
+      }
+
+      for (Map.Entry<String, EncodedAclEvaluator.States> ent:
+              byHref.entrySet()) {
+        addGrant(grants, wt, ent.getKey(), false, ent.getValue(), bit);
+      }
+
+      for (NamedAce na: matched) {
+        if (na.whoType != wt) {
+          continue;
+        }
+
+        char st;
+        if (na.inherited) {
+          st = state(0, na.allowedMask, bit);
+        } else {
+          st = state(na.allowedMask, 0, bit);
+        }
+
+        if (st != 0) {
+          grants.add(new Grant(wt, na.href, na.notWho, st));
+        }
+      }
+    }
+
+    return grants;
+  }
+
+  /* ====================================================================
+   *                   Package methods
+   * ==================================================================== */
+
+  /* Hrefs named by not who aces - the principals they leave out */
+  Collection<String> getNotWhoHrefs() {
+    Collection<String> hrefs = new ArrayList<>();
+
+    for (NamedAce na: matched) {
+      if (na.notWho && (na.href != null)) {
+        hrefs.add(na.href);
+      }
+    }
+
+    return hrefs;
+  }
+
+  /* True if a principal which isn't the owner, is named by no ace and is in
+   * no group has the privilege. Unauthenticated principals are taken to
+   * have no href.
+   */
+  boolean unnamedAllowed(final boolean authenticated,
+                         final int privIndex) throws AccessException {
+    if (aclChars == null) {
+      return false;
+    }
+
+    EncodedAclEvaluator.States states = new EncodedAclEvaluator.States();
+
+    states.set(fixed);
+
+    for (NamedAce na: matched) {
+      if (na.whoType == whoTypeGroup) {
+        continue;
+      }
+
+      /* Any href we have isn't the principal's */
+      boolean applies = na.notWho;
+
+      if (!authenticated) {
+        applies = na.matches(null);
+      }
+
+      if (applies) {
+        states.merge(na.whoType, na.allowedMask, na.inherited);
+      }
+    }
+
+    Privilege[] how = {Privileges.makePriv(privIndex)};
+
+    return states.result(aclChars, authenticated, false, how,
+                         null).getAccessAllowed();
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private void addGrant(final List<Grant> grants,
+                        final int whoType,
+                        final String href,
+                        final boolean notWho,
+                        final EncodedAclEvaluator.States st,
+                        final int bit) {
+    if (!st.found[whoType]) {
+      return;
+    }
+
+    char state = state(st.allowedMasks[whoType],
+                       st.allowedInhMasks[whoType], bit);
+
+    if (state != 0) {
+      grants.add(new Grant(whoType, href, notWho, state));
+    }
+  }
+
+  /* allowed, allowedInherited or 0 if not granted */
+  private static char state(final int allowedMask,
+                            final int allowedInhMask,
+                            final int bit) {
+    if ((allowedMask & bit) != 0) {
+      return allowed;
+    }
+
+    if ((allowedInhMask & bit) != 0) {
+      return allowedInherited;
+    }
+
+    return 0;
+  }
+
+  private CurrentAccess evaluate(final AccessPrincipal who,
+                                 final AccessPrincipal owner,
+                                 final Privilege[] how,
+                                 final PrivilegeSet filter,
+                                 final EncodedAclEvaluator.States states)
+          throws AccessException {
+    compiledEvaluations.count++;
+
+    if (aclChars == null) {
+      return new CurrentAccess(null, null, false);
+    }
+
+    boolean authenticated = !who.getUnauthenticated();
+    boolean isOwner = authenticated && who.equals(owner);
+
+    states.set(fixed);
+
+    if (!isOwner) {
+      // Named aces never apply to the owner
+      mergeNamed(who, states);
+    }
+
+    return states.result(aclChars, authenticated, isOwner, how, filter);
+  }
+
+  private void mergeNamed(final AccessPrincipal who,
+                          final EncodedAclEvaluator.States states) {
+    String pref = who.getPrincipalRef();
+
+    if (pref != null) {
+      EncodedAclEvaluator.States st = byHref.get(pref);
+
+      if (st != null) {
+        for (int wt = 0; wt < whoTypeFlags.length; wt++) {
+          if (wt != whoTypeGroup) {
+            states.merge(wt, st);
+          }
+        }
+      }
+    }
+
+    Collection<String> groupNames = null;
+    if (!byHref.isEmpty() || !matched.isEmpty()) {
+      groupNames = who.getGroupNames();
+    }
+
+    if (groupNames != null) {
+      for (String group: groupNames) {
+        EncodedAclEvaluator.States st = byHref.get(group);
+
+        if (st != null) {
+          states.merge(whoTypeGroup, st);
+        }
+      }
+    }
+
+    for (NamedAce na: matched) {
+      if (na.whoType != whoTypeGroup) {
+        if (na.matches(pref)) {
+          states.merge(na.whoType, na.allowedMask, na.inherited);
+        }
+        continue;
+      }
+
+      if (groupNames == null) {
+        continue;
+      }
+
+      for (String group: groupNames) {
+        if (na.matches(group)) {
+          states.merge(whoTypeGroup, na.allowedMask, na.inherited);
+          break;
+        }
+      }
+    }
+  }
+
+  /* Bit n set if privilege n is allowed by the ace */
+  private static int allowedMask(final PrivilegeSet how) {
+    int mask = 0;
+
+    for (int pi = 0; pi <= privMaxType; pi++) {
+      if (how.getPrivilege(pi) == allowed) {
+        mask |= 1 << pi;
+      }
+    }
+
+    return mask;
+  }
+}
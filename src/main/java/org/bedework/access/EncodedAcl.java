@@ -20,8 +20,10 @@ package org.bedework.access;
 
 import org.apache.log4j.Logger;
 
-import java.io.CharArrayWriter;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 
 /** Object to represent an encoded acl for a calendar entity or service.
  *
@@ -36,9 +38,37 @@ public class EncodedAcl implements Serializable {
   /** Current position in the acl */
   private int pos;
 
-  /* When encoding an acl we build it here.
+  /* Limits applied while decoding */
+  private transient AclLimits limits;
+
+  /* Fingerprint of encoded - valid if fingerprinted is encoded */
+  private transient char[] fingerprinted;
+  private transient long fingerprint;
+
+  /* When encoding an acl we build it here. The per thread encoder keeps the
+   * buffer for the next encoding unless it has grown large.
    */
-  private transient CharArrayWriter caw;
+  private transient char[] encBuf;
+  private transient int encLen;
+
+  private static final int maxRetainedBuf = 4096;
+
+  /* Set while the per thread encoder is handed out */
+  private transient boolean encoderInUse;
+
+  private static final ThreadLocal<EncodedAcl> encoders =
+    new ThreadLocal<EncodedAcl>() {
+      @Override
+      protected EncodedAcl initialValue() {
+        return new EncodedAcl();
+      }
+    };
+
+  private static Access.AccessStatsEntry encoderBuffers =
+    new Access.AccessStatsEntry("Acl encoder buffers allocated");
+
+  private static Access.AccessStatsEntry nestedEncoders =
+    new Access.AccessStatsEntry("Acl encoders made for nested encoding");
 
   protected static transient Logger log;
 
@@ -54,13 +84,48 @@ public class EncodedAcl implements Serializable {
     }
   }
 
-  /** Set an encoded value
+  /** Get the encoder statistics
+   *
+   * @return Collection of stats
+   */
+  public static Collection<Access.AccessStatsEntry> getStatistics() {
+    Collection<Access.AccessStatsEntry> stats = new ArrayList<>();
+
+    stats.add(encoderBuffers);
+    stats.add(nestedEncoders);
+
+    return stats;
+  }
+
+  /** Set an encoded value. Any {@link AclSummary} is skipped. The value
+   * must not be changed while it is held here as its fingerprint is kept.
    *
    * @param val char[] encoded value
    */
   public void setEncoded(char[] val) {
     encoded = val;
-    pos = 0;
+    pos = AclSummary.getLength(val);
+    fingerprinted = null;
+  }
+
+  /** Set the limits applied while decoding. By default they are
+   * AclLimits.getDefault()
+   *
+   * @param val limits
+   */
+  public void setLimits(final AclLimits val) {
+    limits = val;
+  }
+
+  /**
+   * @return the limits applied while decoding
+   */
+  public AclLimits getLimits() {
+    if (limits == null) {
+      return AclLimits.getDefault();
+    }
+
+    return limits;
   }
 
   /** Get the encoded value
@@ -71,6 +136,21 @@ public class EncodedAcl implements Serializable {
     return encoded;
   }
 
+  /** Get the fingerprint of the encoded value. It is only computed the
+   * first time it is asked for after the value is set.
+   *
+   * @return fingerprint of the encoded value
+   * @see AclFingerprint
+   */
+  public long getFingerprint() {
+    if ((fingerprinted == null) || (fingerprinted != encoded)) {
+      fingerprint = AclFingerprint.compute(encoded);
+      fingerprinted = encoded;
+    }
+
+    return fingerprint;
+  }
+
   /** Provide segment of input for debugging and errors
    *
    * @return String segment
@@ -96,7 +176,7 @@ public class EncodedAcl implements Serializable {
    * @return char value
    */
   public char getChar() {
-    if ((encoded == null) || (pos == encoded.length)) {
+    if ((encoded == null) || (pos >= encoded.length)) {
       if (debug) {
         debugMsg("getChar=-1");
       }
@@ -157,10 +237,10 @@ public class EncodedAcl implements Serializable {
     }
   }
 
-  /** Rewind to the start
+  /** Rewind to the first ace
    */
   public void rewind() {
-    pos = 0;
+    pos = AclSummary.getLength(encoded);
 
     if (debug) {
       debugMsg("rewind");
@@ -204,20 +284,24 @@ public class EncodedAcl implements Serializable {
     int res = 0;
 
     for (;;) {
+      if (!hasMore()) {
+        throw AccessException.badACLLength();
+      }
+
       char c = getChar();
       if (c == ' ') {
         break;
       }
 
-      if (c < 0) {
-        throw AccessException.badACLLength();
-      }
-
       if ((c < '0') || (c > '9')) {
         throw AccessException.badACL("digit=" + c);
       }
 
-      res = res * 10 + Character.digit(c, 10);
+      if (res > (Integer.MAX_VALUE - 9) / 10) {
+        throw AccessException.badACLLength();
+      }
+
+      res = res * 10 + (c - '0');
     }
 
     return res;
@@ -233,11 +317,7 @@ public class EncodedAcl implements Serializable {
       return null;
     }
     back();
-    int len = getLength();
-
-    if ((encoded.length - pos) < len) {
-      throw AccessException.badACLLength();
-    }
+    int len = getStringLength();
 
     String s = new String(encoded, pos, len);
     pos += len;
@@ -255,7 +335,7 @@ public class EncodedAcl implements Serializable {
     }
 
     back();
-    int len = getLength();
+    int len = getStringLength();
     pos += len;
   }
 
@@ -266,9 +346,26 @@ public class EncodedAcl implements Serializable {
    * @throws AccessException
    */
   public String getString(int begin) throws AccessException {
+    if ((begin < 0) || (begin > pos) || (pos > encoded.length)) {
+      throw AccessException.badACLRewind();
+    }
+
     return new String(encoded, begin, pos - begin);
   }
 
+  /* Get the length of a string and check it's all there */
+  private int getStringLength() throws AccessException {
+    int len = getLength();
+
+    getLimits().checkNameLength(len);
+
+    if ((encoded.length - pos) < len) {
+      throw AccessException.badACLLength();
+    }
+
+    return len;
+  }
+
   /* ====================================================================
    *                 Encoding methods
    * ==================================================================== */
@@ -277,7 +374,34 @@ public class EncodedAcl implements Serializable {
    *
    */
   public void startEncoding() {
-    caw = new CharArrayWriter();
+    if (encBuf == null) {
+      encoderBuffers.count++;
+      encBuf = new char[64];
+    }
+
+    encLen = 0;
+  }
+
+  /* Get an encoder for this thread which must be given back with
+   * releaseEncoder. If it's already in use, e.g. we are called while
+   * encoding, a new one is returned.
+   */
+  static EncodedAcl getEncoder() {
+    EncodedAcl eacl = encoders.get();
+
+    if (eacl.encoderInUse) {
+      nestedEncoders.count++;
+      return new EncodedAcl();
+    }
+
+    eacl.encoderInUse = true;
+
+    return eacl;
+  }
+
+  /* Give back an encoder from getEncoder */
+  void releaseEncoder() {
+    encoderInUse = false;
   }
 
   /** Encode a blank terminated 0 prefixed length.
@@ -286,19 +410,14 @@ public class EncodedAcl implements Serializable {
    * @throws AccessException
    */
   public void encodeLength(int len) throws AccessException {
-    try {
-      if (len < encodedLengths.length) {
-        caw.write(encodedLengths[len]);
-        return;
-      }
-
-      String slen = String.valueOf(len);
-      caw.write('0');
-      caw.write(slen, 0, slen.length());
-      caw.write(' ');
-    } catch (Throwable t) {
-      throw new AccessException(t);
+    if (len < encodedLengths.length) {
+      write(encodedLengths[len]);
+      return;
     }
+
+    write('0');
+    write(String.valueOf(len));
+    write(' ');
   }
 
   /** Produce string encoding of length
@@ -334,17 +453,11 @@ public class EncodedAcl implements Serializable {
    * @throws AccessException
    */
   public void encodeString(String val) throws AccessException {
-    try {
-      if (val == null) {
-        caw.write('N'); // flag null
-      } else {
-        encodeLength(val.length());
-        caw.write(val, 0, val.length());
-      }
-    } catch (AccessException ae) {
-      throw ae;
-    } catch (Throwable t) {
-      throw new AccessException(t);
+    if (val == null) {
+      write('N'); // flag null
+    } else {
+      encodeLength(val.length());
+      write(val);
     }
   }
 
@@ -369,11 +482,7 @@ public class EncodedAcl implements Serializable {
    * @throws AccessException
    */
   public void addChar(char c) throws AccessException {
-    try {
-      caw.write(c);
-    } catch (Throwable t) {
-      throw new AccessException(t);
-    }
+    write(c);
   }
 
   /** Add an array of character
@@ -382,11 +491,9 @@ public class EncodedAcl implements Serializable {
    * @throws AccessException
    */
   public void addChar(char[] c) throws AccessException {
-    try {
-      caw.write(c);
-    } catch (Throwable t) {
-      throw new AccessException(t);
-    }
+    ensureCapacity(c.length);
+    System.arraycopy(c, 0, encBuf, encLen, c.length);
+    encLen += c.length;
   }
 
   /** Get the current encoded value
@@ -394,15 +501,45 @@ public class EncodedAcl implements Serializable {
    * @return char[] encoded value
    */
   public char[] getEncoding() {
-    char[] enc = caw.toCharArray();
-    caw = null;
-    if ((enc == null) || (enc.length == 0)) {
-      return null;
+    char[] enc = null;
+
+    if (encLen > 0) {
+      enc = Arrays.copyOf(encBuf, encLen);
+    }
+
+    encLen = 0;
+
+    if (!encoderInUse ||
+        ((encBuf != null) && (encBuf.length > maxRetainedBuf))) {
+      encBuf = null;
     }
 
     return enc;
   }
 
+  private void write(final char c) {
+    ensureCapacity(1);
+    encBuf[encLen] = c;
+    encLen++;
+  }
+
+  private void write(final String val) {
+    int len = val.length();
+
+    ensureCapacity(len);
+    val.getChars(0, len, encBuf, encLen);
+    encLen += len;
+  }
+
+  private void ensureCapacity(final int extra) {
+    int needed = encLen + extra;
+
+    if (needed > encBuf.length) {
+      encoderBuffers.count++;
+      encBuf = Arrays.copyOf(encBuf, Math.max(needed, encBuf.length * 2));
+    }
+  }
+
   protected static Logger getLog() {
     if (log == null) {
       log = Logger.getLogger(EncodedAcl.class);
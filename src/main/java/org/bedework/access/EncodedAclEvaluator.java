@@ -0,0 +1,851 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import org.bedework.access.Acl.CurrentAccess;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/** Evaluate access by scanning the encoded acl in place rather than decoding
+ * it into Ace objects. The result is the same as that of
+ * {@link Acl#evaluateDecodedAccess}.
+ *
+ * <p>The privileges of each ace are accumulated as bit masks for each who
+ * type. As the aces are sorted by who type we can stop evaluating once the
+ * types which decide the access have all been seen, e.g. for the owner we
+ * only need to look at the owner aces at the front of the acl.
+ *
+ * <p>Acls produced by {@link Acl#encode} are sorted with one ace per who
+ * but stored or hand built acls may not be, so we still check the order of
+ * the whos in the rest of the acl. If they are out of order or repeated we
+ * evaluate the decoded acl instead.
+ *
+ * <p>Group aces are held back until we know no user ace applies so we only
+ * call the callback for them when needed.
+ *
+ * <p>If the acl has an {@link AclSummary} with a matching check we skip
+ * named aces which its filter shows can't name the principal or its
+ * groups, and don't scan at all if no ace can apply.
+ *
+ * <p>The acl is held to the default {@link AclLimits} as when it is
+ * decoded.
+ *
+ * <p>Apart from the result the only objects created are the names of
+ * user and group aces which we need to match against the principal,
+ * and privilege sets seen for the first time.
+ *
+ * @author douglm
+ */
+public final class EncodedAclEvaluator implements PrivilegeDefs, WhoDefs {
+  /* Bit set for every privilege index */
+  static final int allPrivsMask = (1 << (privMaxType + 1)) - 1;
+
+  private static final int aclPrivsMask = (1 << privReadAcl) |
+                                          (1 << privWriteAcl);
+
+  /* The order in which we look for aces which behave like user aces */
+  private static final int[] userLikeTypes = {
+    whoTypeUser,
+    whoTypeResource,
+    whoTypeTicket,
+    whoTypeVenue,
+    whoTypeHost
+  };
+
+  private static Access.AccessStatsEntry encodedEvaluations =
+    new Access.AccessStatsEntry("Encoded acl evaluations");
+
+  private static Access.AccessStatsEntry unsorted =
+    new Access.AccessStatsEntry("Unsorted acls evaluated decoded");
+
+  private static final ThreadLocal<EncodedAclEvaluator> evaluators =
+    new ThreadLocal<EncodedAclEvaluator>() {
+      @Override
+      protected EncodedAclEvaluator initialValue() {
+        return new EncodedAclEvaluator();
+      }
+    };
+
+  private boolean inUse;
+
+  private final States states = new States();
+
+  /* Group aces waiting to be matched - 3 ints each: name start, name length
+   * (-1 for null) and the flags from aceFlags.
+   */
+  private int[] groupAces = new int[3 * 8];
+  private int numGroupAces;
+  private boolean groupsMatched;
+
+  /* From the summary - set if named aces can't apply to the principal and
+   * if group names should be checked against the filter.
+   */
+  private boolean skipNamed;
+  private boolean filterGroups;
+  private long summaryFilter;
+
+  /* Whos of the ace we just parsed and the one before from
+   * AceWho.parseEncoded
+   */
+  private int[] parsed = new int[4];
+  private int[] lastParsed = new int[4];
+
+  /* The ace we just parsed */
+  private int aceNameStart;
+  private int aceNameLen;
+  private int aceAllowed;
+  private boolean aceInherited;
+
+  /* Current evaluation */
+  private AclLimits limits;
+  private int aceCount;
+  private Access.AccessCb cb;
+  private AccessPrincipal who;
+  private char[] acl;
+  private boolean authenticated;
+  private boolean isOwner;
+
+  private EncodedAclEvaluator() {
+  }
+
+  /** Get the statistics
+   *
+   * @return Collection of stats
+   */
+  public static Collection<Access.AccessStatsEntry> getStatistics() {
+    Collection<Access.AccessStatsEntry> stats = new ArrayList<>();
+
+    stats.add(encodedEvaluations);
+    stats.add(unsorted);
+
+    return stats;
+  }
+
+  /** Evaluate access as described for {@link Acl#evaluateAccess}. The
+   * result is not cached.
+   *
+   * @param cb
+   * @param who
+   * @param owner
+   * @param how
+   * @param aclChars
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   * @throws AccessException for a malformed acl
+   */
+  public static CurrentAccess evaluate(final Access.AccessCb cb,
+                                       final AccessPrincipal who,
+                                       final AccessPrincipal owner,
+                                       final Privilege[] how,
+                                       final char[] aclChars,
+                                       final PrivilegeSet filter)
+          throws AccessException {
+    EncodedAclEvaluator ev = evaluators.get();
+
+    if (ev.inUse) {
+      // Callback evaluating access?
+      ev = new EncodedAclEvaluator();
+    }
+
+    try {
+      ev.inUse = true;
+      return ev.evaluateAccess(cb, who, owner, how, aclChars, filter);
+    } finally {
+      ev.cb = null;
+      ev.who = null;
+      ev.acl = null;
+      ev.inUse = false;
+    }
+  }
+
+  private CurrentAccess evaluateAccess(final Access.AccessCb cb,
+                                       final AccessPrincipal who,
+                                       final AccessPrincipal owner,
+                                       final Privilege[] how,
+                                       final char[] aclChars,
+                                       final PrivilegeSet filter)
+          throws AccessException {
+    if (aclChars == null) {
+      return new CurrentAccess(null, null, false);
+    }
+
+    encodedEvaluations.count++;
+
+    limits = AclLimits.getDefault();
+    limits.checkAclLength(aclChars.length);
+
+    this.cb = cb;
+    this.who = who;
+    acl = aclChars;
+    authenticated = !who.getUnauthenticated();
+    isOwner = authenticated && who.equals(owner);
+
+    reset();
+
+    int start = AclSummary.getLength(acl);
+
+    if (!useSummary(start)) {
+      AclSummary.skipped();
+    } else if (!scan(start)) {
+      unsorted.count++;
+      return Acl.decodedAccess(cb, who, owner, how, aclChars, filter);
+    }
+
+    return result(how, filter);
+  }
+
+  /* ====================================================================
+   *                   Scanning
+   * ==================================================================== */
+
+  private void reset() {
+    states.reset();
+
+    aceCount = 0;
+    numGroupAces = 0;
+    groupsMatched = false;
+    skipNamed = false;
+    filterGroups = false;
+  }
+
+  /* Use the summary at the front of the acl, if any. Returns false if no
+   * ace can apply so there's no need to scan. A summary whose check doesn't
+   * match the aces is ignored.
+   */
+  private boolean useSummary(final int start) {
+    if ((start == 0) || !AclSummary.isChecked(acl)) {
+      return true;
+    }
+
+    int whoTypes = AclSummary.getWhoTypes(acl);
+
+    if (isOwner) {
+      // Only owner aces matter
+      return (whoTypes & (1 << whoTypeOwner)) != 0;
+    }
+
+    if ((AclSummary.getFlags(acl) & AclSummary.flagUnfiltered) == 0) {
+      summaryFilter = AclSummary.getFilter(acl);
+      filterGroups = true;
+      skipNamed = !AclSummary.mightContain(summaryFilter,
+                                           who.getPrincipalRef());
+    }
+
+    int applies = 1 << whoTypeGroup;
+
+    for (int wt = 0; wt < whoTypeNamed.length; wt++) {
+      if ((wt != whoTypeOwner) && (!whoTypeNamed[wt] || !skipNamed)) {
+        applies |= 1 << wt;
+      }
+    }
+
+    return (whoTypes & applies) != 0;
+  }
+
+  /* Returns false if the aces are out of order or a who appears more than
+   * once. We can't stop early for such an acl and, as decoding keeps only
+   * the last ace for a who, merging them all wouldn't give the same result.
+   */
+  private boolean scan(final int start) throws AccessException {
+    int pos = start;
+    int lastWhoType = -1;
+    boolean first = true;
+    boolean done = false;
+
+    while (pos < acl.length) {
+      aceCount++;
+      limits.checkAces(aceCount);
+
+      pos = AceWho.parseEncoded(acl, pos, parsed);
+      limits.checkNameLength(parsed[3]);
+
+      if (!first && (AceWho.compareEncoded(acl, lastParsed, parsed) >= 0)) {
+        return false;
+      }
+
+      first = false;
+
+      int[] p = lastParsed;
+      lastParsed = parsed;
+      parsed = p;
+
+      if (done) {
+        // Only check the order of the rest
+        pos = skipPrivileges(pos);
+        continue;
+      }
+
+      boolean notWho = lastParsed[0] != 0;
+      int whoType = lastParsed[1];
+
+      /* Not aces come first. After those, a change of type means all the
+       * aces of lower type have been seen.
+       */
+      if (!notWho && (whoType != lastWhoType)) {
+        if (decided(whoType)) {
+          done = true;
+          pos = skipPrivileges(pos);
+          continue;
+        }
+
+        lastWhoType = whoType;
+      }
+
+      aceNameStart = lastParsed[2];
+      aceNameLen = lastParsed[3];
+      pos = parsePrivileges(pos);
+
+      if (whoType == whoTypeOther) {
+        /* As for Ace.findMergedPrivilege other is matched against a null
+         * name - so a not other ace never applies.
+         */
+        if (whoMatch(null, aceNameStart, aceNameLen, notWho, whoType)) {
+          states.merge(whoType, aceAllowed, aceInherited);
+        }
+        continue;
+      }
+
+      if (!whoTypeNamed[whoType]) {
+        states.merge(whoType, aceAllowed, aceInherited);
+        continue;
+      }
+
+      if (isOwner) {
+        // Named aces never apply to the owner
+        continue;
+      }
+
+      if (whoType == whoTypeGroup) {
+        deferGroup(notWho);
+        continue;
+      }
+
+      if (skipNamed) {
+        continue;
+      }
+
+      if (whoMatch(who.getPrincipalRef(), aceNameStart, aceNameLen,
+                   notWho, whoType)) {
+        states.merge(whoType, aceAllowed, aceInherited);
+      }
+    }
+
+    return true;
+  }
+
+  /* Parse the privileges of an ace. pos is just after the who. Returns the
+   * position after the terminating blank.
+   */
+  private int parsePrivileges(int pos) throws AccessException {
+    /* As for Ace.getHow() we start with everything denied and apply each
+     * privilege in turn.
+     */
+    int allowedMask = 0;
+    aceInherited = false;
+
+    for (;;) {
+      if (pos >= acl.length) {
+        throw AccessException.badACLLength();
+      }
+
+      char c = acl[pos];
+      pos++;
+
+      if (c == ' ') {
+        break;
+      }
+
+      if (c == inheritedFlag) {
+        aceInherited = true;
+        pos = skipInherited(pos);
+        break;
+      }
+
+      boolean denial;
+
+      if ((c == denied) || (c == oldDenied)) {
+        denial = true;
+      } else if ((c == allowed) || (c == oldAllowed)) {
+        denial = false;
+      } else {
+        throw AccessException.badACE("privilege flag=" + c);
+      }
+
+      if (pos >= acl.length) {
+        throw AccessException.badACL("unknown priv");
+      }
+
+      int pi = Privileges.privIndex(acl[pos]);
+      pos++;
+
+      if (pi < 0) {
+        throw AccessException.badACL("unknown priv");
+      }
+
+      int closure = Privileges.makePriv(pi).getClosureMask();
+
+      if (denial) {
+        allowedMask &= ~closure;
+      } else {
+        allowedMask |= closure;
+      }
+    }
+
+    aceAllowed = allowedMask;
+
+    return pos;
+  }
+
+  /* Skip the privileges of an ace we don't need. */
+  private int skipPrivileges(int pos) throws AccessException {
+    for (;;) {
+      if (pos >= acl.length) {
+        throw AccessException.badACLLength();
+      }
+
+      char c = acl[pos];
+      pos++;
+
+      if (c == ' ') {
+        return pos;
+      }
+
+      if (c == inheritedFlag) {
+        return skipInherited(pos);
+      }
+
+      // Flag then privilege
+      pos++;
+    }
+  }
+
+  /* Skip the path after the inherited flag and the terminating blank */
+  private int skipInherited(int pos) throws AccessException {
+    pos = skipString(pos);
+
+    if ((pos >= acl.length) || (acl[pos] != ' ')) {
+      throw new AccessException("malformedAcl");
+    }
+
+    return pos + 1;
+  }
+
+  private int skipString(int pos) throws AccessException {
+    if (pos >= acl.length) {
+      throw AccessException.badACLLength();
+    }
+
+    if (acl[pos] == 'N') {
+      return pos + 1;
+    }
+
+    int len = 0;
+
+    for (;;) {
+      if (pos >= acl.length) {
+        throw AccessException.badACLLength();
+      }
+
+      char c = acl[pos];
+      pos++;
+
+      if (c == ' ') {
+        break;
+      }
+
+      if ((c < '0') || (c > '9')) {
+        throw AccessException.badACL("digit=" + c);
+      }
+
+      len = len * 10 + (c - '0');
+
+      if (len > acl.length) {
+        throw AccessException.badACLLength();
+      }
+    }
+
+    limits.checkNameLength(len);
+
+    if (acl.length - pos < len) {
+      throw AccessException.badACLLength();
+    }
+
+    return pos + len;
+  }
+
+  /* Return true if we have seen enough of the acl. All aces with a type
+   * less than whoType have been seen.
+   */
+  private boolean decided(final int whoType) throws AccessException {
+    if (isOwner) {
+      return whoType > whoTypeOwner;
+    }
+
+    if (!authenticated) {
+      /* All is at the end so we only stop early for unauthenticated */
+      return (whoType > whoTypeUnauthenticated) &&
+             states.found[whoTypeUnauthenticated];
+    }
+
+    for (int wt: userLikeTypes) {
+      if (whoType <= wt) {
+        return false;
+      }
+
+      if (states.found[wt]) {
+        return true;
+      }
+    }
+
+    /* No user aces apply - groups are next */
+    matchGroups();
+
+    if (states.found[whoTypeGroup]) {
+      return true;
+    }
+
+    return (whoType > whoTypeAuthenticated) &&
+           states.found[whoTypeAuthenticated];
+  }
+
+  /* ====================================================================
+   *                   Matching
+   * ==================================================================== */
+
+  private void deferGroup(final boolean notWho) {
+    int i = numGroupAces * 3;
+
+    if (i + 3 > groupAces.length) {
+      int[] newAces = new int[groupAces.length * 2];
+      System.arraycopy(groupAces, 0, newAces, 0, groupAces.length);
+      groupAces = newAces;
+    }
+
+    groupAces[i] = aceNameStart;
+    groupAces[i + 1] = aceNameLen;
+    groupAces[i + 2] = aceFlags(notWho);
+    numGroupAces++;
+  }
+
+  private int aceFlags(final boolean notWho) {
+    int flags = aceAllowed << 2;
+
+    if (notWho) {
+      flags |= 2;
+    }
+
+    if (aceInherited) {
+      flags |= 1;
+    }
+
+    return flags;
+  }
+
+  private void matchGroups() throws AccessException {
+    if (groupsMatched) {
+      return;
+    }
+
+    groupsMatched = true;
+
+    if (numGroupAces == 0) {
+      return;
+    }
+
+    Collection<String> groupNames = who.getGroupNames();
+
+    if (groupNames == null) {
+      return;
+    }
+
+    if (filterGroups) {
+      boolean mightMatch = false;
+
+      for (String group: groupNames) {
+        if (AclSummary.mightContain(summaryFilter, group)) {
+          mightMatch = true;
+          break;
+        }
+      }
+
+      if (!mightMatch) {
+        return;
+      }
+    }
+
+    for (int gi = 0; gi < numGroupAces; gi++) {
+      int i = gi * 3;
+      int flags = groupAces[i + 2];
+      boolean notWho = (flags & 2) != 0;
+
+      for (String group: groupNames) {
+        if (whoMatch(group, groupAces[i], groupAces[i + 1], notWho,
+                     whoTypeGroup)) {
+          states.merge(whoTypeGroup, flags >>> 2, (flags & 1) != 0);
+          break;
+        }
+      }
+    }
+  }
+
+  /* As AceWho.whoMatch */
+  private boolean whoMatch(final String pref,
+                           final int nameStart,
+                           final int nameLen,
+                           final boolean notWho,
+                           final int whoType) throws AccessException {
+    if ((pref == null) && (nameLen < 0)) {
+      return !notWho;
+    }
+
+    if ((pref == null) || (nameLen < 0)) {
+      return notWho;
+    }
+
+    String name = new String(acl, nameStart, nameLen);
+
+    boolean match = pref.equals(cb.makeHref(name, whoType));
+    if (notWho) {
+      match = !match;
+    }
+
+    return match;
+  }
+
+  /* ====================================================================
+   *                   Result
+   * ==================================================================== */
+
+  private CurrentAccess result(final Privilege[] how,
+                               final PrivilegeSet filter) throws AccessException {
+    if (!isOwner && !states.userFound()) {
+      matchGroups();
+    }
+
+    return states.result(acl, authenticated, isOwner, how, filter);
+  }
+
+  /* ====================================================================
+   *                   States
+   * ==================================================================== */
+
+  /** Merged states for each who type. Bit n of a mask is set if privilege n
+   * has that state. The masks for a type never overlap.
+   *
+   * <p>Merging is as for PrivilegeSet.mergePrivileges so the order in which
+   * aces are merged does not matter.
+   */
+  static final class States {
+    final boolean[] found = new boolean[whoTypeFlags.length];
+    final int[] allowedMasks = new int[whoTypeFlags.length];
+    final int[] deniedMasks = new int[whoTypeFlags.length];
+    final int[] allowedInhMasks = new int[whoTypeFlags.length];
+    final int[] deniedInhMasks = new int[whoTypeFlags.length];
+
+    /* The result */
+    private boolean resFound;
+    private int resAllowed;
+    private int resDenied;
+    private int resAllowedInh;
+    private int resDeniedInh;
+
+    void reset() {
+      for (int wt = 0; wt < found.length; wt++) {
+        found[wt] = false;
+      }
+
+      resFound = false;
+    }
+
+    /* Merge in the privileges of an ace */
+    void merge(final int whoType,
+               final int allowedMask,
+               final boolean inherited) {
+      if (inherited) {
+        merge(whoType, 0, 0, allowedMask, allPrivsMask & ~allowedMask);
+      } else {
+        merge(whoType, allowedMask, allPrivsMask & ~allowedMask, 0, 0);
+      }
+    }
+
+    /* Merge in already merged states */
+    void merge(final int whoType,
+               int al,
+               int den,
+               int alInh,
+               int denInh) {
+      if (found[whoType]) {
+        al |= allowedMasks[whoType];
+        den = (den | deniedMasks[whoType]) & ~al;
+        alInh = (alInh | allowedInhMasks[whoType]) & ~(al | den);
+        denInh = (denInh | deniedInhMasks[whoType]) & ~(al | den | alInh);
+      }
+
+      found[whoType] = true;
+      allowedMasks[whoType] = al;
+      deniedMasks[whoType] = den;
+      allowedInhMasks[whoType] = alInh;
+      deniedInhMasks[whoType] = denInh;
+    }
+
+    /* Merge in the states of another for the same who type */
+    void merge(final int whoType,
+               final States that) {
+      if (that.found[whoType]) {
+        merge(whoType,
+              that.allowedMasks[whoType], that.deniedMasks[whoType],
+              that.allowedInhMasks[whoType], that.deniedInhMasks[whoType]);
+      }
+    }
+
+    /* Copy the states of another */
+    void set(final States that) {
+      int n = found.length;
+
+      System.arraycopy(that.found, 0, found, 0, n);
+      System.arraycopy(that.allowedMasks, 0, allowedMasks, 0, n);
+      System.arraycopy(that.deniedMasks, 0, deniedMasks, 0, n);
+      System.arraycopy(that.allowedInhMasks, 0, allowedInhMasks, 0, n);
+      System.arraycopy(that.deniedInhMasks, 0, deniedInhMasks, 0, n);
+      resFound = false;
+    }
+
+    /* True if any ace behaving like a user ace applied */
+    boolean userFound() {
+      for (int wt: userLikeTypes) {
+        if (found[wt]) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    /* Work out the access from the states as Acl.evaluateDecodedAccess
+     * does. Any group aces must have been merged.
+     */
+    CurrentAccess result(final char[] acl,
+                         final boolean authenticated,
+                         final boolean isOwner,
+                         final Privilege[] how,
+                         final PrivilegeSet filter) throws AccessException {
+      getPrivileges: {
+        if (!authenticated) {
+          if (useResult(whoTypeUnauthenticated) || useResult(whoTypeAll)) {
+            break getPrivileges;
+          }
+        }
+
+        if (isOwner) {
+          if (!useResult(whoTypeOwner)) {
+            resFound = true;
+            resAllowed = allPrivsMask;
+            resDenied = 0;
+            resAllowedInh = 0;
+            resDeniedInh = 0;
+          }
+
+          break getPrivileges;
+        }
+
+        for (int wt: userLikeTypes) {
+          if (useResult(wt)) {
+            break getPrivileges;
+          }
+        }
+
+        if (useResult(whoTypeGroup)) {
+          break getPrivileges;
+        }
+
+        if (authenticated && useResult(whoTypeAuthenticated)) {
+          break getPrivileges;
+        }
+
+        if (!useResult(whoTypeOther)) {
+          useResult(whoTypeAll);
+        }
+      } // getPrivileges
+
+      if (!resFound) {
+        return new CurrentAccess(acl, null, false);
+      }
+
+      if (isOwner) {
+        // Owner always has read/write acl privilege
+        if (((resAllowed | resAllowedInh) & aclPrivsMask) != aclPrivsMask) {
+          int al = resAllowed | aclPrivsMask;
+          int den = (resDenied | (allPrivsMask & ~aclPrivsMask)) & ~al;
+
+          resAllowedInh &= ~(al | den);
+          resDeniedInh &= ~(al | den | resAllowedInh);
+          resAllowed = al;
+          resDenied = den;
+        }
+      }
+
+      /* As PrivilegeSet.setUnspecified */
+      int unspec = allPrivsMask &
+              ~(resAllowed | resDenied | resAllowedInh | resDeniedInh);
+
+      if (isOwner) {
+        resAllowed |= unspec;
+      } else {
+        resDenied |= unspec;
+      }
+
+      PrivilegeSet privs = PrivilegeSet.fromStates(resAllowed, resDenied,
+                                                   resAllowedInh, resDeniedInh);
+
+      if (filter != null) {
+        privs = PrivilegeSet.filterPrivileges(privs, filter);
+      }
+
+      if (how.length == 0) {
+        // Means any access will do
+        return new CurrentAccess(acl, privs, privs.getAnyAllowed());
+      }
+
+      for (int i = 0; i < how.length; i++) {
+        char priv = privs.getPrivilege(how[i].getIndex());
+
+        if ((priv != allowed) && (priv != allowedInherited)) {
+          return new CurrentAccess(acl, privs, false);
+        }
+      }
+
+      return new CurrentAccess(acl, privs, true);
+    }
+
+    private boolean useResult(final int whoType) {
+      if (!found[whoType]) {
+        return false;
+      }
+
+      resFound = true;
+      resAllowed = allowedMasks[whoType];
+      resDenied = deniedMasks[whoType];
+      resAllowedInh = allowedInhMasks[whoType];
+      resDeniedInh = deniedInhMasks[whoType];
+
+      return true;
+    }
+  }
+}
@@ -24,6 +24,7 @@ import org.apache.log4j.Logger;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -37,7 +38,10 @@ import java.util.Map;
  * <li>accessor href: who's trying to get access</li>
  * <li>desired access</li>
  * <li>max access: filters the allowed access</li>
- * <li>acl: a string representation of the acl</li>
+ * <li>acl: the fingerprint of the encoded acl</li>
+ *
+ * <p>Different acls may have the same fingerprint so the acl of an entry is
+ * compared with that asked for to confirm a hit.
  *
  * @author douglm
  *
@@ -47,7 +51,7 @@ public class EvaluatedAccessCache implements Serializable {
 
   private final static Object synch = new Object();
 
-  private static class AccessMap extends HashMap<String, CurrentAccess>{}
+  private static class AccessMap extends HashMap<Long, CurrentAccess>{}
 
   private static class PrivMap extends HashMap<PrivilegeSet, AccessMap>{}
 
@@ -100,6 +104,71 @@ public class EvaluatedAccessCache implements Serializable {
                                   final String acl) {
     numGets.count++;
 
+    CurrentAccess ca = lookup(ownerHref, accessorHref, desiredPriv, maxAccess,
+                              AclFingerprint.compute(acl));
+
+    if ((ca == null) || !sameAcl(acl, ca.getAclChars())) {
+      return null;
+    }
+
+    numHits.count++;
+
+    return ca;
+  }
+
+  /**
+   * @param ownerHref     href
+   * @param accessorHref  href
+   * @param desiredPriv   priv set
+   * @param maxAccess     max allowed
+   * @param acl           encoded acl
+   * @param fingerprint   from AclFingerprint.compute(acl)
+   * @return CurrentAccess or null
+   */
+  public static CurrentAccess get(final String ownerHref,
+                                  final String accessorHref,
+                                  final PrivilegeSet desiredPriv,
+                                  final PrivilegeSet maxAccess,
+                                  final char[] acl,
+                                  final long fingerprint) {
+    numGets.count++;
+
+    CurrentAccess ca = lookup(ownerHref, accessorHref, desiredPriv, maxAccess,
+                              fingerprint);
+
+    if ((ca == null) || !Arrays.equals(acl, ca.getAclChars())) {
+      return null;
+    }
+
+    numHits.count++;
+
+    return ca;
+  }
+
+  /**
+   * @param ownerHref     href
+   * @param accessorHref  href
+   * @param desiredPriv   priv set
+   * @param maxAccess     max allowed
+   * @param acl           String acl
+   * @param ca            current access object
+   */
+  public static void put(final String ownerHref,
+                         final String accessorHref,
+                         final PrivilegeSet desiredPriv,
+                         final PrivilegeSet maxAccess,
+                         final String acl,
+                         final CurrentAccess ca) {
+    put(ownerHref, accessorHref, desiredPriv, maxAccess,
+        AclFingerprint.compute(acl), ca);
+  }
+
+  /* Get the entry with the fingerprint - the caller confirms the hit */
+  private static CurrentAccess lookup(final String ownerHref,
+                                      final String accessorHref,
+                                      final PrivilegeSet desiredPriv,
+                                      final PrivilegeSet maxAccess,
+                                      final long fingerprint) {
     synchronized (synch) {
       AccessorsMap accessors = ownerHrefs.get(ownerHref);
 
@@ -136,13 +205,7 @@ public class EvaluatedAccessCache implements Serializable {
 
       /* ==================== finally access =============== */
 
-      CurrentAccess ca = acls.get(acl);
-
-      if (ca != null) {
-        numHits.count++;
-      }
-
-      return ca;
+      return acls.get(fingerprint);
     } // synch
   }
 
@@ -151,14 +214,14 @@ public class EvaluatedAccessCache implements Serializable {
    * @param accessorHref  href
    * @param desiredPriv   priv set
    * @param maxAccess     max allowed
-   * @param acl           String acl
+   * @param fingerprint   of the acl ca was evaluated with
    * @param ca            current access object
    */
   public static void put(final String ownerHref,
                          final String accessorHref,
                          final PrivilegeSet desiredPriv,
                          final PrivilegeSet maxAccess,
-                         final String acl,
+                         final long fingerprint,
                          final CurrentAccess ca) {
     boolean found = true;
 
@@ -223,8 +286,9 @@ public class EvaluatedAccessCache implements Serializable {
       if (found) {
         // Let's see if it's the same - it ought to be
 
-        CurrentAccess tca = acls.get(acl);
-        if (tca != null) {
+        CurrentAccess tca = acls.get(fingerprint);
+        if ((tca != null) &&
+            Arrays.equals(tca.getAclChars(), ca.getAclChars())) {
           if (!tca.equals(ca)) {
             // That's bad.
             error("Current access in table does not match, table:" + tca +
@@ -234,7 +298,7 @@ public class EvaluatedAccessCache implements Serializable {
       }
 
       numEntries.count++;
-      acls.put(acl, ca);
+      acls.put(fingerprint, ca);
     } // synch
   }
 
@@ -248,6 +312,24 @@ public class EvaluatedAccessCache implements Serializable {
     return stats;
   }
 
+  private static boolean sameAcl(final String acl, final char[] aclChars) {
+    if ((acl == null) || (aclChars == null)) {
+      return (acl == null) && (aclChars == null);
+    }
+
+    if (acl.length() != aclChars.length) {
+      return false;
+    }
+
+    for (int i = 0; i < aclChars.length; i++) {
+      if (acl.charAt(i) != aclChars[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
   private static Logger getLog() {
     if (log == null) {
       log = Logger.getLogger(EvaluatedAccessCache.class.getName());
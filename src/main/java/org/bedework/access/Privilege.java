@@ -50,6 +50,14 @@ public class Privilege implements PrivilegeDefs {
 
   private ArrayList<Privilege> containedPrivileges = new ArrayList<Privilege>();
 
+  /* Indexes of this privilege and all those it contains, flattened from the
+   * tree when the privilege is built.
+   */
+  private int[] closure;
+
+  /* The closure as a bit mask indexed by privilege index */
+  private int closureMask;
+
   /** Constructor
    *
    * @param name         the privilege name
@@ -113,6 +121,8 @@ public class Privilege implements PrivilegeDefs {
     for (Privilege p: contained) {
       containedPrivileges.add(p);
     }
+
+    setClosure();
   }
 
   /**
@@ -157,6 +167,24 @@ public class Privilege implements PrivilegeDefs {
     return Collections.unmodifiableCollection(containedPrivileges);
   }
 
+  /** The privileges implied by this one as a bit mask - bit n is set if this
+   * privilege is or contains the privilege with index n.
+   *
+   * @return int mask
+   */
+  public int getClosureMask() {
+    return closureMask;
+  }
+
+  /** The indexes of this privilege and all those it contains, in
+   * ascending order. The array must not be modified.
+   *
+   * @return int[] indexes
+   */
+  int[] getClosure() {
+    return closure;
+  }
+
   /* ====================================================================
    *                 Decoding methods
    * ==================================================================== */
@@ -283,6 +311,8 @@ public class Privilege implements PrivilegeDefs {
       newval.containedPrivileges.add(cloneDenied(p));
     }
 
+    newval.setClosure();
+
     return newval;
   }
 
@@ -296,6 +326,31 @@ public class Privilege implements PrivilegeDefs {
   private void setIndex(int val) {
     index = val;
     encoding = privEncoding[index];
+    setClosure();
+  }
+
+  /* Contained privileges are complete when added so we only need to combine
+   * their closures.
+   */
+  private void setClosure() {
+    int mask = 1 << index;
+
+    for (Privilege p: containedPrivileges) {
+      mask |= p.closureMask;
+    }
+
+    int[] cl = new int[Integer.bitCount(mask)];
+    int ci = 0;
+
+    for (int pi = 0; pi <= privMaxType; pi++) {
+      if ((mask & (1 << pi)) != 0) {
+        cl[ci] = pi;
+        ci++;
+      }
+    }
+
+    closureMask = mask;
+    closure = cl;
   }
 
   /* ====================================================================
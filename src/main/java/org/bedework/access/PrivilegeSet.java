@@ -18,13 +18,20 @@
 */
 package org.bedework.access;
 
-import org.bedework.util.caching.ObjectPool;
-
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /** Immutable object to define allowed privileges for a principal
+ *
+ * <p>All the sets we return from the static methods are canonical, that is
+ * there is exactly one instance for each distinct set of privileges and it
+ * has a small integer id. Comparing two canonical sets is an identity check
+ * and hashing them returns a precomputed value. Sets created by the public
+ * constructors are not canonical until passed to {@link #canonical}.
  *
  *  @author Mike Douglass   douglm  bedework.edu
  */
@@ -32,14 +39,75 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
                                      Comparable<PrivilegeSet> {
   private char[] privileges;
 
-  private static ObjectPool<PrivilegeSet> privSets = new ObjectPool<PrivilegeSet>();
+  /* Non-zero for canonical instances */
+  private transient int id;
+
+  /* Precomputed for canonical instances */
+  private transient int hash;
+
+  /* Canonical instances keyed by their privileges. Lookups are lock free,
+   * additions are done holding the lock on the map.
+   */
+  private static final ConcurrentHashMap<String, PrivilegeSet> canonicalSets =
+          new ConcurrentHashMap<>();
+
+  /* Indexed by id. Reassigned after every addition so that readers see the
+   * new entry.
+   */
+  private static volatile PrivilegeSet[] canonicalById = new PrivilegeSet[64];
+
+  private static int lastId;
+
+  /** The number of distinct sets is small in practice. If something
+   * manages to create more than this we stop adding to the table and hand
+   * back non-canonical sets, which still compare correctly.
+   */
+  private static final int maxCanonical = 4096;
+
+  private static final Access.AccessStatsEntry canonicalSize =
+    new Access.AccessStatsEntry("Canonical privilege sets");
+
+  /* Results of mergePrivileges for canonical inputs keyed by
+   * (current id, more id, inherited) - see mergeKey. Direct mapped like
+   * stateCache, so it never grows and needs no clearing.
+   */
+  private static final int mergeCacheSize = 8192;
+
+  private static final AtomicReferenceArray<CodeEntry> mergeCache =
+          new AtomicReferenceArray<>(mergeCacheSize);
+
+  /* Canonical sets found by the state masks passed to fromStates. This is a
+   * direct mapped cache - a colliding entry just replaces the previous one.
+   */
+  private static final int stateCacheSize = 1024;
+
+  private static final AtomicReferenceArray<CodeEntry> stateCache =
+          new AtomicReferenceArray<>(stateCacheSize);
+
+  /* An entry in one of the direct mapped caches */
+  private static class CodeEntry {
+    final long code;
+    final PrivilegeSet privs;
+
+    CodeEntry(final long code, final PrivilegeSet privs) {
+      this.code = code;
+      this.privs = privs;
+    }
+  }
+
+  private static final Access.AccessStatsEntry mergeHits =
+    new Access.AccessStatsEntry("Privilege merge table hits");
 
-  private static boolean usePool = true;
+  private static final Access.AccessStatsEntry mergeMisses =
+    new Access.AccessStatsEntry("Privilege merge table misses");
+
+  private static final Access.AccessStatsEntry mergeReplaced =
+    new Access.AccessStatsEntry("Privilege merge table entries replaced");
 
   /** Default privs for an owner
    */
   public static PrivilegeSet defaultOwnerPrivileges =
-    pooled(new PrivilegeSet(allowed,   // privAll
+    canonical(new PrivilegeSet(allowed,   // privAll
                      allowed,   // privRead
                      allowed,   // privReadAcl
                      allowed,   // privReadCurrentUserPrivilegeSet
@@ -73,7 +141,7 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
    * for example.
    */
   public static PrivilegeSet userHomeMaxPrivileges =
-    pooled(new PrivilegeSet(denied,   // privAll
+    canonical(new PrivilegeSet(denied,   // privAll
                      allowed,   // privRead
                      allowed,   // privReadAcl
                      allowed,   // privReadCurrentUserPrivilegeSet
@@ -105,7 +173,7 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
   /** Read-only privileges
    */
   public static PrivilegeSet readOnlyPrivileges =
-    pooled(new PrivilegeSet(denied,   // privAll
+    canonical(new PrivilegeSet(denied,   // privAll
                      allowed,   // privRead
                      denied,   // privReadAcl
                      allowed,   // privReadCurrentUserPrivilegeSet
@@ -136,7 +204,7 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
   /** Default privs for a non owner
    */
   public static PrivilegeSet defaultNonOwnerPrivileges =
-    pooled(new PrivilegeSet(denied,   // privAll
+    canonical(new PrivilegeSet(denied,   // privAll
                      denied,   // privRead
                      denied,   // privReadAcl
                      denied,   // privReadCurrentUserPrivilegeSet
@@ -167,7 +235,7 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
   /** ACL privileges for owner
    */
   public static PrivilegeSet ownerAclPrivileges =
-    pooled(new PrivilegeSet(denied,   // privAll
+    canonical(new PrivilegeSet(denied,   // privAll
                      denied,   // privRead
                      allowed,   // privReadAcl
                      denied,   // privReadCurrentUserPrivilegeSet
@@ -334,19 +402,9 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
 
     pset.privileges = new char[privMaxType + 1];
 
-    if (priv.getDenial()) {
-      pset.privileges[priv.getIndex()] = denied;
-    } else {
-      pset.privileges[priv.getIndex()] = allowed;
-    }
-
-    /* Iterate over the children */
+    pset.setPrivilege(priv);
 
-    for (Privilege p: priv.getContainedPrivileges()) {
-      pset.setPrivilege(p);
-    }
-
-    return pooled(pset);
+    return canonical(pset);
   }
 
   /** Returns a set of flags indicating if the indexed privilege (see above
@@ -357,25 +415,8 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
    * @throws AccessException
    */
   public static PrivilegeSet fromEncoding(final EncodedAcl acl) throws AccessException {
-    char[] privStates = {
-      unspecified,   // privAll
-      unspecified,   // privRead
-      unspecified,   // privReadAcl
-      unspecified,   // privReadCurrentUserPrivilegeSet
-      unspecified,   // privReadFreeBusy
-      unspecified,   // privWrite
-      unspecified,   // privWriteAcl
-      unspecified,   // privWriteProperties
-      unspecified,   // privWriteContent
-      unspecified,   // privBind
-      unspecified,   // privSchedule
-      unspecified,   // privScheduleRequest
-      unspecified,   // privScheduleReply
-      unspecified,   // privScheduleFreeBusy
-      unspecified,   // privUnbind
-      unspecified,   // privUnlock
-      unspecified,   // privNone
-    };
+    char[] privStates = new char[privMaxType + 1];
+    Arrays.fill(privStates, unspecified);
 
     while (acl.hasMore()) {
       char c = acl.getChar();
@@ -396,7 +437,7 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
       setState(privStates, p, p.getDenial());
     }
 
-    return pooled(new PrivilegeSet(privStates));
+    return canonical(new PrivilegeSet(privStates));
   }
 
   /** Add the given privilege
@@ -413,19 +454,9 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
       newPset.privileges = defaultNonOwnerPrivileges.getPrivileges();
     }
 
-    if (priv.getDenial()) {
-      newPset.privileges[priv.getIndex()] = denied;
-    } else {
-      newPset.privileges[priv.getIndex()] = allowed;
-    }
-
-    /* Iterate over the children */
+    newPset.setPrivilege(priv);
 
-    for (Privilege p: priv.getContainedPrivileges()) {
-      newPset.setPrivilege(p);
-    }
-
-    return pooled(newPset);
+    return canonical(newPset);
   }
 
   /** Make a PrivilegeSet from the given privileges
@@ -439,20 +470,10 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
     newPset.privileges = defaultNonOwnerPrivileges.getPrivileges();
 
     for (Privilege priv: privs) {
-      if (priv.getDenial()) {
-        newPset.privileges[priv.getIndex()] = denied;
-      } else {
-        newPset.privileges[priv.getIndex()] = allowed;
-      }
-
-      /* Iterate over the children */
-
-      for (Privilege p: priv.getContainedPrivileges()) {
-        newPset.setPrivilege(p);
-      }
+      newPset.setPrivilege(priv);
     }
 
-    return pooled(newPset);
+    return canonical(newPset);
   }
 
   /** Get the given privilege
@@ -490,7 +511,7 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
       }
     }
 
-    return pooled(newPset);
+    return canonical(newPset);
   }
 
   /** Return true if there is any allowed access
@@ -528,6 +549,9 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
    *
    * <p>Only allowed and denied appear in encoded aces.
    *
+   * <p>The result for canonical inputs is remembered so repeated merges
+   * of the same sets are a single lookup.
+   *
    * @param current current privs
    * @param morePriv more
    * @param inherited   true if the ace was an inherited ace
@@ -536,6 +560,38 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
   public static PrivilegeSet mergePrivileges(final PrivilegeSet current,
                                              final PrivilegeSet morePriv,
                                              final boolean inherited) {
+    long key = mergeKey(current, morePriv, inherited);
+
+    if (key < 0) {
+      return doMerge(current, morePriv, inherited);
+    }
+
+    int slot = slot(key, mergeCacheSize);
+
+    CodeEntry ce = mergeCache.get(slot);
+
+    if ((ce != null) && (ce.code == key)) {
+      mergeHits.count++;
+      return ce.privs;
+    }
+
+    mergeMisses.count++;
+    PrivilegeSet ps = doMerge(current, morePriv, inherited);
+
+    if (ps.id != 0) {
+      if (ce != null) {
+        mergeReplaced.count++;
+      }
+
+      mergeCache.set(slot, new CodeEntry(key, ps));
+    }
+
+    return ps;
+  }
+
+  private static PrivilegeSet doMerge(final PrivilegeSet current,
+                                      final PrivilegeSet morePriv,
+                                      final boolean inherited) {
     PrivilegeSet mp = (PrivilegeSet)morePriv.clone();
 
     if (inherited) {
@@ -550,17 +606,24 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
     }
 
     if (current == null) {
-      return mp;
+      return canonical(mp);
+    }
+
+    /* current may be a canonical set - never modify it */
+    char[] merged = current.getPrivileges();
+
+    if (merged == null) {
+      return canonical(mp);
     }
 
     for (int i = 0; i <= privMaxType; i++) {
       char priv = mp.getPrivilege(i);
-      if (current.getPrivilege(i) < priv) {
-        current.setPrivilege(i, priv);
+      if (merged[i] < priv) {
+        merged[i] = priv;
       }
     }
 
-    return pooled(current);
+    return canonical(new PrivilegeSet(merged));
   }
 
   /** Set all unspecified values to allowed for the owner or denied otherwise.
@@ -587,7 +650,173 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
       }
     }
 
-    return pooled(newPset);
+    return canonical(newPset);
+  }
+
+  /** Return the canonical instance for the given set. The result is the
+   * unique instance representing that set of privileges, or val itself if
+   * the canonical table is full.
+   *
+   * @param val privilege set
+   * @return PrivilegeSet canonical instance
+   */
+  public static PrivilegeSet canonical(final PrivilegeSet val) {
+    if ((val == null) || (val.id != 0) || (val.privileges == null)) {
+      return val;
+    }
+
+    String key = new String(val.privileges);
+    PrivilegeSet ps = canonicalSets.get(key);
+
+    if (ps != null) {
+      return ps;
+    }
+
+    synchronized (canonicalSets) {
+      ps = canonicalSets.get(key);
+
+      if (ps != null) {
+        return ps;
+      }
+
+      if (lastId >= maxCanonical) {
+        return val;
+      }
+
+      /* Take our own copy - the caller may still hold the array */
+      ps = new PrivilegeSet(val.privileges.clone());
+      ps.hash = ps.contentHash();
+      lastId++;
+      ps.id = lastId;
+
+      PrivilegeSet[] byId = canonicalById;
+      if (lastId >= byId.length) {
+        PrivilegeSet[] newById = new PrivilegeSet[byId.length * 2];
+        System.arraycopy(byId, 0, newById, 0, byId.length);
+        byId = newById;
+      }
+
+      byId[lastId] = ps;
+      canonicalById = byId;
+      canonicalSize.count = lastId;
+
+      canonicalSets.put(key, ps);
+    }
+
+    return ps;
+  }
+
+  /** Return the canonical set for the given states. Bit n of each mask is
+   * set if privilege n has that state. Where masks overlap the state higher
+   * in the order of mergePrivileges wins. Privileges in none of the masks
+   * are unspecified.
+   *
+   * <p>This does not allocate once the set has been seen.
+   *
+   * @param allowedMask          allowed privileges
+   * @param deniedMask           denied privileges
+   * @param allowedInheritedMask allowed inherited privileges
+   * @param deniedInheritedMask  denied inherited privileges
+   * @return PrivilegeSet
+   */
+  static PrivilegeSet fromStates(final int allowedMask,
+                                 final int deniedMask,
+                                 final int allowedInheritedMask,
+                                 final int deniedInheritedMask) {
+    /* There are 5 states so the whole set fits in a long as base 5 digits */
+    long code = 0;
+
+    for (int pi = 0; pi <= privMaxType; pi++) {
+      int bit = 1 << pi;
+      int digit;
+
+      if ((allowedMask & bit) != 0) {
+        digit = 4;
+      } else if ((deniedMask & bit) != 0) {
+        digit = 3;
+      } else if ((allowedInheritedMask & bit) != 0) {
+        digit = 2;
+      } else if ((deniedInheritedMask & bit) != 0) {
+        digit = 1;
+      } else {
+        digit = 0;
+      }
+
+      code = code * 5 + digit;
+    }
+
+    int slot = slot(code, stateCacheSize);
+
+    CodeEntry se = stateCache.get(slot);
+
+    if ((se != null) && (se.code == code)) {
+      return se.privs;
+    }
+
+    char[] ps = new char[privMaxType + 1];
+
+    for (int pi = 0; pi <= privMaxType; pi++) {
+      int bit = 1 << pi;
+
+      if ((allowedMask & bit) != 0) {
+        ps[pi] = allowed;
+      } else if ((deniedMask & bit) != 0) {
+        ps[pi] = denied;
+      } else if ((allowedInheritedMask & bit) != 0) {
+        ps[pi] = allowedInherited;
+      } else if ((deniedInheritedMask & bit) != 0) {
+        ps[pi] = deniedInherited;
+      } else {
+        ps[pi] = unspecified;
+      }
+    }
+
+    PrivilegeSet pset = canonical(new PrivilegeSet(ps));
+
+    if (pset.id != 0) {
+      stateCache.set(slot, new CodeEntry(code, pset));
+    }
+
+    return pset;
+  }
+
+  /** Return the canonical set with the given id.
+   *
+   * @param id from getId()
+   * @return PrivilegeSet or null for an unknown id
+   */
+  public static PrivilegeSet fromId(final int id) {
+    PrivilegeSet[] byId = canonicalById;
+
+    if ((id <= 0) || (id >= byId.length)) {
+      return null;
+    }
+
+    return byId[id];
+  }
+
+  /** A small integer uniquely identifying a canonical set. Ids are only
+   * meaningful within a single jvm.
+   *
+   * @return int id or 0 if this is not a canonical set
+   */
+  public int getId() {
+    return id;
+  }
+
+  /** Get the statistics
+   *
+   * @return Collection of stats
+   */
+  public static Collection<Access.AccessStatsEntry> getStatistics() {
+    Collection<Access.AccessStatsEntry> stats = new ArrayList<>();
+
+    stats.add(canonicalSize);
+    stats.add(mergeHits);
+    stats.add(mergeMisses);
+    stats.add(mergeReplaced);
+
+    return stats;
   }
 
   /**
@@ -613,8 +842,10 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
       if (ps[pi] != unspecified) {
         Privilege priv = Privileges.makePriv(pi);
 
-        for (Privilege pr: priv.getContainedPrivileges()) {
-          setUnspec(ps, pr);
+        for (int ci: priv.getClosure()) {
+          if (ci != priv.getIndex()) {
+            ps[ci] = unspecified;
+          }
         }
       }
     }
@@ -635,13 +866,57 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
    *                   Private methods
    * ==================================================================== */
 
-  private void setUnspec(final char[] ps, final Privilege priv) {
-    ps[priv.getIndex()] = unspecified;
+  /* Key for the merge table or -1 if the inputs are not canonical. Ids are
+   * positive ints and a null current is represented by 0.
+   */
+  private static long mergeKey(final PrivilegeSet current,
+                               final PrivilegeSet morePriv,
+                               final boolean inherited) {
+    if (morePriv.id == 0) {
+      return -1;
+    }
+
+    long curId = 0;
+
+    if (current != null) {
+      if (current.id == 0) {
+        return -1;
+      }
 
-    for (Privilege pr: priv.getContainedPrivileges()) {
-      setUnspec(ps, pr);
+      curId = current.id;
     }
 
+    long key = (curId << 32) | ((long)morePriv.id << 1);
+
+    if (inherited) {
+      key |= 1;
+    }
+
+    return key;
+  }
+
+  /* Slot in a direct mapped cache of size - a power of 2 - for code */
+  private static int slot(final long code, final int size) {
+    return (int)((code ^ (code >>> 29)) * 0x9E3779B9L) & (size - 1);
+  }
+
+  private int contentHash() {
+    int hc = 7;
+
+    if (privileges == null) {
+      return hc;
+    }
+
+    for (int pi = 0; pi < privileges.length; pi++) {
+      hc = 31 * hc + privileges[pi];
+    }
+
+    return hc;
+  }
+
+  /* Deserialized sets are replaced by the canonical instance */
+  private Object readResolve() {
+    return canonical(this);
   }
 
   private static boolean privAgtB(final char priva, final char privb) {
@@ -656,13 +931,6 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
     return false;
   }
 
-  private static PrivilegeSet pooled(final PrivilegeSet val) {
-    if (!usePool) {
-      return val;
-    }
-
-    return privSets.get(val);
-  }
 
   /** Set the given privilege
    *
@@ -686,16 +954,16 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
       privileges = defaultNonOwnerPrivileges.getPrivileges();
     }
 
+    /* The closure covers the children - which share the denial flag */
+    char state;
     if (priv.getDenial()) {
-      privileges[priv.getIndex()] = denied;
+      state = denied;
     } else {
-      privileges[priv.getIndex()] = allowed;
+      state = allowed;
     }
 
-    /* Iterate over the children */
-
-    for (Privilege p: priv.getContainedPrivileges()) {
-      setPrivilege(p);
+    for (int pi: priv.getClosure()) {
+      privileges[pi] = state;
     }
   }
 
@@ -714,17 +982,13 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
    */
   private static void setState(final char[] states, final Privilege p, final boolean denial) {
     // XXX Should we only set either way of the access is unspecified?
-    if (!denial) {
-      states[p.getIndex()] = allowed;
-//    } else {
-    } else if (states[p.getIndex()] == unspecified) {
-      states[p.getIndex()] = denied;
-    }
-
-    /* Iterate over the children */
-
-    for (Privilege pr: p.getContainedPrivileges()) {
-      setState(states, pr, denial);
+    for (int pi: p.getClosure()) {
+      if (!denial) {
+        states[pi] = allowed;
+//      } else {
+      } else if (states[pi] == unspecified) {
+        states[pi] = denied;
+      }
     }
   }
 
@@ -758,7 +1022,7 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
       }
 
       if (thisp > thatp) {
-        return -1;
+        return 1;
       }
     }
 
@@ -767,22 +1031,31 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
 
   @Override
   public int hashCode() {
-    int hc = 7;
-
-    if (privileges == null) {
-      return hc;
+    if (id != 0) {
+      return hash;
     }
 
-    for (int pi = 0; pi < privileges.length; pi++) {
-      hc *= privileges[pi];
-    }
-
-    return hc;
+    return contentHash();
   }
 
   @Override
   public boolean equals(final Object o) {
-    return compareTo((PrivilegeSet)o) == 0;
+    if (this == o) {
+      return true;
+    }
+
+    if (!(o instanceof PrivilegeSet)) {
+      return false;
+    }
+
+    PrivilegeSet that = (PrivilegeSet)o;
+
+    if ((id != 0) && (that.id != 0)) {
+      // Distinct canonical sets
+      return false;
+    }
+
+    return compareTo(that) == 0;
   }
 
   @Override
@@ -19,6 +19,7 @@
 package org.bedework.access;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 
 /** Define the privileges we recognize for the calendar.
@@ -90,10 +91,20 @@ public class Privileges implements PrivilegeDefs {
   private final static Privilege[] privs = new Privilege[privMaxType + 1];
   private final static Privilege[] deniedPrivs = new Privilege[privMaxType + 1];
 
+  /* Privilege index for each encoding character or -1 */
+  private final static int[] encodingIndex = new int[128];
+
   static {
     makePrivileges(privs, false);
     makePrivileges(deniedPrivs, true);
 
+    Arrays.fill(encodingIndex, -1);
+
+    /* privNone is encoded as denied privAll */
+    for (int pi = 0; pi < privNone; pi++) {
+      encodingIndex[privEncoding[pi]] = pi;
+    }
+
     /*
     for (Privilege p: privs) {
       System.out.println(p);
@@ -157,9 +168,27 @@ public class Privileges implements PrivilegeDefs {
       if ((c == ' ') || (c == inheritedFlag)) {
         break;
       }
+
+      /* c was the allowed/denied flag. Skip the privilege - its encoding
+       * may be the same as the inherited flag.
+       */
+      acl.getChar();
     }
   }
 
+  /** Return the index of the privilege with the given encoding.
+   *
+   * @param c encoded privilege
+   * @return int index or -1 for an unknown privilege
+   */
+  static int privIndex(final char c) {
+    if (c >= encodingIndex.length) {
+      return -1;
+    }
+
+    return encodingIndex[c];
+  }
+
   /** Returns the collection of privilege objects representing the access.
    * Used for acl manipulation..
    *
@@ -18,17 +18,21 @@
 */
 package org.bedework.access.test;
 
+import org.bedework.access.Access;
 import org.bedework.access.AccessException;
 import org.bedework.access.Ace;
 import org.bedework.access.AceWho;
 import org.bedework.access.Acl;
 import org.bedework.access.Privilege;
+import org.bedework.access.PrivilegeSet;
 import org.bedework.access.Privileges;
 import org.bedework.access.Access.AccessCb;
 import org.bedework.access.Acl.CurrentAccess;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Random;
 
 import junit.framework.TestCase;
 
@@ -192,10 +196,161 @@ public class AccessTest extends TestCase {
     }
   }
 
+  /**
+   *
+   */
+  public void testCanonicalPrivilegeSets() {
+    Privilege read = Privileges.makePriv(Privileges.privRead);
+    Privilege write = Privileges.makePriv(Privileges.privWrite);
+
+    PrivilegeSet ps1 = PrivilegeSet.makePrivilegeSet(new Privilege[]{read});
+    PrivilegeSet ps2 = PrivilegeSet.makePrivilegeSet(new Privilege[]{read});
+    PrivilegeSet ps3 = PrivilegeSet.makePrivilegeSet(new Privilege[]{read,
+                                                                     write});
+
+    assertSame("Same set not canonical", ps1, ps2);
+    assertTrue("No id for canonical set", ps1.getId() > 0);
+    assertSame("fromId", ps1, PrivilegeSet.fromId(ps1.getId()));
+    assertFalse("Distinct sets equal", ps1.equals(ps3));
+
+    PrivilegeSet copy = new PrivilegeSet(ps1.getPrivileges());
+    assertEquals("Non canonical copy", 0, copy.getId());
+    assertEquals("Copy not equal", ps1, copy);
+    assertEquals("Copy hash", ps1.hashCode(), copy.hashCode());
+    assertSame("Canonical of copy", ps1, PrivilegeSet.canonical(copy));
+
+    /* Merging must not modify the canonical inputs */
+    char[] before = ps1.getPrivileges();
+    PrivilegeSet merged = PrivilegeSet.mergePrivileges(ps1, ps3, false);
+    assertEquals("Input modified by merge",
+                 new String(before), new String(ps1.getPrivileges()));
+    assertSame("Merge result not canonical", ps3, merged);
+  }
+
+  /**
+   *
+   */
+  public void testClosure() {
+    for (int pi = 0; pi <= Privileges.privMaxType; pi++) {
+      for (boolean denial: new boolean[]{false, true}) {
+        Privilege priv = Privileges.makePriv(pi, denial);
+        String title = pi + " denial=" + denial;
+
+        assertEquals(title, containedMask(priv), priv.getClosureMask());
+
+        /* The set made from the privilege has the closure set */
+        PrivilegeSet ps = PrivilegeSet.makePrivileges(priv);
+        char state;
+
+        // privNone is a denied privAll
+        if (priv.getDenial()) {
+          state = Privilege.denied;
+        } else {
+          state = Privilege.allowed;
+        }
+
+        for (int ci = 0; ci <= Privileges.privMaxType; ci++) {
+          if ((priv.getClosureMask() & (1 << ci)) != 0) {
+            assertEquals(title + " " + ci, state, ps.getPrivilege(ci));
+          } else {
+            assertTrue(title + " " + ci,
+                       (ps.getPrivilege(ci) != Privilege.allowed) &&
+                       (ps.getPrivilege(ci) != Privilege.denied));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   *
+   */
+  public void testMergeTable() {
+    Privilege unbind = Privileges.makePriv(Privileges.privUnbind);
+    Privilege invite = Privileges.makePriv(Privileges.privScheduleSendInvite,
+                                           true);
+
+    PrivilegeSet ps1 = PrivilegeSet.makePrivilegeSet(new Privilege[]{unbind});
+    PrivilegeSet ps2 = PrivilegeSet.makePrivilegeSet(new Privilege[]{invite});
+
+    /* A repeated merge is a hit */
+    PrivilegeSet merged = PrivilegeSet.mergePrivileges(ps1, ps2, true);
+    long hits = statCount("Privilege merge table hits");
+    long misses = statCount("Privilege merge table misses");
+
+    assertSame(merged, PrivilegeSet.mergePrivileges(ps1, ps2, true));
+    assertEquals(hits + 1, statCount("Privilege merge table hits"));
+    assertEquals(misses, statCount("Privilege merge table misses"));
+
+    /* Inherited is part of the key */
+    PrivilegeSet.mergePrivileges(ps1, ps2, false);
+    assertEquals(misses + 1, statCount("Privilege merge table misses"));
+
+    /* More merges than the table holds replace entries and still give the
+     * same result as merging non-canonical copies, which bypass the table.
+     */
+    Random rand = new Random(28);
+    List<PrivilegeSet> sets = new ArrayList<PrivilegeSet>();
+
+    for (int i = 0; i < 150; i++) {
+      Privilege[] privs = new Privilege[1 + rand.nextInt(3)];
+
+      for (int pi = 0; pi < privs.length; pi++) {
+        privs[pi] = Privileges.makePriv(rand.nextInt(Privileges.privNone),
+                                        rand.nextBoolean());
+      }
+
+      sets.add(PrivilegeSet.makePrivilegeSet(privs));
+    }
+
+    long replaced = statCount("Privilege merge table entries replaced");
+
+    for (int round = 0; round < 2; round++) {
+      for (PrivilegeSet cur: sets) {
+        PrivilegeSet curCopy = new PrivilegeSet(cur.getPrivileges());
+
+        for (PrivilegeSet more: sets) {
+          PrivilegeSet moreCopy = new PrivilegeSet(more.getPrivileges());
+
+          for (boolean inherited: new boolean[]{false, true}) {
+            assertEquals(PrivilegeSet.mergePrivileges(curCopy, moreCopy,
+                                                      inherited),
+                         PrivilegeSet.mergePrivileges(cur, more, inherited));
+          }
+        }
+      }
+    }
+
+    assertTrue(statCount("Privilege merge table entries replaced") > replaced);
+  }
+
   /* ====================================================================
    *                       Private methods.
    * ==================================================================== */
 
+  private long statCount(final String name) {
+    for (Access.AccessStatsEntry st: Access.getStatistics()) {
+      if (st.name.equals(name)) {
+        return st.count;
+      }
+    }
+
+    fail("No statistic " + name);
+    return 0;
+  }
+
+  /* The closure found by walking the contained privileges */
+  private int containedMask(final Privilege priv) {
+    int mask = 1 << priv.getIndex();
+
+    for (Privilege p: priv.getContainedPrivileges()) {
+      assertEquals(priv.getDenial(), p.getDenial());
+      mask |= containedMask(p);
+    }
+
+    return mask;
+  }
+
   private void tryEvaluateAccess(Principal who, Principal owner,
                                  Privilege[] how, char[] encoded,
                                  boolean expected, String title) throws Throwable {
@@ -0,0 +1,831 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access.test;
+
+import org.bedework.access.Access;
+import org.bedework.access.AccessException;
+import org.bedework.access.Ace;
+import org.bedework.access.AceDictionary;
+import org.bedework.access.AceWho;
+import org.bedework.access.AceView;
+import org.bedework.access.Acl;
+import org.bedework.access.AclLimits;
+import org.bedework.access.AclSummary;
+import org.bedework.access.AclValidator;
+import org.bedework.access.AclView;
+import org.bedework.access.BinaryAclCodec;
+import org.bedework.access.EncodedAcl;
+import org.bedework.access.EncodedAclEvaluator;
+import org.bedework.access.Privilege;
+import org.bedework.access.Privileges;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/** Check the alternative encodings of acls against the text encoding.
+ *
+ * @author douglm
+ */
+public class AclCodecTest extends TestCase {
+  /**
+   * @throws Throwable on error
+   */
+  public void testBinary() throws Throwable {
+    Random rand = new Random(42);
+    int binLen = 0;
+    int textLen = 0;
+
+    for (int i = 0; i < 2000; i++) {
+      char[] text = TestAcls.makeAcl(rand);
+      Acl acl = Acl.decode(text);
+
+      byte[] bin = acl.encodeBinaryAll();
+      byte[] textBytes = new String(text).getBytes("UTF-8");
+
+      binLen += bin.length;
+      textLen += textBytes.length;
+
+      checkSame(new String(text), acl, Acl.decode(bin));
+      checkSame(new String(text), acl, Acl.decode(textBytes));
+
+      // Inherited entries skipped
+      checkSame(new String(text), Acl.decode(acl.encode()),
+                Acl.decode(acl.encodeBinary()));
+
+      // Positioned after the acl
+      ByteBuffer buf = ByteBuffer.allocate(bin.length + 1);
+      buf.put(bin);
+      buf.put((byte)'x');
+      buf.flip();
+
+      checkSame(new String(text), acl, Acl.decode(buf));
+      assertEquals('x', buf.get());
+
+      try {
+        Acl.decode(Arrays.copyOf(bin, 1 + rand.nextInt(bin.length - 1)));
+        fail("Truncated acl decoded: " + new String(text));
+      } catch (AccessException ae) {
+      }
+    }
+
+    assertTrue("Binary " + binLen + " text " + textLen, binLen < textLen);
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testViews() throws Throwable {
+    Random rand = new Random(43);
+    AclView view = new AclView();
+
+    for (int i = 0; i < 2000; i++) {
+      char[] text = TestAcls.makeAcl(rand);
+      Acl acl = Acl.decode(text);
+
+      CharBuffer mapped = ByteBuffer.allocateDirect(text.length * 2)
+              .asCharBuffer();
+      mapped.put(text);
+      mapped.flip();
+
+      CharSequence[] seqs = {new String(text), CharBuffer.wrap(text), mapped};
+
+      for (CharSequence seq: seqs) {
+        view.reset(seq);
+
+        for (Ace ace: acl.getAces()) {
+          assertTrue(seq.toString(), view.hasMore());
+
+          AceView av = view.next();
+          String title = seq + " at " + av.getStart();
+
+          assertEquals(title, ace.getWho().getNotWho(), av.getNotWho());
+          assertEquals(title, ace.getWho().getWhoType(), av.getWhoType());
+          assertTrue(title, av.nameEquals(ace.getWho().getWho()));
+          assertEquals(title, ace.getWho().getWho(), av.getNameString());
+          assertEquals(title, ace.getInheritedFrom() != null,
+                       av.isInherited());
+
+          if (av.isInherited()) {
+            assertEquals(title, ace.getInheritedFrom(),
+                         av.getInheritedFrom().toString());
+          }
+
+          Ace res = av.toAce();
+
+          assertEquals(title, ace.getWho(), res.getWho());
+          assertEquals(title, ace.getHow(), res.getHow());
+        }
+
+        assertFalse(seq.toString(), view.hasMore());
+      }
+    }
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testDictionary() throws Throwable {
+    Random rand = new Random(45);
+    AccessTest.TestAccessCb cb = new AccessTest.TestAccessCb();
+    User owner = new User("anowner");
+    User auser = new User("auser");
+    Privilege[] read = {Privileges.makePriv(Privileges.privRead)};
+
+    /* Acls made from a few common aces */
+    char[][] common = new char[20][];
+    for (int i = 0; i < common.length; i++) {
+      // As stored - no inherited aces
+      do {
+        common[i] = Acl.decode(TestAcls.makeAcl(rand)).encode();
+      } while (common[i] == null);
+    }
+
+    List<char[]> acls = new ArrayList<char[]>();
+    for (int i = 0; i < 1000; i++) {
+      char[] acl = common[rand.nextInt(common.length)];
+
+      if (rand.nextInt(4) == 0) {
+        acl = TestAcls.makeAcl(rand);
+      }
+
+      acls.add(acl);
+    }
+
+    AceDictionary dict = AceDictionary.build(7, acls.iterator(), 50);
+    assertTrue(dict.size() > 0);
+
+    File f = File.createTempFile("acedict", ".dat");
+
+    try {
+      dict.write(f);
+      assertFalse(new File(f.getPath() + ".tmp").exists());
+      dict = AceDictionary.read(f);
+    } finally {
+      f.delete();
+    }
+
+    assertEquals(7, dict.getVersion());
+    AceDictionary.register(dict);
+
+    int plainLen = 0;
+    int compressedLen = 0;
+
+    for (char[] acl: acls) {
+      char[] compressed = dict.compress(acl);
+      String title = new String(acl);
+
+      plainLen += acl.length;
+      compressedLen += compressed.length;
+
+      assertTrue(title, Arrays.equals(acl, AceDictionary.expand(compressed)));
+      checkSame(title, Acl.decode(acl), Acl.decode(compressed));
+      checkSame(title, Acl.decode(acl, "/a/path"),
+                Acl.decode(compressed, "/a/path"));
+
+      assertEquals(title,
+                   Acl.evaluateAccess(cb, auser, owner, read, acl,
+                                      null).getAccessAllowed(),
+                   Acl.evaluateAccess(cb, auser, owner, read, compressed,
+                                      null).getAccessAllowed());
+
+      /* A summary stays in front */
+      char[] summarised = AclSummary.addSummary(acl, cb);
+      compressed = dict.compress(summarised);
+
+      assertTrue(title, Arrays.equals(summarised,
+                                      AceDictionary.expand(compressed)));
+      assertTrue(title, Arrays.equals(compressed,
+                                      AclSummary.addSummary(compressed, cb)));
+      checkSame(title, Acl.decode(acl), Acl.decode(compressed));
+    }
+
+    assertTrue("Compressed " + compressedLen + " plain " + plainLen,
+               compressedLen < plainLen * 3 / 4);
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testValidator() throws Throwable {
+    Random rand = new Random(46);
+    AclValidator validator = new AclValidator();
+
+    assertEquals(AclValidator.valid, validator.validate(null));
+    assertEquals(0, validator.getAceCount());
+
+    for (int i = 0; i < 2000; i++) {
+      char[] text = TestAcls.makeAcl(rand);
+      Acl acl = Acl.decode(text);
+      String title = new String(text);
+
+      assertEquals(title, AclValidator.valid, validator.validate(text));
+      assertEquals(title, acl.getAces().size(), validator.getAceCount());
+      assertTrue(title, validator.isSorted());
+
+      int whoTypes = 0;
+      int named = 0;
+      int inherited = 0;
+
+      for (Ace ace: acl.getAces()) {
+        whoTypes |= 1 << ace.getWho().getWhoType();
+
+        if (ace.getWho().getWho() != null) {
+          named++;
+        }
+
+        if (ace.getInheritedFrom() != null) {
+          inherited++;
+        }
+      }
+
+      assertEquals(title, whoTypes, validator.getWhoTypes());
+      assertEquals(title, named, validator.getNamedCount());
+      assertEquals(title, inherited, validator.getInheritedCount());
+
+      /* Cut it short - only valid at the end of an ace */
+      Set<Integer> ends = new HashSet<Integer>();
+      AclView view = new AclView(title);
+
+      while (view.hasMore()) {
+        ends.add(view.next().getEnd());
+      }
+
+      int cut = rand.nextInt(text.length);
+      int res = validator.validate(Arrays.copyOf(text, cut));
+
+      if (ends.contains(cut) || (cut == 0)) {
+        assertEquals(title + " cut at " + cut, AclValidator.valid, res);
+      } else {
+        assertTrue(title + " cut at " + cut, res != AclValidator.valid);
+        assertTrue(title + " cut at " + cut,
+                   validator.getErrorOffset() <= cut);
+      }
+    }
+
+    assertEquals(AclValidator.errWhoFlag,
+                 validator.validate("XA0 y  ".toCharArray()));
+    assertEquals(0, validator.getErrorOffset());
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testEvaluateLimits() throws Throwable {
+    AccessTest.TestAccessCb cb = new AccessTest.TestAccessCb();
+    User owner = new User("anowner");
+    User auser = new User("abcdefghij");
+
+    char[] ok = makeAcl(3, "abcdefghij", "/abcdefghi");
+    char[][] bad = {
+      makeAcl(1, "abcdefghijk", null),
+      makeAcl(1, "a", "/abcdefghij"),
+      makeAcl(4, "a", null),
+    };
+
+    AclLimits limits = AclLimits.getDefault();
+
+    try {
+      AclLimits.setDefault(new AclLimits(200, 3, 10));
+
+      assertTrue(EncodedAclEvaluator.evaluate(cb, auser, owner,
+                                              TestAcls.read, ok,
+                                              null).getAccessAllowed());
+
+      AclView view = new AclView(new String(ok));
+      while (view.hasMore()) {
+        view.next();
+      }
+
+      for (char[] acl: bad) {
+        String title = new String(acl);
+
+        try {
+          EncodedAclEvaluator.evaluate(cb, auser, owner, TestAcls.read, acl,
+                                       null);
+          fail(title + ": expected an exception from the evaluator");
+        } catch (AccessException ae) {
+        }
+
+        try {
+          Acl.evaluateAccess(cb, auser, owner, TestAcls.read, acl, null);
+          fail(title + ": expected an exception from evaluateAccess");
+        } catch (AccessException ae) {
+        }
+
+        try {
+          view.reset(title);
+          while (view.hasMore()) {
+            view.next();
+          }
+
+          fail(title + ": expected an exception from the view");
+        } catch (AccessException ae) {
+        }
+      }
+
+      // Too long
+      AclLimits.setDefault(new AclLimits(ok.length - 1, 3, 10));
+
+      try {
+        EncodedAclEvaluator.evaluate(cb, auser, owner, TestAcls.read, ok,
+                                     null);
+        fail("Expected an exception for the acl length");
+      } catch (AccessException ae) {
+      }
+
+      try {
+        view.reset(new String(ok)).next();
+        fail("Expected an exception from the view for the acl length");
+      } catch (AccessException ae) {
+      }
+    } finally {
+      AclLimits.setDefault(limits);
+    }
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testValidateSummary() throws Throwable {
+    AccessTest.TestAccessCb cb = new AccessTest.TestAccessCb();
+    AclValidator validator = new AclValidator();
+
+    char[] acl = "WU05 busernR WLNyR ".toCharArray();
+
+    assertEquals(AclValidator.valid,
+                 validator.validate(AclSummary.addSummary(acl, cb)));
+    assertEquals(AclValidator.valid,
+                 validator.validate(AclSummary.addSummary(new char[0], cb)));
+
+    // Says there are only all aces
+    StringBuilder forged = new StringBuilder("H400");
+    for (int i = 0; i < 16 + 1 + 8; i++) {
+      forged.append('0');
+    }
+    forged.append(' ');
+    forged.append(acl);
+
+    assertEquals(AclValidator.errSummary,
+                 validator.validate(forged.toString().toCharArray()));
+    assertEquals(0, validator.getErrorOffset());
+
+    // The summary of other aces
+    char[] other = AclSummary.addSummary("WONyR ".toCharArray(), cb);
+    String stale = new String(other, 0, AclSummary.summaryLength) +
+                   new String(acl);
+
+    assertEquals(AclValidator.errSummary,
+                 validator.validate(stale.toCharArray()));
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testValidateCompressed() throws Throwable {
+    Random rand = new Random(46);
+    AclValidator validator = new AclValidator();
+
+    List<char[]> acls = new ArrayList<char[]>();
+    for (int i = 0; i < 200; i++) {
+      acls.add(TestAcls.makeStoredAcl(rand));
+    }
+
+    AceDictionary dict = TestAcls.registerDictionary(46, acls);
+    assertTrue(dict.size() > 2);
+
+    for (char[] acl: acls) {
+      char[] compressed = dict.compress(acl);
+      String title = new String(compressed);
+
+      assertEquals(title, AclValidator.valid, validator.validate(compressed));
+      assertEquals(title, Acl.decode(acl).getAces().size(),
+                   validator.getAceCount());
+      assertFalse(title, validator.isSorted());
+
+      char[] summarised = AclSummary.addSummary(compressed,
+                                                new AccessTest.TestAccessCb());
+      assertEquals(title, AclValidator.valid, validator.validate(summarised));
+    }
+
+    String version = "D" + EncodedAcl.encodedLength(46);
+
+    // All references, including multi digit indexes
+    StringBuilder sb = new StringBuilder(version);
+    for (int i = 0; i < dict.size(); i++) {
+      sb.append(AceDictionary.referenceFlag);
+      sb.append(EncodedAcl.encodedLength(i));
+    }
+
+    checkValidate(validator, AclValidator.valid, version + "R00 R01 ");
+    checkValidate(validator, AclValidator.valid, sb.toString());
+    checkValidate(validator, AclValidator.valid, version);
+    checkValidate(validator, AclValidator.valid,
+                  version + "WONyR R00 WAN3R ");
+
+    checkValidate(validator, AclValidator.errDictionary, "D9999 R00 ");
+    checkValidate(validator, AclValidator.errDictionary,
+                  version + "R0" + dict.size() + " ");
+    checkValidate(validator, AclValidator.errLength, version + "R0x ");
+    checkValidate(validator, AclValidator.errLength, "D4x6 R00 ");
+    checkValidate(validator, AclValidator.errLength,
+                  version + "R099999999999 ");
+    checkValidate(validator, AclValidator.errTruncated, "D046");
+    checkValidate(validator, AclValidator.errTruncated, version + "R01");
+    checkValidate(validator, AclValidator.errWhoFlag, version + "R00 XAN ");
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testEncoderBuffer() throws Throwable {
+    Acl small = Acl.decode("WONyA WU05 auseryR ".toCharArray());
+    small.encodeAll();
+
+    // The per thread buffer is reused
+    long allocated = statCount("Acl encoder buffers allocated");
+
+    for (int i = 0; i < 100; i++) {
+      small.encodeAll();
+    }
+
+    assertEquals(allocated, statCount("Acl encoder buffers allocated"));
+
+    // A buffer grown past the limit is dropped after use
+    StringBuilder sb = new StringBuilder();
+
+    for (int i = 0; i < 500; i++) {
+      sb.append("WU08 user");
+      sb.append(String.format("%04d", i));
+      sb.append("yR ");
+    }
+
+    char[] big = sb.toString().toCharArray();
+    Acl bigAcl = Acl.decode(big);
+    check("big", big, bigAcl.encodeAll());
+
+    allocated = statCount("Acl encoder buffers allocated");
+    check("after big", "WONyA WU05 auseryR ".toCharArray(),
+          small.encodeAll());
+    assertEquals(allocated + 1, statCount("Acl encoder buffers allocated"));
+
+    small.encodeAll();
+    assertEquals(allocated + 1, statCount("Acl encoder buffers allocated"));
+
+    // Encoding while encoding gets its own encoder
+    long nested = statCount("Acl encoders made for nested encoding");
+    NestingPrivilege np = new NestingPrivilege();
+
+    Collection<Privilege> privs = new ArrayList<Privilege>();
+    privs.add(np);
+
+    Ace ace = Ace.makeAce(AceWho.getAceWho("nester", Ace.whoTypeUser,
+                                           false),
+                          privs, null);
+    List<Ace> aces = new ArrayList<Ace>();
+    aces.add(ace);
+
+    check("outer", "WU06 nesteryR ".toCharArray(),
+          new Acl(aces).encodeAll());
+    check("inner", np.inner, np.innerResult);
+    assertTrue(statCount("Acl encoders made for nested encoding") > nested);
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testLimits() throws Throwable {
+    AclLimits limits = new AclLimits(200, 3, 10);
+    AclValidator validator = new AclValidator();
+    validator.setLimits(limits);
+
+    /* Lengths longer than the acl fail before anything is allocated */
+    String[] bad = {
+      "WU9999999999 a yA ",
+      "WU2147483648 a yA ",
+      "WA0 yAI99999999999999999 ",
+      "WU5 ab",
+      "WU",
+      "WU123",
+      "WU0",
+    };
+
+    for (String s: bad) {
+      checkFails(s, s.toCharArray(), null);
+      assertTrue(s, validator.validate(s.toCharArray()) != AclValidator.valid);
+    }
+
+    /* Huge digit run */
+    char[] digits = new char[100000];
+    Arrays.fill(digits, '9');
+    digits[0] = 'W';
+    digits[1] = 'U';
+    checkFails("digits", digits, null);
+
+    char[] longName = makeAcl(1, "abcdefghijk", null);
+    checkFails("name", longName, limits);
+    assertEquals(AclValidator.errLimit, validator.validate(longName));
+
+    char[] longPath = makeAcl(1, "a", "/abcdefghij");
+    checkFails("path", longPath, limits);
+    assertEquals(AclValidator.errLimit, validator.validate(longPath));
+
+    char[] four = makeAcl(4, "a", null);
+    checkFails("aces", four, limits);
+    assertEquals(AclValidator.errLimit, validator.validate(four));
+
+    char[] tooLong = new char[201];
+    checkFails("length", tooLong, limits);
+    assertEquals(AclValidator.errLimit, validator.validate(tooLong));
+
+    /* Within the limits */
+    assertEquals(3, Acl.decode(makeAcl(3, "abcdefghij", "/abcdefghi"), null,
+                               limits).getAces().size());
+    assertEquals(AclValidator.valid,
+                 validator.validate(makeAcl(3, "abcdefghij", "/abcdefghi")));
+
+    /* Fuzz - random damage must give an AccessException or an acl, and any
+       acl the validator passes must decode */
+    Random rand = new Random(48);
+    validator = new AclValidator();
+    AclView view = new AclView();
+    char[] damage = {'0', '9', ' ', 'N', 'W', 'y', 'n', 'I', 'U', 'D', 'R'};
+
+    for (int i = 0; i < 20000; i++) {
+      char[] text = TestAcls.makeAcl(rand);
+      int n = 1 + rand.nextInt(3);
+
+      for (int j = 0; j < n; j++) {
+        int pos = rand.nextInt(text.length);
+
+        switch (rand.nextInt(3)) {
+          case 0:
+            text[pos] = damage[rand.nextInt(damage.length)];
+            break;
+          case 1:
+            text = Arrays.copyOf(text, pos);
+            break;
+          default:
+            /* Insert a run of digits */
+            char[] t = new char[text.length + 12];
+            System.arraycopy(text, 0, t, 0, pos);
+            Arrays.fill(t, pos, pos + 12, '9');
+            System.arraycopy(text, pos, t, pos + 12, text.length - pos);
+            text = t;
+        }
+
+        if (text.length == 0) {
+          break;
+        }
+      }
+
+      String title = new String(text);
+      boolean valid = validator.validate(text) == AclValidator.valid;
+
+      try {
+        Acl.decode(text);
+      } catch (AccessException ae) {
+        assertFalse(title, valid);
+      }
+
+      try {
+        view.reset(title);
+        while (view.hasMore()) {
+          view.next();
+        }
+      } catch (AccessException ae) {
+        assertFalse(title, valid);
+      }
+
+      try {
+        BinaryAclCodec.decode(ByteBuffer.wrap(
+                mangle(rand, Acl.decode(TestAcls.makeAcl(rand)).
+                        encodeBinaryAll())));
+      } catch (AccessException ae) {
+      }
+    }
+
+    /* Decoding work grows linearly with the size of the acl - count the
+       characters visited rather than timing it */
+    double small = decodeWork(100);
+    double large = decodeWork(1600);
+
+    assertTrue("small=" + small + " large=" + large, large < small * 2);
+  }
+
+  /* Damage a binary acl after the header */
+  private byte[] mangle(final Random rand,
+                        final byte[] bin) {
+    int n = 1 + rand.nextInt(3);
+
+    for (int i = 0; i < n; i++) {
+      int pos = 2 + rand.nextInt(bin.length - 2);
+
+      bin[pos] = (byte)rand.nextInt(256);
+    }
+
+    return bin;
+  }
+
+  private void checkFails(final String title,
+                          final char[] text,
+                          final AclLimits limits) throws Throwable {
+    try {
+      if (limits == null) {
+        Acl.decode(text);
+      } else {
+        Acl.decode(text, null, limits);
+      }
+
+      fail(title + ": expected an exception");
+    } catch (AccessException ae) {
+    }
+
+    if (limits != null) {
+      return;
+    }
+
+    try {
+      AclView view = new AclView(new String(text));
+
+      while (view.hasMore()) {
+        view.next();
+      }
+
+      fail(title + ": expected an exception from view");
+    } catch (AccessException ae) {
+    }
+  }
+
+  /* An acl of num user aces with names starting with name */
+  private char[] makeAcl(final int num,
+                         final String name,
+                         final String inheritedFrom) throws Throwable {
+    List<Ace> aces = new ArrayList<Ace>();
+
+    for (int i = 0; i < num; i++) {
+      String who = name;
+
+      if (i > 0) {
+        who = name.substring(0, name.length() - 1) + i;
+      }
+
+      aces.add(Ace.makeAce(AceWho.getAceWho(who, Ace.whoTypeUser, false),
+                           Arrays.asList(Privileges.makePriv(Privileges.privRead)),
+                           inheritedFrom));
+    }
+
+    return new Acl(aces).encodeAll();
+  }
+
+  /* Characters visited per character of an acl of num aces when
+   * decoding it */
+  private double decodeWork(final int num) throws Throwable {
+    char[] text = makeAcl(num, "user00000", null);
+    CountingAcl eacl = new CountingAcl();
+    eacl.setEncoded(text);
+
+    int aces = 0;
+
+    while (eacl.hasMore()) {
+      Ace.decode(eacl, null);
+      aces++;
+    }
+
+    assertEquals(num, aces);
+
+    return (double)eacl.visited / text.length;
+  }
+
+  /* Counts the characters read, including those read again after backing
+   * off, and those skipped over */
+  private static class CountingAcl extends EncodedAcl {
+    long visited;
+
+    @Override
+    public char getChar() {
+      visited++;
+      return super.getChar();
+    }
+
+    @Override
+    public void back(final int n) throws AccessException {
+      visited += n;
+      super.back(n);
+    }
+
+    @Override
+    public void setPos(final int val) {
+      visited += Math.abs(val - getPos());
+      super.setPos(val);
+    }
+
+    @Override
+    public String getString() throws AccessException {
+      int start = getPos();
+      String res = super.getString();
+
+      visited += getPos() - start;
+      return res;
+    }
+
+    @Override
+    public void skipString() throws AccessException {
+      int start = getPos();
+      super.skipString();
+
+      visited += getPos() - start;
+    }
+  }
+
+  /* Encodes another acl whenever it is encoded */
+  private static class NestingPrivilege extends Privilege {
+    char[] inner = "WONyA WU05 buseryR ".toCharArray();
+    char[] innerResult;
+
+    NestingPrivilege() {
+      super("read", "Read which encodes an acl", Privileges.privRead);
+    }
+
+    @Override
+    public void encode(final EncodedAcl acl) throws AccessException {
+      innerResult = Acl.decode(inner).encodeAll();
+      super.encode(acl);
+    }
+  }
+
+  private long statCount(final String name) {
+    for (Access.AccessStatsEntry st: Access.getStatistics()) {
+      if (st.name.equals(name)) {
+        return st.count;
+      }
+    }
+
+    fail("No statistic " + name);
+    return 0;
+  }
+
+  private void check(final String title,
+                     final char[] expected,
+                     final char[] res) {
+    assertTrue(title + ": expected " + new String(expected) +
+                       " got " + (res == null ? null : new String(res)),
+               Arrays.equals(expected, res));
+  }
+
+  /* Check the validator and decoding agree */
+  private void checkValidate(final AclValidator validator,
+                             final int expected,
+                             final String acl) {
+    assertEquals(acl, expected, validator.validate(acl.toCharArray()));
+
+    try {
+      Acl.decode(acl.toCharArray());
+      assertEquals(acl, AclValidator.valid, expected);
+    } catch (AccessException ae) {
+      assertTrue(acl, expected != AclValidator.valid);
+    }
+  }
+
+  private void checkSame(final String title,
+                         final Acl expected,
+                         final Acl res) throws Throwable {
+    assertEquals(title, expected.getAces().size(), res.getAces().size());
+
+    Iterator<Ace> it = res.getAces().iterator();
+
+    for (Ace ace: expected.getAces()) {
+      Ace resAce = it.next();
+
+      assertEquals(title, ace.getWho(), resAce.getWho());
+      assertEquals(title, ace.getHow(), resAce.getHow());
+      assertEquals(title, ace.getInheritedFrom(), resAce.getInheritedFrom());
+    }
+  }
+}
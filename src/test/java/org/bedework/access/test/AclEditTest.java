@@ -0,0 +1,741 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access.test;
+
+import org.bedework.access.AccessException;
+import org.bedework.access.Ace;
+import org.bedework.access.AceDictionary;
+import org.bedework.access.AceWho;
+import org.bedework.access.AceView;
+import org.bedework.access.Acl;
+import org.bedework.access.AclLimits;
+import org.bedework.access.AclMigrator;
+import org.bedework.access.AclRewriter;
+import org.bedework.access.AclStore;
+import org.bedework.access.AclSummary;
+import org.bedework.access.AclView;
+import org.bedework.access.EncodedAcl;
+import org.bedework.access.Privilege;
+import org.bedework.access.Privileges;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/** Check edits to encoded acls against decoding, editing and encoding.
+ *
+ * @author douglm
+ */
+public class AclEditTest extends TestCase {
+  private static final String[] names = {
+    "auser",
+    "buser",
+    "zuser",
+    "agroup",
+  };
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testSplice() throws Throwable {
+    Random rand = new Random(38);
+
+    for (int i = 0; i < 2000; i++) {
+      char[] acl = TestAcls.makeAcl(rand);
+
+      if (rand.nextBoolean()) {
+        // As stored - no inherited aces
+        acl = Acl.decode(acl).encode();
+      }
+
+      Ace ace = makeAce(rand);
+
+      check("add " + ace, slowAdd(acl, ace), Acl.addAce(acl, ace));
+      check("remove " + ace.getWho(), slowRemove(acl, ace.getWho()),
+            Acl.removeWho(acl, ace.getWho()));
+    }
+
+    Ace ace = makeAce(rand);
+    check("add to null", slowAdd(null, ace), Acl.addAce(null, ace));
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testSpliceBad() throws Throwable {
+    Ace ace = Ace.makeAce(AceWho.getAceWho("buser", Ace.whoTypeUser, false),
+                          Arrays.asList(Privileges.makePriv(
+                                  Privileges.privRead)),
+                          null);
+
+    String[] bad = {
+      "WONyZ WU05 auseryR ",   // Unknown privilege
+      "WONy WU05 auseryR ",    // Missing privilege
+      "WONyA WU05 auseryR\u0000 ",
+    };
+
+    for (String acl: bad) {
+      try {
+        Acl.decode(acl.toCharArray());
+        fail("Decoded " + acl);
+      } catch (AccessException ae) {
+      }
+
+      try {
+        Acl.addAce(acl.toCharArray(), ace);
+        fail("Added to " + acl);
+      } catch (AccessException ae) {
+      }
+
+      try {
+        Acl.removeWho(acl.toCharArray(), ace.getWho());
+        fail("Removed from " + acl);
+      } catch (AccessException ae) {
+      }
+    }
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testSpliceCompressed() throws Throwable {
+    Random rand = new Random(45);
+
+    List<char[]> acls = new ArrayList<char[]>();
+    for (int i = 0; i < 100; i++) {
+      acls.add(TestAcls.makeStoredAcl(rand));
+    }
+
+    AceDictionary dict = TestAcls.registerDictionary(38, acls);
+
+    for (char[] acl: acls) {
+      char[] compressed = dict.compress(acl);
+      Ace ace = makeAce(rand);
+
+      check("add " + ace, slowAdd(acl, ace), Acl.addAce(compressed, ace));
+      check("remove " + ace.getWho(), slowRemove(acl, ace.getWho()),
+            Acl.removeWho(compressed, ace.getWho()));
+
+      // Remove an ace which is there
+      AceWho who = Acl.decode(acl).getAces().iterator().next().getWho();
+      check("remove " + who, slowRemove(acl, who),
+            Acl.removeWho(compressed, who));
+    }
+
+    // Every ace a reference
+    char[] acl = acls.get(0);
+    char[] compressed = dict.compress(acl);
+    assertEquals(-1, new String(compressed).indexOf(Ace.whoFlag));
+
+    AceWho who = Acl.decode(acl).getAces().iterator().next().getWho();
+    check("remove " + who, slowRemove(acl, who),
+          Acl.removeWho(compressed, who));
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testRewrite() throws Throwable {
+    Random rand = new Random(39);
+
+    char[][] acls = new char[20][];
+    for (int i = 0; i < acls.length; i++) {
+      acls[i] = Acl.decode(TestAcls.makeAcl(rand)).encode();
+    }
+
+    List<AclRewriter.Entry<Integer>> in =
+            new ArrayList<AclRewriter.Entry<Integer>>();
+    for (int i = 0; i < 3000; i++) {
+      in.add(new AclRewriter.Entry<Integer>(i,
+                                            acls[rand.nextInt(acls.length)]));
+    }
+
+    Ace ace = makeAce(rand);
+
+    AclRewriter rewriter = new AclRewriter(AclRewriter.addAce(ace));
+    rewriter.setParallelism(4);
+    rewriter.setChunkSize(500);
+
+    Iterator<AclRewriter.Entry<Integer>> out =
+            rewriter.rewrite(in.iterator());
+
+    Set<char[]> results = Collections.newSetFromMap(
+            new IdentityHashMap<char[], Boolean>());
+
+    for (AclRewriter.Entry<Integer> ent: in) {
+      assertTrue(out.hasNext());
+
+      AclRewriter.Entry<Integer> rent = out.next();
+
+      assertEquals(ent.getId(), rent.getId());
+      check("rewrite " + ent.getId(),
+            Acl.addAce(ent.getAclChars(), ace), rent.getAclChars());
+
+      // Entries with the same acl don't share the array
+      assertTrue(results.add(rent.getAclChars()));
+    }
+
+    assertFalse(out.hasNext());
+
+    try {
+      rewriter.setMaxDistinct(0);
+      fail("Accepted max distinct of 0");
+    } catch (IllegalArgumentException iae) {
+    }
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testRewriteClose() throws Throwable {
+    final char[] bad = "WU05 buseryR ".toCharArray();
+
+    AclRewriter rewriter = new AclRewriter(new AclRewriter.AclEdit() {
+      @Override
+      public char[] apply(final char[] aclChars) throws AccessException {
+        if (Arrays.equals(bad, aclChars)) {
+          throw AccessException.badACL("test");
+        }
+
+        return aclChars;
+      }
+    });
+    rewriter.setParallelism(2);
+    rewriter.setChunkSize(10);
+
+    final List<AclRewriter.Entry<Integer>> in =
+            new ArrayList<AclRewriter.Entry<Integer>>();
+    for (int i = 0; i < 100; i++) {
+      in.add(new AclRewriter.Entry<Integer>(i, ("WU05 auseryR WO0" + i +
+                                                " ").toCharArray()));
+    }
+
+    // Closed early - the rest of the input is not read
+    Iterator<AclRewriter.Entry<Integer>> src = in.iterator();
+    AclRewriter.EntryIterator<Integer> out = rewriter.rewrite(src);
+
+    assertTrue(out.hasNext());
+    assertEquals(Integer.valueOf(0), out.next().getId());
+
+    out.close();
+
+    assertFalse(out.hasNext());
+    assertEquals(Integer.valueOf(10), src.next().getId());
+
+    // A failed edit closes it
+    in.set(15, new AclRewriter.Entry<Integer>(15, bad));
+    out = rewriter.rewrite(in.iterator());
+
+    for (int i = 0; i < 10; i++) {
+      out.next();
+    }
+
+    try {
+      out.hasNext();
+      fail("Expected a failure");
+    } catch (RuntimeException re) {
+      assertTrue(re.getCause() instanceof AccessException);
+    }
+
+    assertFalse(out.hasNext());
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testRename() throws Throwable {
+    AceWho from = AceWho.getAceWho("agroup", Ace.whoTypeGroup, false);
+    AceWho to = AceWho.getAceWho("bgroup", Ace.whoTypeGroup, false);
+
+    Collection<Privilege> privs = new ArrayList<Privilege>();
+    privs.add(Privileges.makePriv(Privileges.privRead));
+
+    Collection<Ace> aces = new ArrayList<Ace>();
+    aces.add(Ace.makeAce(from, privs, null));
+    aces.add(Ace.makeAce(AceWho.owner, privs, null));
+
+    char[] acl = new Acl(aces).encode();
+
+    aces.clear();
+    aces.add(Ace.makeAce(to, privs, null));
+    aces.add(Ace.makeAce(AceWho.owner, privs, null));
+
+    char[] expected = new Acl(aces).encode();
+
+    check("rename", expected,
+          AclRewriter.renameWho(from, to).apply(acl));
+    check("rename again", expected,
+          AclRewriter.renameWho(from, to).apply(expected));
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testStore() throws Throwable {
+    Random rand = new Random(40);
+    AclStore store = new AclStore();
+
+    char[][] acls = new char[200][];
+    int[] ids = new int[acls.length];
+
+    for (int i = 0; i < acls.length; i++) {
+      acls[i] = TestAcls.makeAcl(rand);
+      ids[i] = store.intern(acls[i]);
+
+      // Same aces in a new array get the same id
+      assertEquals(ids[i], store.intern(acls[i].clone()));
+      assertEquals(ids[i], store.find(acls[i]));
+      check("store " + i, Acl.decode(acls[i]).encodeAll(),
+            store.get(ids[i]));
+    }
+
+    assertEquals(ids[0], store.intern(acls[0]));
+
+    File f = File.createTempFile("aclstore", ".dat");
+
+    try {
+      store.write(f);
+
+      AclStore reread = AclStore.read(f);
+
+      assertEquals(store.size(), reread.size());
+
+      for (int i = 0; i < acls.length; i++) {
+        assertEquals(ids[i], reread.find(acls[i]));
+      }
+    } finally {
+      f.delete();
+    }
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testStoreShared() throws Throwable {
+    final AclStore store = new AclStore();
+    final char[][] acls = new char[2000][];
+    Random rand = new Random(41);
+
+    for (int i = 0; i < acls.length; i++) {
+      acls[i] = Acl.decode(TestAcls.makeAcl(rand)).encodeAll();
+    }
+
+    // Changing the result doesn't change the store
+    int id = store.intern(acls[1]);
+    char[] got = store.get(id);
+
+    if (got != null) {
+      Arrays.fill(got, 'x');
+      check("copy", acls[1], store.get(id));
+    }
+
+    // Acls found by one thread while another adds them are complete
+    final Throwable[] failed = new Throwable[1];
+
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < acls.length; i++) {
+            int foundId;
+
+            do {
+              foundId = store.find(acls[i]);
+            } while (foundId < 0);
+
+            check("reader " + i, acls[i], store.get(foundId));
+          }
+        } catch (Throwable t) {
+          failed[0] = t;
+        }
+      }
+    };
+
+    reader.start();
+
+    for (char[] acl: acls) {
+      store.intern(acl);
+    }
+
+    reader.join();
+
+    if (failed[0] != null) {
+      throw failed[0];
+    }
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testMigrate() throws Throwable {
+    Random rand = new Random(47);
+
+    List<char[]> in = new ArrayList<char[]>();
+    List<char[]> expected = new ArrayList<char[]>();
+    int changed = 0;
+    int errors = 0;
+
+    for (int i = 0; i < 1000; i++) {
+      char[] acl = Acl.decode(TestAcls.makeAcl(rand))
+              .encodeAll();
+
+      switch (rand.nextInt(5)) {
+        case 0:
+          in.add(acl);
+          break;
+        case 1:
+          in.add(oldFlags(acl));
+          changed++;
+          break;
+        case 2:
+          char[] unsorted = reversed(acl);
+          in.add(unsorted);
+          if (!Arrays.equals(acl, unsorted)) {
+            changed++;
+          }
+          break;
+        case 3:
+          acl = "WX0 y ".toCharArray();
+          in.add(acl);
+          errors++;
+          break;
+        default:
+          acl = new char[0];
+          in.add(acl);
+      }
+
+      expected.add(acl);
+    }
+
+    for (boolean lengthPrefixed: new boolean[]{false, true}) {
+      StringBuilder sb = new StringBuilder();
+
+      for (char[] acl: in) {
+        if (lengthPrefixed) {
+          sb.append(acl.length);
+          sb.append(':');
+        }
+
+        sb.append(acl);
+        sb.append('\n');
+      }
+
+      AclMigrator migrator = new AclMigrator();
+      migrator.setParallelism(3);
+      migrator.setChunkSize(100);
+      migrator.setLengthPrefixed(lengthPrefixed);
+
+      StringWriter out = new StringWriter();
+      AclMigrator.Counts counts =
+              migrator.migrate(new StringReader(sb.toString()), out);
+
+      assertEquals(in.size(), counts.getRows());
+      assertEquals(changed, counts.getChanged());
+      assertEquals(errors, counts.getErrors());
+
+      String[] lines = out.toString().split("\n", -1);
+
+      assertEquals(in.size() + 1, lines.length);
+
+      for (int i = 0; i < in.size(); i++) {
+        String line = lines[i];
+
+        if (lengthPrefixed) {
+          line = line.substring(line.indexOf(':') + 1);
+        }
+
+        check("migrate " + i, expected.get(i), line.toCharArray());
+      }
+    }
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testMigrateCompressed() throws Throwable {
+    Random rand = new Random(47);
+
+    List<char[]> acls = new ArrayList<char[]>();
+    for (int i = 0; i < 50; i++) {
+      acls.add(TestAcls.makeStoredAcl(rand));
+    }
+
+    AceDictionary dict = TestAcls.registerDictionary(47, acls);
+
+    StringBuilder sb = new StringBuilder();
+    List<char[]> in = new ArrayList<char[]>();
+
+    for (char[] acl: acls) {
+      char[] compressed = dict.compress(acl);
+      assertTrue(AceDictionary.isCompressed(compressed));
+
+      in.add(compressed);
+      sb.append(compressed);
+      sb.append('\n');
+    }
+
+    AclMigrator migrator = new AclMigrator();
+    migrator.setListener(new AclMigrator.Listener() {
+      @Override
+      public void progress(final long rows, final long changed,
+                           final long errors) {
+      }
+
+      @Override
+      public void error(final long row, final char[] aclChars,
+                        final int code, final int offset) {
+        fail("Row " + row + " reported as malformed: " +
+             new String(aclChars));
+      }
+    });
+
+    StringWriter out = new StringWriter();
+    AclMigrator.Counts counts =
+            migrator.migrate(new StringReader(sb.toString()), out);
+
+    assertEquals(in.size(), counts.getRows());
+    assertEquals(0, counts.getChanged());
+    assertEquals(0, counts.getErrors());
+    assertEquals(sb.toString(), out.toString());
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testMigrateLongRows() throws Throwable {
+    AclMigrator migrator = new AclMigrator();
+    migrator.setLengthPrefixed(true);
+
+    for (String in: new String[]{"2147483649:x\n", "1500000000:x\n",
+                                 "99999999999999999999:x\n"}) {
+      try {
+        migrator.migrate(new StringReader(in), new StringWriter());
+        fail("Expected an IOException for " + in);
+      } catch (IOException ioe) {
+      }
+    }
+
+    AclLimits limits = AclLimits.getDefault();
+
+    try {
+      AclLimits.setDefault(new AclLimits(20, 10, 10));
+
+      migrator = new AclMigrator();
+
+      StringWriter out = new StringWriter();
+      migrator.migrate(new StringReader("WONyR\r\nWLNyR \r\n"), out);
+      assertEquals("WONyR\nWLNyR \n", out.toString());
+
+      try {
+        String in = "WONyR \nWU015 abcdefghijklmnoyR \n";
+        migrator.migrate(new StringReader(in), new StringWriter());
+        fail("Expected an IOException for a long line");
+      } catch (IOException ioe) {
+      }
+    } finally {
+      AclLimits.setDefault(limits);
+    }
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testMigrateSummary() throws Throwable {
+    AccessTest.TestAccessCb cb = new AccessTest.TestAccessCb();
+    Random rand = new Random(48);
+
+    StringBuilder sb = new StringBuilder();
+    List<char[]> expected = new ArrayList<char[]>();
+
+    for (int i = 0; i < 200; i++) {
+      char[] acl = TestAcls.makeAcl(rand);
+      char[] row;
+
+      if (rand.nextBoolean()) {
+        row = reversed(acl);
+      } else {
+        row = oldFlags(acl);
+      }
+
+      sb.append(AclSummary.addSummary(row, cb));
+      sb.append('\n');
+
+      // The summary is kept in front of the canonical acl
+      expected.add(AclSummary.addSummary(acl, cb));
+    }
+
+    // A repeated who is dropped by decoding so the summary goes too
+    char[] dup = "WU05 auseryW WU05 auseryR ".toCharArray();
+    sb.append(AclSummary.addSummary(dup, cb));
+    sb.append('\n');
+    expected.add(Acl.decode(dup).encodeAll());
+
+    // As is one whose check doesn't match
+    char[] other = AclSummary.addSummary("WONyR WU05 buseryR ".toCharArray(),
+                                         cb);
+    char[] unchecked = "WU05 auseryR WONyR ".toCharArray();
+    sb.append(other, 0, AclSummary.summaryLength);
+    sb.append(unchecked);
+    sb.append('\n');
+    expected.add(Acl.decode(unchecked).encodeAll());
+
+    AclMigrator migrator = new AclMigrator();
+    migrator.setParallelism(2);
+    migrator.setChunkSize(50);
+
+    StringWriter out = new StringWriter();
+    AclMigrator.Counts counts =
+            migrator.migrate(new StringReader(sb.toString()), out);
+
+    assertEquals(expected.size(), counts.getRows());
+    assertEquals(0, counts.getErrors());
+    assertEquals(2, counts.getSummariesDropped());
+
+    String[] lines = out.toString().split("\n", -1);
+
+    assertEquals(expected.size() + 1, lines.length);
+
+    for (int i = 0; i < expected.size(); i++) {
+      check("migrate " + i, expected.get(i), lines[i].toCharArray());
+    }
+  }
+
+  /* Change the privilege flags to the old flags */
+  private char[] oldFlags(final char[] acl) throws Throwable {
+    char[] res = acl.clone();
+    AclView view = new AclView(new String(acl));
+
+    while (view.hasMore()) {
+      AceView av = view.next();
+      int pos = av.getStart() + 2;
+
+      if (av.getName() == null) {
+        pos++;
+      } else {
+        pos += EncodedAcl.encodedLength(av.getName().length()).length() +
+               av.getName().length();
+      }
+
+      while ((res[pos] != ' ') && (res[pos] != 'I')) {
+        if (res[pos] == 'y') {
+          res[pos] = '3';
+        } else {
+          res[pos] = '2';
+        }
+
+        pos += 2;
+      }
+    }
+
+    return res;
+  }
+
+  /* The aces in reverse order */
+  private char[] reversed(final char[] acl) throws Throwable {
+    List<String> aces = new ArrayList<String>();
+    AclView view = new AclView(new String(acl));
+
+    while (view.hasMore()) {
+      AceView av = view.next();
+
+      aces.add(new String(acl, av.getStart(), av.getEnd() - av.getStart()));
+    }
+
+    StringBuilder sb = new StringBuilder();
+
+    for (int i = aces.size() - 1; i >= 0; i--) {
+      sb.append(aces.get(i));
+    }
+
+    return sb.toString().toCharArray();
+  }
+
+  private void check(final String title,
+                     final char[] expected,
+                     final char[] res) {
+    assertTrue(title + ": expected " + toStr(expected) + " got " + toStr(res),
+               Arrays.equals(expected, res));
+  }
+
+  private Ace makeAce(final Random rand) throws Throwable {
+    int whoType = rand.nextInt(Ace.whoTypeFlags.length);
+    String name = null;
+
+    if (Ace.whoTypeNamed[whoType]) {
+      name = names[rand.nextInt(names.length)];
+    }
+
+    Collection<Privilege> privs = new ArrayList<Privilege>();
+    privs.add(Privileges.makePriv(rand.nextInt(Privileges.privMaxType + 1),
+                                  rand.nextBoolean()));
+
+    return Ace.makeAce(AceWho.getAceWho(name, whoType, rand.nextInt(8) == 0),
+                       privs, null);
+  }
+
+  private char[] slowAdd(final char[] acl,
+                         final Ace ace) throws AccessException {
+    Collection<Ace> aces = new ArrayList<Ace>();
+
+    if (acl != null) {
+      for (Ace a: Acl.decode(acl).getAces()) {
+        if (!a.getWho().equals(ace.getWho())) {
+          aces.add(a);
+        }
+      }
+    }
+
+    aces.add(ace);
+
+    return new Acl(aces).encode();
+  }
+
+  private char[] slowRemove(final char[] acl,
+                            final AceWho who) throws AccessException {
+    Collection<Ace> aces = new ArrayList<Ace>();
+
+    for (Ace a: Acl.decode(acl).getAces()) {
+      if (!a.getWho().equals(who)) {
+        aces.add(a);
+      }
+    }
+
+    return new Acl(aces).encode();
+  }
+
+  private String toStr(final char[] val) {
+    if (val == null) {
+      return "null";
+    }
+
+    return new String(val);
+  }
+}
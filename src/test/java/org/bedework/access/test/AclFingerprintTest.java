@@ -0,0 +1,142 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access.test;
+
+import org.bedework.access.Acl;
+import org.bedework.access.Acl.CurrentAccess;
+import org.bedework.access.AclFingerprint;
+import org.bedework.access.EncodedAcl;
+import org.bedework.access.Privilege;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/** Check acl fingerprints and their use as the evaluated access cache key.
+ *
+ * @author douglm
+ */
+public class AclFingerprintTest extends TestCase {
+  /**
+   * @throws Throwable on error
+   */
+  public void testFingerprint() throws Throwable {
+    Random rand = new Random(41);
+    AccessTest.TestAccessCb cb = new AccessTest.TestAccessCb();
+
+    User owner = new User("anowner");
+    User auser = new User("auser");
+    Set<Long> fingerprints = new HashSet<Long>();
+    Set<String> acls = new HashSet<String>();
+
+    for (int i = 0; i < 500; i++) {
+      char[] encoded = TestAcls.makeAcl(rand);
+      long fp = AclFingerprint.compute(encoded);
+
+      assertEquals(fp, AclFingerprint.compute(new String(encoded)));
+
+      if (acls.add(new String(encoded))) {
+        assertTrue("Fingerprint collision", fingerprints.add(fp));
+      }
+
+      for (Privilege[] how: TestAcls.hows) {
+        CurrentAccess expected = Acl.evaluateAccess(cb, auser, owner, how,
+                                                    encoded, null);
+        CurrentAccess ca = Acl.evaluateAccess(cb, auser, owner, how,
+                                              encoded.clone(), fp, null);
+
+        assertEquals(expected.getAccessAllowed(), ca.getAccessAllowed());
+        assertEquals(expected.getPrivileges(), ca.getPrivileges());
+      }
+    }
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testReusedBuffer() throws Throwable {
+    AccessTest.TestAccessCb cb = new AccessTest.TestAccessCb();
+
+    User owner = new User("bufowner");
+    User auser = new User("auser");
+
+    char[] acl = "WU05 auseryR WONyR ".toCharArray();
+    char[] buf = acl.clone();
+
+    CurrentAccess ca = Acl.evaluateAccess(cb, auser, owner, TestAcls.read,
+                                          buf, null);
+    assertTrue(ca.getAccessAllowed());
+
+    // The caller reuses the buffer for the next row
+    Arrays.fill(buf, 'x');
+
+    // Still a hit for the acl as it was evaluated
+    assertSame(ca, Acl.evaluateAccess(cb, auser, owner, TestAcls.read,
+                                      acl.clone(), null));
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testEncodedAcl() throws Throwable {
+    AccessTest.TestAccessCb cb = new AccessTest.TestAccessCb();
+
+    User owner = new User("encowner");
+    User auser = new User("auser");
+
+    char[] acl = "WU05 auseryR WONyR ".toCharArray();
+    EncodedAcl held = new EncodedAcl();
+    held.setEncoded(acl);
+
+    assertEquals(AclFingerprint.compute(acl), held.getFingerprint());
+
+    CurrentAccess ca = Acl.evaluateAccess(cb, auser, owner, TestAcls.read,
+                                          acl, null);
+    assertTrue(ca.getAccessAllowed());
+
+    // Same cache entry through the held fingerprint
+    assertSame(ca, Acl.evaluateAccess(cb, auser, owner, TestAcls.read,
+                                      held, null));
+
+    // Setting the changed chars again gives the new fingerprint
+    char[] denied = "WU05 ausernR WONyR ".toCharArray();
+    System.arraycopy(denied, 0, acl, 0, acl.length);
+    held.setEncoded(acl);
+
+    assertEquals(AclFingerprint.compute(denied), held.getFingerprint());
+    assertFalse(Acl.evaluateAccess(cb, auser, owner, TestAcls.read,
+                                   held, null).getAccessAllowed());
+  }
+
+  /**
+   */
+  public void testEdgeCases() {
+    assertEquals(AclFingerprint.compute((char[])null),
+                 AclFingerprint.compute((String)null));
+    assertEquals(AclFingerprint.compute(new char[0]),
+                 AclFingerprint.compute(""));
+
+    // Order matters
+    assertFalse(AclFingerprint.compute("WONyR WLNyR ") ==
+                AclFingerprint.compute("WLNyR WONyR "));
+  }
+}
@@ -0,0 +1,105 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access.test;
+
+import org.bedework.access.AclIndex;
+import org.bedework.access.EncodedAclEvaluator;
+import org.bedework.access.Privilege;
+import org.bedework.access.Privileges;
+
+import java.io.File;
+import java.util.BitSet;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/** Check the inverted acl index.
+ *
+ * @author douglm
+ */
+public class AclIndexTest extends TestCase {
+  /**
+   * @throws Throwable on error
+   */
+  public void testIndex() throws Throwable {
+    Random rand = new Random(35);
+    AccessTest.TestAccessCb cb = new AccessTest.TestAccessCb();
+    Privilege[] read = {Privileges.makePriv(Privileges.privRead)};
+
+    User owner = new User("anowner");
+    User auser = new User("auser");
+    auser.addGroup(new Group("agroup"));
+    User[] whos = {new User(), auser, new User("buser")};
+
+    AclIndex index = new AclIndex(cb);
+    char[][] acls = new char[500][];
+
+    for (int i = 0; i < acls.length; i++) {
+      acls[i] = TestAcls.makeAcl(rand);
+      index.update(i, acls[i]);
+    }
+
+    // Change some and remove some
+    for (int i = 0; i < 50; i++) {
+      int id = rand.nextInt(acls.length);
+
+      if (rand.nextBoolean()) {
+        acls[id] = null;
+      } else {
+        acls[id] = TestAcls.makeAcl(rand);
+      }
+
+      index.update(id, acls[id]);
+    }
+
+    File f = File.createTempFile("aclindex", ".dat");
+
+    try {
+      index.write(f);
+      assertFalse(new File(f.getPath() + ".tmp").exists());
+
+      AclIndex reread = new AclIndex(cb);
+      reread.read(f);
+
+      assertEquals(index.size(), reread.size());
+
+      for (User who: whos) {
+        BitSet candidates = index.getCandidates(who);
+
+        assertEquals(candidates, reread.getCandidates(who));
+
+        for (int i = 0; i < acls.length; i++) {
+          boolean allowed = EncodedAclEvaluator.evaluate(cb, who, owner, read,
+                                                         acls[i],
+                                                         null).getAccessAllowed();
+
+          if (allowed) {
+            assertTrue("Resource " + i + " for " + who, candidates.get(i));
+          }
+
+          if (acls[i] == null) {
+            assertFalse(candidates.get(i));
+          }
+        }
+      }
+    } finally {
+      f.delete();
+    }
+  }
+}
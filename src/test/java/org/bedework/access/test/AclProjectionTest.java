@@ -0,0 +1,151 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access.test;
+
+import org.bedework.access.Acl;
+import org.bedework.access.AclProjection;
+import org.bedework.access.AclSummary;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/** Check acl projections never rule out a principal who can read.
+ *
+ * @author douglm
+ */
+public class AclProjectionTest extends TestCase {
+  private final AccessTest.TestAccessCb cb = new AccessTest.TestAccessCb();
+
+  private final User owner = new User("anowner");
+
+  private final User unauth = new User();
+
+  private final User nobody = new User("nobody");
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testRandomAcls() throws Throwable {
+    Random rand = new Random(50);
+
+    int filtered = 0;
+
+    for (int i = 0; i < 2000; i++) {
+      filtered += check(TestAcls.makeAcl(rand));
+    }
+
+    // And many who can't are
+    assertTrue("filtered " + filtered, filtered > 2000);
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testEdgeCases() throws Throwable {
+    AclProjection none = AclProjection.project(cb, null);
+    assertFalse(none.isPublicRead());
+    assertTrue(none.getReadHrefs().isEmpty());
+
+    // Owner only
+    AclProjection proj = project("WONyR ");
+    assertTrue(proj.isOwnerRead());
+    assertFalse(proj.isPublicRead());
+    assertFalse(proj.isAuthenticatedRead());
+    assertFalse(proj.mightRead(nobody, owner));
+
+    // Owner denied
+    proj = project("WONnR WLNyR ");
+    assertFalse(proj.isOwnerRead());
+    assertTrue(proj.isPublicRead());
+    assertFalse(proj.mightRead(owner, owner));
+
+    // Named user
+    proj = project("WU05 auseryR ");
+    assertTrue(proj.getReadHrefs().contains("/principals/users/auser"));
+    assertTrue(proj.mightRead(new User("auser"), owner));
+    assertFalse(proj.mightRead(nobody, owner));
+
+    // Not who can't be filtered by href
+    proj = project("NU05 auseryR ");
+    assertTrue(proj.isUnfiltered());
+    assertTrue(proj.mightRead(nobody, owner));
+
+    // Left out by a not who ace but allowed by a group
+    proj = project("NU05 ausernR WG06 agroupyR ");
+    assertTrue(proj.getReadHrefs().contains("/principals/users/auser"));
+
+    // A summary makes no difference
+    char[] acl = "NU05 ausernR WG06 agroupyR WLNyR ".toCharArray();
+    assertEquals(AclProjection.project(cb, acl).toString(),
+                 AclProjection.project(cb, AclSummary.addSummary(acl, cb))
+                         .toString());
+  }
+
+  private AclProjection project(final String acl) throws Throwable {
+    char[] chars = acl.toCharArray();
+
+    check(chars);
+
+    return AclProjection.project(cb, chars);
+  }
+
+  /* Check the projection - returns the number of principals ruled out */
+  private int check(final char[] encoded) throws Throwable {
+    User auser = new User("auser");
+    auser.addGroup(new Group("agroup"));
+    User buser = new User("buser");
+    User cuser = new User("cuser");
+    cuser.addGroup(new Group("bgroup"));
+    User inGroups = new User("ingroups");
+    inGroups.addGroup(new Group("agroup"));
+    inGroups.addGroup(new Group("bgroup"));
+
+    User[] whos = {unauth, nobody, owner, auser, buser, cuser, inGroups};
+
+    AclProjection proj = AclProjection.project(cb, encoded);
+    String title = proj.toString();
+    if (encoded != null) {
+      title = new String(encoded) + " " + title;
+    }
+
+    assertEquals(title, canRead(unauth, encoded), proj.isPublicRead());
+    assertEquals(title, canRead(nobody, encoded), proj.isAuthenticatedRead());
+    assertEquals(title, canRead(owner, encoded), proj.isOwnerRead());
+
+    int filtered = 0;
+
+    // Nobody who can read is filtered out
+    for (User who: whos) {
+      if (canRead(who, encoded)) {
+        assertTrue(title + " for " + who, proj.mightRead(who, owner));
+      } else if (!proj.mightRead(who, owner)) {
+        filtered++;
+      }
+    }
+
+    return filtered;
+  }
+
+  private boolean canRead(final User who,
+                          final char[] encoded) throws Throwable {
+    return Acl.evaluateDecodedAccess(cb, who, owner, TestAcls.read,
+                                     encoded, null).getAccessAllowed();
+  }
+}
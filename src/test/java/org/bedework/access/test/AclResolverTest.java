@@ -0,0 +1,321 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access.test;
+
+import org.bedework.access.AccessException;
+import org.bedework.access.Ace;
+import org.bedework.access.Acl;
+import org.bedework.access.AclResolver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/** Check the effective acl resolver against merging by hand.
+ *
+ * @author douglm
+ */
+public class AclResolverTest extends TestCase {
+  private static final String[] paths = {
+    "/",
+    "/user",
+    "/user/jeb",
+    "/user/jeb/calendar",
+    "/user/jeb/rocalendar",
+    "/user/jeb/calendar/sub",
+    "/public",
+  };
+
+  private final Map<String, char[]> acls = new HashMap<String, char[]>();
+
+  private int lookups;
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testResolver() throws Throwable {
+    Random rand = new Random(36);
+
+    for (String path: paths) {
+      if (rand.nextInt(4) != 0) {
+        acls.put(path, TestAcls.makeAcl(rand));
+      }
+    }
+
+    AclResolver resolver = new AclResolver(new AclResolver.AclLookup() {
+      @Override
+      public char[] getAcl(final String path) {
+        lookups++;
+        return acls.get(path);
+      }
+    });
+
+    checkAll(resolver);
+
+    // All remembered
+    lookups = 0;
+    checkAll(resolver);
+    assertEquals(0, lookups);
+
+    // Change one ancestor - only the subtree is looked up again
+    acls.put("/user/jeb", TestAcls.makeAcl(rand));
+    resolver.invalidate("/user/jeb");
+
+    lookups = 0;
+    checkAll(resolver);
+    assertEquals(4, lookups);
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testConcurrent() throws Throwable {
+    final CountDownLatch inLookup = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    acls.put("/", "WONyR ".toCharArray());
+    acls.put("/slow", "WLNyR ".toCharArray());
+    acls.put("/public", "WANyR ".toCharArray());
+
+    final AclResolver resolver = new AclResolver(new AclResolver.AclLookup() {
+      @Override
+      public char[] getAcl(final String path) throws AccessException {
+        if (path.equals("/slow")) {
+          inLookup.countDown();
+
+          try {
+            release.await();
+          } catch (InterruptedException ie) {
+            throw new AccessException(ie);
+          }
+        }
+
+        return acls.get(path);
+      }
+    });
+
+    final AtomicReference<Throwable> failed = new AtomicReference<Throwable>();
+
+    Thread slow = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          resolver.getEffectiveAclChars("/slow");
+        } catch (Throwable t) {
+          failed.set(t);
+        }
+      }
+    });
+
+    slow.start();
+    assertTrue(inLookup.await(10, TimeUnit.SECONDS));
+
+    // Not held up by the slow lookup
+    Thread other = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          resolver.getEffectiveAclChars("/public");
+        } catch (Throwable t) {
+          failed.set(t);
+        }
+      }
+    });
+
+    other.start();
+    other.join(10000);
+
+    boolean finished = !other.isAlive();
+
+    release.countDown();
+    slow.join();
+    other.join();
+
+    assertTrue("Resolution waited for another path", finished);
+    assertNull(failed.get());
+    assertTrue(Arrays.equals(merged("/slow"),
+                             resolver.getEffectiveAclChars("/slow")));
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testBoundAndCopy() throws Throwable {
+    final char[] buf = "WLNyR ".toCharArray();
+
+    AclResolver resolver = new AclResolver(new AclResolver.AclLookup() {
+      @Override
+      public char[] getAcl(final String path) {
+        lookups++;
+
+        if (path.equals("/")) {
+          // Reused by the caller
+          return buf;
+        }
+
+        return null;
+      }
+    });
+
+    resolver.setMaxPaths(3);
+
+    char[] root = resolver.getEffectiveAclChars("/");
+    assertEquals("WLNyR ", new String(root));
+
+    buf[0] = 'N';
+    assertEquals("WLNyR ", new String(resolver.getEffectiveAclChars("/")));
+
+    // Three paths remembered
+    lookups = 0;
+    resolver.getEffectiveAclChars("/a/b");
+    assertEquals(2, lookups);
+
+    lookups = 0;
+    resolver.getEffectiveAclChars("/a/b");
+    assertEquals(0, lookups);
+
+    // A fourth forgets them
+    resolver.getEffectiveAclChars("/c");
+    lookups = 0;
+    resolver.getEffectiveAclChars("/a/b");
+    assertTrue(lookups > 0);
+
+    try {
+      resolver.setMaxPaths(0);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException iae) {
+    }
+  }
+
+  /** Check the merge of sorted lists against merging by comparing every
+   * pair of aces.
+   *
+   * @throws Throwable on error
+   */
+  public void testMerge() throws Throwable {
+    Random rand = new Random(37);
+    String[] paths = {"/user/jeb", "/user", "/"};
+
+    for (int i = 0; i < 500; i++) {
+      Acl child = Acl.decode(TestAcls.makeAcl(rand));
+      char[][] ancestors = new char[paths.length][];
+
+      for (int ai = 0; ai < ancestors.length; ai++) {
+        ancestors[ai] = TestAcls.makeAcl(rand);
+      }
+
+      Acl expected = child;
+      Acl merged = child;
+
+      for (int ai = 0; ai < ancestors.length; ai++) {
+        expected = slowMerge(expected, ancestors[ai], paths[ai]);
+        merged = merged.merge(ancestors[ai], paths[ai]);
+      }
+
+      String exp = new String(expected.encodeAll());
+
+      assertEquals(exp, new String(merged.encodeAll()));
+      assertEquals(exp,
+                   new String(child.mergeAncestors(ancestors,
+                                                   paths).encodeAll()));
+    }
+  }
+
+  /* Merge as Acl.merge used to */
+  private Acl slowMerge(final Acl acl,
+                        final char[] val,
+                        final String path) throws AccessException {
+    Collection<Ace> newAces = new ArrayList<Ace>();
+
+    newAces.addAll(acl.getAces());
+
+    domerge:
+    for (Ace a: Acl.decode(val, path).getAces()) {
+      for (Ace ace: newAces) {
+        if (a.getWho().equals(ace.getWho())) {
+          continue domerge;
+        }
+      }
+
+      newAces.add(a);
+    }
+
+    return new Acl(newAces);
+  }
+
+  private void checkAll(final AclResolver resolver) throws Throwable {
+    for (String path: paths) {
+      char[] expected = merged(path);
+      char[] res = resolver.getEffectiveAclChars(path);
+
+      assertTrue(path + ": expected " + toStr(expected) + " got " + toStr(res),
+                 Arrays.equals(expected, res));
+    }
+  }
+
+  /* Merge by hand from the entity up to the root */
+  private char[] merged(final String path) throws AccessException {
+    char[] own = acls.get(path);
+    Acl acl;
+
+    if (own == null) {
+      acl = new Acl(new ArrayList<Ace>());
+    } else {
+      acl = Acl.decode(own);
+    }
+
+    String p = path;
+
+    while (!p.equals("/")) {
+      int i = p.lastIndexOf('/');
+      String parent = (i == 0) ? "/" : p.substring(0, i);
+      char[] parentAcl = acls.get(parent);
+
+      if (parentAcl != null) {
+        acl = acl.merge(parentAcl, parent);
+      }
+
+      p = parent;
+    }
+
+    char[] res = acl.encodeAll();
+
+    if ((res == null) || (res.length == 0)) {
+      return null;
+    }
+
+    return res;
+  }
+
+  private String toStr(final char[] val) {
+    if (val == null) {
+      return "null";
+    }
+
+    return new String(val);
+  }
+}
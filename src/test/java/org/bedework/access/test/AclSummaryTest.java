@@ -0,0 +1,234 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access.test;
+
+import org.bedework.access.Ace;
+import org.bedework.access.AceWho;
+import org.bedework.access.Acl;
+import org.bedework.access.AclSummary;
+import org.bedework.access.AclValidator;
+import org.bedework.access.EncodedAclEvaluator;
+import org.bedework.access.Privilege;
+import org.bedework.access.PrivilegeSet;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/** Check the summary header of encoded acls.
+ *
+ * @author douglm
+ */
+public class AclSummaryTest extends TestCase {
+  private final AccessTest.TestAccessCb cb = new AccessTest.TestAccessCb();
+
+  private final User owner = new User("anowner");
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testRandomAcls() throws Throwable {
+    Random rand = new Random(49);
+    AclValidator validator = new AclValidator();
+
+    for (int i = 0; i < 2000; i++) {
+      char[] encoded = TestAcls.makeAcl(rand);
+      char[] summarised = AclSummary.addSummary(encoded, cb);
+      String title = new String(summarised);
+
+      assertEquals(title, AclSummary.summaryLength + encoded.length,
+                   summarised.length);
+      assertEquals(title, new String(encoded),
+                   new String(AclSummary.removeSummary(summarised)));
+      assertEquals(title, title,
+                   new String(AclSummary.addSummary(summarised, cb)));
+
+      assertEquals(title, new String(Acl.decode(encoded).encodeAll()),
+                   new String(Acl.decode(summarised).encodeAll()));
+      assertEquals(title, AclValidator.valid, validator.validate(summarised));
+
+      AclSummary summary = AclSummary.getSummary(summarised);
+      assertNull(AclSummary.getSummary(encoded));
+
+      for (Ace ace: Acl.decode(encoded).getAces()) {
+        AceWho aw = ace.getWho();
+
+        assertTrue(title, summary.hasWhoType(aw.getWhoType()));
+
+        if (aw.getWho() != null) {
+          assertTrue(title, summary.mightName(
+                  cb.makeHref(aw.getWho(), aw.getWhoType())));
+        }
+      }
+
+      assertEquals(title,
+                   Acl.evaluateDecodedAccess(cb, new User(), owner,
+                                             TestAcls.read, encoded,
+                                             null).getAccessAllowed(),
+                   summary.isPublicRead());
+
+      // Changing the aces drops the summary
+      AceWho removed = Acl.decode(encoded).getAces().iterator().next().getWho();
+      assertTrue(title, Arrays.equals(Acl.removeWho(encoded, removed),
+                                      Acl.removeWho(summarised, removed)));
+
+      checkEvaluation(encoded, summarised);
+    }
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testHeader() throws Throwable {
+    assertNull(AclSummary.addSummary(null, cb));
+    assertNull(AclSummary.getSummary(null));
+    assertEquals(0, AclSummary.getLength((char[])null));
+
+    char[] acl = "WONyR WU05 auseryR WLNnR ".toCharArray();
+    char[] summarised = AclSummary.addSummary(acl, cb);
+
+    assertEquals(AclSummary.summaryFlag, summarised[0]);
+    assertEquals(AclSummary.summaryLength,
+                 AclSummary.getLength(summarised));
+    assertEquals(AclSummary.summaryLength,
+                 AclSummary.getLength(new String(summarised)));
+
+    AclSummary summary = AclSummary.getSummary(summarised);
+
+    assertTrue(summary.hasWhoType(Ace.whoTypeOwner));
+    assertTrue(summary.hasWhoType(Ace.whoTypeUser));
+    assertTrue(summary.hasWhoType(Ace.whoTypeAll));
+    assertFalse(summary.hasWhoType(Ace.whoTypeGroup));
+    assertFalse(summary.isPublicRead());
+    assertTrue(summary.mightName("/principals/users/auser"));
+
+    checkEvaluation(acl, summarised);
+
+    // Summary of an acl with no aces
+    summarised = AclSummary.addSummary(new char[0], cb);
+    assertEquals(AclSummary.summaryLength, summarised.length);
+    assertEquals(0, AclSummary.getSummary(summarised).getWhoTypes());
+    checkEvaluation(new char[0], summarised);
+
+    // Not a summary unless it's all hex
+    char[] bad = summarised.clone();
+    bad[5] = 'g';
+    assertEquals(0, AclSummary.getLength(bad));
+    assertNull(AclSummary.getSummary(bad));
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testUnfiltered() throws Throwable {
+    // A not who ace can't be ruled out by the filter
+    char[] acl = "NU05 auseryR ".toCharArray();
+    char[] summarised = AclSummary.addSummary(acl, cb);
+    AclSummary summary = AclSummary.getSummary(summarised);
+
+    assertTrue((summary.getFlags() & AclSummary.flagUnfiltered) != 0);
+    assertTrue(summary.mightName("/principals/users/nobody"));
+
+    checkEvaluation(acl, summarised);
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testWrongSummary() throws Throwable {
+    User buser = new User("buser");
+    String acl = "WU05 busernR WLNyR ";
+
+    // Says there are only all aces
+    StringBuilder forged = new StringBuilder("H400");
+    for (int i = 0; i < 16 + 1 + 8; i++) {
+      forged.append('0');
+    }
+    forged.append(' ');
+    forged.append(acl);
+
+    // A real summary for other aces
+    char[] other = AclSummary.addSummary("WLNyR ".toCharArray(), cb);
+    String stale = new String(other, 0, AclSummary.summaryLength) + acl;
+
+    assertFalse(Acl.evaluateAccess(cb, buser, owner, TestAcls.read,
+                                   acl.toCharArray(),
+                                   null).getAccessAllowed());
+
+    for (String wrong: new String[]{forged.toString(), stale}) {
+      char[] chars = wrong.toCharArray();
+
+      assertEquals(AclSummary.summaryLength, AclSummary.getLength(chars));
+      assertNull(wrong, AclSummary.getSummary(chars));
+      assertFalse(wrong,
+                  Acl.evaluateAccess(cb, buser, owner, TestAcls.read,
+                                     chars, null).getAccessAllowed());
+      assertFalse(wrong,
+                  EncodedAclEvaluator.evaluate(cb, buser, owner,
+                                               TestAcls.read, chars,
+                                               null).getAccessAllowed());
+
+      checkEvaluation(acl.toCharArray(), chars);
+    }
+
+    // Made with another key
+    char[] summarised = AclSummary.addSummary(acl.toCharArray(), cb);
+
+    AclSummary.setKey(1);
+    summarised = AclSummary.addSummary(summarised, cb);
+    assertNotNull(AclSummary.getSummary(summarised));
+
+    AclSummary.setKey(2);
+    assertNull(AclSummary.getSummary(summarised));
+    checkEvaluation(acl.toCharArray(), summarised);
+
+    AclSummary.setKey(1);
+    assertNotNull(AclSummary.getSummary(summarised));
+  }
+
+  /* Evaluating with the summary gives the same result as without */
+  private void checkEvaluation(final char[] encoded,
+                               final char[] summarised) throws Throwable {
+    User auser = new User("auser");
+    auser.addGroup(new Group("agroup"));
+    User cuser = new User("cuser");
+    cuser.addGroup(new Group("bgroup"));
+    User other = new User("other");
+    other.addGroup(new Group("cgroup"));
+
+    User[] whos = {new User(), owner, auser, cuser, other};
+
+    for (User who: whos) {
+      for (Privilege[] how: TestAcls.hows) {
+        for (PrivilegeSet filter: TestAcls.filters) {
+          EncodedAclEvaluatorTest.checkSame(cb, who, owner, how, summarised,
+                                            filter);
+
+          assertEquals(Acl.evaluateDecodedAccess(cb, who, owner, how,
+                                                 encoded,
+                                                 filter).getPrivileges(),
+                       Acl.evaluateDecodedAccess(cb, who, owner, how,
+                                                 summarised,
+                                                 filter).getPrivileges());
+        }
+      }
+    }
+  }
+}
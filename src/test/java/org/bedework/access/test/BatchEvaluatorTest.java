@@ -0,0 +1,313 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access.test;
+
+import org.bedework.access.Access;
+import org.bedework.access.AccessPrincipal;
+import org.bedework.access.AccessFilterIterator;
+import org.bedework.access.AceDictionary;
+import org.bedework.access.Acl;
+import org.bedework.access.BatchEvaluator;
+import org.bedework.access.Privilege;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/** Check batch evaluation and the filtering iterator against evaluating
+ * each acl on its own.
+ *
+ * @author douglm
+ */
+public class BatchEvaluatorTest extends TestCase {
+  private final AccessTest.TestAccessCb cb = new AccessTest.TestAccessCb();
+
+  private final User owner = new User("anowner");
+
+  private final Access.AclAccessor<char[]> accessor =
+          TestAcls.accessor(owner);
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testBatch() throws Throwable {
+    Random rand = new Random(30);
+
+    User auser = new User("auser");
+    auser.addGroup(new Group("agroup"));
+
+    /* A few distinct acls shared by many objects */
+    char[][] acls = new char[5][];
+    for (int i = 0; i < acls.length; i++) {
+      acls[i] = TestAcls.makeAcl(rand);
+    }
+
+    List<char[]> vals = new ArrayList<char[]>();
+    for (int i = 0; i < 200; i++) {
+      vals.add(acls[rand.nextInt(acls.length)]);
+    }
+    vals.add(null);
+
+    for (User who: new User[]{new User(), owner, auser}) {
+      for (Privilege[] how: TestAcls.hows) {
+        checkBatch(who, how, vals);
+      }
+    }
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testEdgeCases() throws Throwable {
+    User auser = new User("auser");
+
+    List<char[]> vals = new ArrayList<char[]>();
+
+    assertTrue(new BatchEvaluator(cb).evaluate(auser, TestAcls.read, vals,
+                                               accessor, null).isEmpty());
+
+    vals.add(null);
+    vals.add("WLNyR WONyR ".toCharArray());
+    vals.add("WU05 auseryW WU05 auseryR ".toCharArray());
+
+    for (User who: new User[]{new User(), owner, auser}) {
+      for (Privilege[] how: TestAcls.hows) {
+        checkBatch(who, how, vals);
+      }
+    }
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testReusedBuffer() throws Throwable {
+    User auser = new User("auser");
+
+    final char[] allowed = "WU05 auseryR WONyR ".toCharArray();
+    final char[] denied = "WU05 ausernR WONyR ".toCharArray();
+
+    List<Integer> vals = new ArrayList<Integer>();
+    for (int i = 0; i < 20; i++) {
+      vals.add(i);
+    }
+
+    /* The accessor fills in the same buffer for every object */
+    Access.AclAccessor<Integer> reusing = new Access.AclAccessor<Integer>() {
+      private final char[] buf = new char[allowed.length];
+
+      @Override
+      public AccessPrincipal getOwner(final Integer val) {
+        return owner;
+      }
+
+      @Override
+      public char[] getAclChars(final Integer val) {
+        char[] acl;
+
+        if ((val % 3) == 0) {
+          acl = allowed;
+        } else {
+          acl = denied;
+        }
+
+        System.arraycopy(acl, 0, buf, 0, buf.length);
+        return buf;
+      }
+    };
+
+    BitSet res = new BatchEvaluator(cb).evaluate(auser, TestAcls.read, vals,
+                                                 reusing, null);
+
+    for (int i = 0; i < vals.size(); i++) {
+      assertEquals("Object " + i, (i % 3) == 0, res.get(i));
+    }
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testCompressed() throws Throwable {
+    Random rand = new Random(45);
+
+    User auser = new User("auser");
+    auser.addGroup(new Group("agroup"));
+
+    List<char[]> acls = new ArrayList<char[]>();
+    for (int i = 0; i < 100; i++) {
+      acls.add(TestAcls.makeStoredAcl(rand));
+    }
+
+    AceDictionary dict = TestAcls.registerDictionary(45, acls);
+
+    List<char[]> vals = new ArrayList<char[]>();
+    for (char[] acl: acls) {
+      vals.add(dict.compress(acl));
+    }
+
+    assertTrue(AceDictionary.isCompressed(vals.get(0)));
+
+    for (User who: new User[]{new User(), owner, auser}) {
+      for (Privilege[] how: TestAcls.hows) {
+        checkBatch(who, how, vals);
+
+        assertEquals(new BatchEvaluator(cb).evaluate(who, how, acls,
+                                                     accessor, null),
+                     new BatchEvaluator(cb).evaluate(who, how, vals,
+                                                     accessor, null));
+      }
+    }
+
+    // And through the filtering iterator
+    BitSet expected = new BatchEvaluator(cb).evaluate(auser, TestAcls.read,
+                                                      acls, accessor, null);
+    AccessFilterIterator<char[]> it =
+            new AccessFilterIterator<char[]>(vals.iterator(), cb, auser,
+                                             TestAcls.read, accessor, null,
+                                             10);
+
+    for (int i = expected.nextSetBit(0); i >= 0;
+         i = expected.nextSetBit(i + 1)) {
+      assertTrue(it.hasNext());
+      assertSame(vals.get(i), it.next());
+    }
+
+    assertFalse(it.hasNext());
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testParallelBatch() throws Throwable {
+    Random rand = new Random(31);
+
+    User auser = new User("auser");
+    auser.addGroup(new Group("agroup"));
+
+    List<char[]> vals = new ArrayList<char[]>();
+    for (int i = 0; i < 5000; i++) {
+      vals.add(TestAcls.makeAcl(rand));
+    }
+
+    final AtomicInteger lastDone = new AtomicInteger();
+
+    BatchEvaluator parallel = new BatchEvaluator(cb);
+    parallel.setParallelism(4);
+    parallel.setProgressListener(new BatchEvaluator.ProgressListener() {
+      @Override
+      public void progress(final int done, final int total) {
+        assertEquals(5000, total);
+        lastDone.set(Math.max(lastDone.get(), done));
+      }
+    });
+
+    for (User who: new User[]{new User(), owner, auser}) {
+      BitSet expected = new BatchEvaluator(cb).evaluate(who, TestAcls.read,
+                                                        vals, accessor, null);
+      lastDone.set(0);
+      BitSet res = parallel.evaluate(who, TestAcls.read, vals, accessor,
+                                     null);
+
+      assertEquals("Parallel result for " + who, expected, res);
+      assertEquals(5000, lastDone.get());
+    }
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testFilterIterator() throws Throwable {
+    Random rand = new Random(32);
+
+    User auser = new User("auser");
+    auser.addGroup(new Group("agroup"));
+
+    List<char[]> vals = new ArrayList<char[]>();
+    for (int i = 0; i < 1000; i++) {
+      vals.add(TestAcls.makeAcl(rand));
+    }
+
+    BitSet expected = new BatchEvaluator(cb).evaluate(auser, TestAcls.read,
+                                                      vals, accessor, null);
+
+    final AtomicInteger pulled = new AtomicInteger();
+    final Iterator<char[]> src = vals.iterator();
+    Iterator<char[]> counting = new Iterator<char[]>() {
+      @Override
+      public boolean hasNext() {
+        return src.hasNext();
+      }
+
+      @Override
+      public char[] next() {
+        pulled.incrementAndGet();
+        return src.next();
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+
+    AccessFilterIterator<char[]> it =
+            new AccessFilterIterator<char[]>(counting, cb, auser,
+                                             TestAcls.read, accessor, null,
+                                             10);
+
+    int i = expected.nextSetBit(0);
+    assertTrue(it.hasNext());
+    assertSame(vals.get(i), it.next());
+
+    /* Only pulled as far as the batch holding the first accessible one */
+    assertTrue(pulled.get() <= ((i / 10) + 1) * 10);
+
+    for (i = expected.nextSetBit(i + 1); i >= 0;
+         i = expected.nextSetBit(i + 1)) {
+      assertTrue(it.hasNext());
+      assertSame(vals.get(i), it.next());
+    }
+
+    assertFalse(it.hasNext());
+    assertEquals(vals.size(), pulled.get());
+  }
+
+  /* Check the batch result against evaluating each acl */
+  private void checkBatch(final User who,
+                          final Privilege[] how,
+                          final List<char[]> vals) throws Throwable {
+    BitSet res = new BatchEvaluator(cb).evaluate(who, how, vals, accessor,
+                                                 null);
+
+    for (int i = 0; i < vals.size(); i++) {
+      boolean expected = false;
+      if (vals.get(i) != null) {
+        expected = Acl.evaluateDecodedAccess(cb, who, owner, how,
+                                             vals.get(i),
+                                             null).getAccessAllowed();
+      }
+
+      assertEquals("Entry " + i + " for " + who, expected, res.get(i));
+    }
+  }
+}
@@ -0,0 +1,158 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access.test;
+
+import org.bedework.access.Ace;
+import org.bedework.access.AceWho;
+import org.bedework.access.Acl;
+import org.bedework.access.Acl.CurrentAccess;
+import org.bedework.access.CompiledAcl;
+import org.bedework.access.Privilege;
+import org.bedework.access.PrivilegeSet;
+import org.bedework.access.Privileges;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/** Check compiled acls against the evaluator working on decoded Ace
+ * objects.
+ *
+ * @author douglm
+ */
+public class CompiledAclTest extends TestCase {
+  private final AccessTest.TestAccessCb cb = new AccessTest.TestAccessCb();
+
+  private final User owner = new User("anowner");
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testRandomAcls() throws Throwable {
+    Random rand = new Random(33);
+
+    for (int i = 0; i < 1000; i++) {
+      checkAll(TestAcls.makeAcl(rand));
+      checkAll(TestAcls.makeUnsortedAcl(rand));
+    }
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testEdgeCases() throws Throwable {
+    checkAll(null);
+    checkAll("WLNyR WONyR ".toCharArray());
+    checkAll("WONyR WONyW ".toCharArray());
+    checkAll("WU05 buseryR WU05 auseryW WU05 buseryW ".toCharArray());
+    checkAll("WG06 agroupyR NG06 agroupyW ".toCharArray());
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testGrants() throws Throwable {
+    Privilege read = Privileges.makePriv(Privileges.privRead);
+    Privilege write = Privileges.makePriv(Privileges.privWrite);
+    Privilege denyRead = Privileges.makePriv(Privileges.privRead, true);
+
+    Collection<Ace> aces = new ArrayList<Ace>();
+
+    aces.add(Ace.makeAce(AceWho.getAceWho("auser", Ace.whoTypeUser, false),
+                         TestAcls.privs(read), null));
+    aces.add(Ace.makeAce(AceWho.getAceWho("buser", Ace.whoTypeUser, false),
+                         TestAcls.privs(write, denyRead), null));
+    aces.add(Ace.makeAce(AceWho.getAceWho("agroup", Ace.whoTypeGroup, false),
+                         TestAcls.privs(read), "/user/parent"));
+    aces.add(Ace.makeAce(AceWho.getAceWho(null, Ace.whoTypeAuthenticated,
+                                          false),
+                         TestAcls.privs(read), null));
+    aces.add(Ace.makeAce(AceWho.all, TestAcls.privs(denyRead), null));
+
+    CompiledAcl compiled = new CompiledAcl(cb, new Acl(aces).encodeAll());
+
+    List<CompiledAcl.Grant> grants = compiled.getGrants(read);
+
+    assertEquals(grants.toString(), 4, grants.size());
+    checkGrant(grants.get(0), Ace.whoTypeOwner, null, Privileges.allowed);
+    checkGrant(grants.get(1), Ace.whoTypeUser, "/principals/users/auser",
+               Privileges.allowed);
+    checkGrant(grants.get(2), Ace.whoTypeGroup, "/principals/groups/agroup",
+               Privileges.allowedInherited);
+    checkGrant(grants.get(3), Ace.whoTypeAuthenticated, null,
+               Privileges.allowed);
+
+    grants = compiled.getGrants(write);
+
+    assertEquals(grants.toString(), 2, grants.size());
+    checkGrant(grants.get(0), Ace.whoTypeOwner, null, Privileges.allowed);
+    checkGrant(grants.get(1), Ace.whoTypeUser, "/principals/users/buser",
+               Privileges.allowed);
+  }
+
+  private void checkAll(final char[] acl) throws Throwable {
+    Group agroup = new Group("agroup");
+    Group bgroup = new Group("bgroup");
+
+    User auser = new User("auser");
+    auser.addGroup(agroup);
+    User buser = new User("buser");
+    User cuser = new User("cuser");
+    cuser.addGroup(bgroup);
+    User inGroups = new User("ingroups");
+    inGroups.addGroup(agroup);
+    inGroups.addGroup(bgroup);
+
+    User[] whos = {new User(), owner, auser, buser, cuser, inGroups};
+
+    CompiledAcl compiled = new CompiledAcl(cb, acl);
+    String aclStr = "null";
+    if (acl != null) {
+      aclStr = new String(acl);
+    }
+
+    for (User who: whos) {
+      for (Privilege[] how: TestAcls.hows) {
+        for (PrivilegeSet filter: TestAcls.filters) {
+          CurrentAccess expected = Acl.evaluateDecodedAccess(cb, who, owner,
+                                                             how, acl,
+                                                             filter);
+          CurrentAccess ca = compiled.evaluate(who, owner, how, filter);
+          String title = aclStr + " for " + who;
+
+          assertEquals(title, expected.getAccessAllowed(),
+                       ca.getAccessAllowed());
+          assertEquals(title, expected.getPrivileges(), ca.getPrivileges());
+        }
+      }
+    }
+  }
+
+  private void checkGrant(final CompiledAcl.Grant grant,
+                          final int whoType,
+                          final String href,
+                          final char state) {
+    assertEquals(grant.toString(), whoType, grant.getWhoType());
+    assertEquals(grant.toString(), href, grant.getHref());
+    assertEquals(grant.toString(), state, grant.getState());
+  }
+}
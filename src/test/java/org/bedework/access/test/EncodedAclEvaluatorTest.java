@@ -0,0 +1,167 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access.test;
+
+import org.bedework.access.Access;
+import org.bedework.access.AccessException;
+import org.bedework.access.Acl;
+import org.bedework.access.Acl.CurrentAccess;
+import org.bedework.access.EncodedAclEvaluator;
+import org.bedework.access.Privilege;
+import org.bedework.access.PrivilegeSet;
+import org.bedework.access.Privileges;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/** Check the encoded evaluator against the evaluator working on decoded
+ * Ace objects.
+ *
+ * @author douglm
+ */
+public class EncodedAclEvaluatorTest extends TestCase {
+  private final AccessTest.TestAccessCb cb = new AccessTest.TestAccessCb();
+
+  private final User owner = new User("anowner");
+
+  private final Privilege[] writeContent = {
+    Privileges.makePriv(Privileges.privWriteContent)
+  };
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testRandomAcls() throws Throwable {
+    Random rand = new Random(26535);
+
+    for (int i = 0; i < 2000; i++) {
+      checkAll(TestAcls.makeAcl(rand));
+    }
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testRandomUnsortedAcls() throws Throwable {
+    Random rand = new Random(26536);
+
+    for (int i = 0; i < 1000; i++) {
+      checkAll(TestAcls.makeUnsortedAcl(rand));
+    }
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testUnsorted() throws Throwable {
+    // All before owner - we mustn't stop at all for the owner
+    char[] acl = "WLNyR WONyR ".toCharArray();
+
+    checkAll(acl);
+    assertFalse(EncodedAclEvaluator.evaluate(cb, owner, owner, writeContent,
+                                             acl, null).getAccessAllowed());
+
+    // Out of order after the aces which decide
+    checkAll("WONyR WU05 buseryR WU05 auseryW ".toCharArray());
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testDuplicate() throws Throwable {
+    // Decoding keeps the last ace for a who
+    char[] acl = "WONyR WONyW ".toCharArray();
+
+    checkAll(acl);
+    assertFalse(EncodedAclEvaluator.evaluate(cb, owner, owner,
+                                             TestAcls.read,
+                                             acl, null).getAccessAllowed());
+
+    checkAll("WONyW WONyR ".toCharArray());
+    checkAll("WU05 auseryW WU05 auseryR ".toCharArray());
+    checkAll("WU05 buseryR WU05 auseryW WU05 buseryW ".toCharArray());
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  public void testEdgeCases() throws Throwable {
+    User auser = new User("auser");
+
+    CurrentAccess ca = EncodedAclEvaluator.evaluate(cb, auser, owner,
+                                                    TestAcls.read, null,
+                                                    null);
+    assertFalse(ca.getAccessAllowed());
+
+    // Owner with no owner ace gets everything
+    checkAll("WLNyR ".toCharArray());
+
+    // Nothing applies
+    checkAll("WU05 buseryR ".toCharArray());
+
+    try {
+      EncodedAclEvaluator.evaluate(cb, auser, owner, TestAcls.read,
+                                   "WU05 buseryR".toCharArray(), null);
+      fail("Truncated acl accepted");
+    } catch (AccessException ae) {
+    }
+  }
+
+  /* Check for each principal, privilege and filter */
+  private void checkAll(final char[] acl) throws Throwable {
+    Group agroup = new Group("agroup");
+    Group bgroup = new Group("bgroup");
+
+    User auser = new User("auser");
+    auser.addGroup(agroup);
+    User buser = new User("buser");
+    User cuser = new User("cuser");
+    cuser.addGroup(bgroup);
+    User inGroups = new User("ingroups");
+    inGroups.addGroup(agroup);
+    inGroups.addGroup(bgroup);
+
+    User[] whos = {new User(), owner, auser, buser, cuser, inGroups};
+
+    for (User who: whos) {
+      for (Privilege[] how: TestAcls.hows) {
+        for (PrivilegeSet filter: TestAcls.filters) {
+          checkSame(cb, who, owner, how, acl, filter);
+        }
+      }
+    }
+  }
+
+  static void checkSame(final Access.AccessCb cb,
+                        final User who,
+                        final User owner,
+                        final Privilege[] how,
+                        final char[] acl,
+                        final PrivilegeSet filter) throws Throwable {
+    CurrentAccess expected = Acl.evaluateDecodedAccess(cb, who, owner, how,
+                                                       acl, filter);
+    CurrentAccess ca = EncodedAclEvaluator.evaluate(cb, who, owner, how, acl,
+                                                    filter);
+    String title = new String(acl) + " for " + who;
+
+    assertEquals(title, expected.getAccessAllowed(), ca.getAccessAllowed());
+    assertEquals(title, expected.getPrivileges(), ca.getPrivileges());
+  }
+}
@@ -0,0 +1,178 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access.test;
+
+import org.bedework.access.Access;
+import org.bedework.access.AccessPrincipal;
+import org.bedework.access.Ace;
+import org.bedework.access.AceDictionary;
+import org.bedework.access.AceWho;
+import org.bedework.access.Acl;
+import org.bedework.access.Privilege;
+import org.bedework.access.PrivilegeSet;
+import org.bedework.access.Privileges;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/** Acls and privileges shared by the tests.
+ *
+ * @author douglm
+ */
+public final class TestAcls {
+  private static final String[] names = {
+    "auser",
+    "buser",
+    "agroup",
+    "bgroup",
+    "/principals/users/cuser",
+  };
+
+  static final Privilege[] read = {Privileges.makePriv(Privileges.privRead)};
+
+  static final Privilege[][] hows = {
+    {},
+    {Privileges.makePriv(Privileges.privRead)},
+    {Privileges.makePriv(Privileges.privWrite)},
+    {Privileges.makePriv(Privileges.privRead),
+     Privileges.makePriv(Privileges.privWrite)},
+    {Privileges.makePriv(Privileges.privWriteContent)},
+    {Privileges.makePriv(Privileges.privReadAcl)},
+    {Privileges.makePriv(Privileges.privAll)},
+  };
+
+  static final PrivilegeSet[] filters = {
+    null,
+    PrivilegeSet.userHomeMaxPrivileges,
+  };
+
+  private TestAcls() {
+  }
+
+  /* A random sorted acl of up to 6 aces as produced by Acl.encodeAll */
+  static char[] makeAcl(final Random rand) throws Throwable {
+    Collection<Ace> aces = new ArrayList<Ace>();
+    int numAces = 1 + rand.nextInt(6);
+
+    for (int i = 0; i < numAces; i++) {
+      int whoType = rand.nextInt(Ace.whoTypeFlags.length);
+      String name = null;
+
+      if (Ace.whoTypeNamed[whoType]) {
+        name = names[rand.nextInt(names.length)];
+      }
+
+      AceWho who = AceWho.getAceWho(name, whoType, rand.nextInt(8) == 0);
+
+      Collection<Privilege> privs = new ArrayList<Privilege>();
+      int numPrivs = 1 + rand.nextInt(3);
+
+      for (int p = 0; p < numPrivs; p++) {
+        privs.add(Privileges.makePriv(rand.nextInt(Privileges.privMaxType + 1),
+                                      rand.nextInt(4) == 0));
+      }
+
+      String inheritedFrom = null;
+      if (rand.nextInt(4) == 0) {
+        inheritedFrom = "/user/parent";
+      }
+
+      aces.add(Ace.makeAce(who, privs, inheritedFrom));
+    }
+
+    return new Acl(aces).encodeAll();
+  }
+
+  /* The aces of a random acl in random order, sometimes with a who
+   * repeated. */
+  static char[] makeUnsortedAcl(final Random rand) throws Throwable {
+    List<Ace> aces = new ArrayList<Ace>(Acl.decode(makeAcl(rand)).getAces());
+
+    if (rand.nextBoolean()) {
+      AceWho who = aces.get(rand.nextInt(aces.size())).getWho();
+      Ace dup = Acl.decode(makeAcl(rand)).getAces().iterator().next();
+
+      aces.add(Ace.makeAce(who, dup.getPrivs(), dup.getInheritedFrom()));
+    }
+
+    Collections.shuffle(aces, rand);
+
+    StringBuilder sb = new StringBuilder();
+
+    for (Ace ace: aces) {
+      sb.append(new Acl(Collections.singletonList(ace)).encodeAll());
+    }
+
+    return sb.toString().toCharArray();
+  }
+
+  /* A random acl as stored - no inherited aces */
+  static char[] makeStoredAcl(final Random rand) throws Throwable {
+    char[] acl;
+
+    do {
+      acl = Acl.decode(makeAcl(rand)).encode();
+    } while (acl == null);
+
+    return acl;
+  }
+
+  /* Build and register a dictionary holding the aces of the acls */
+  static AceDictionary registerDictionary(final int version,
+                                          final List<char[]> acls)
+          throws Throwable {
+    // Aces must appear more than once
+    List<char[]> sample = new ArrayList<char[]>(acls);
+    sample.addAll(acls);
+
+    AceDictionary dict = AceDictionary.build(version, sample.iterator(),
+                                             1000);
+    AceDictionary.register(dict);
+
+    return dict;
+  }
+
+  static Collection<Privilege> privs(final Privilege... privs) {
+    Collection<Privilege> res = new ArrayList<Privilege>();
+
+    for (Privilege p: privs) {
+      res.add(p);
+    }
+
+    return res;
+  }
+
+  /* Accessor for a list of acls all with the same owner */
+  static Access.AclAccessor<char[]> accessor(final AccessPrincipal owner) {
+    return new Access.AclAccessor<char[]>() {
+      @Override
+      public AccessPrincipal getOwner(final char[] val) {
+        return owner;
+      }
+
+      @Override
+      public char[] getAclChars(final char[] val) {
+        return val;
+      }
+    };
+  }
+}